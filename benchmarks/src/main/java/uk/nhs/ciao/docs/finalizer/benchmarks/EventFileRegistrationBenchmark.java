@@ -0,0 +1,91 @@
+package uk.nhs.ciao.docs.finalizer.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcessFactory;
+
+/**
+ * Measures {@link DocumentTransferProcess#registerEventsFile(File)} - i.e. matching the file name pattern,
+ * parsing the timestamp and looking up / dispatching the event.
+ * <p>
+ * Event files are only inspected by name, so the files do not need to exist.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventFileRegistrationBenchmark {
+	private static final File ROOT_FOLDER = new File("in-progress/benchmark");
+	private static final File EVENTS_FOLDER = new File(ROOT_FOLDER, "events");
+	
+	private final File parsedFile = new File(EVENTS_FOLDER, "20150903-153545804-document-parsed");
+	private final File sendingFile = new File(EVENTS_FOLDER, "20150903-153545805-bus-message-sending");
+	private final File sentFile = new File(EVENTS_FOLDER, "20150903-153545806-bus-message-sent");
+	private final File unknownFile = new File(EVENTS_FOLDER, "20150903-153545807-unknown-event");
+	private final File malformedFile = new File(EVENTS_FOLDER, "document-parsed");
+	
+	private DocumentTransferProcessFactory factory;
+	private DocumentTransferProcess preparingProcess;
+	
+	@Setup
+	public void setup() {
+		factory = new DocumentTransferProcessFactory(Listeners.NOOP);
+		
+		preparingProcess = factory.createDocumentTransferProcess("benchmark", ROOT_FOLDER);
+		preparingProcess.registerEventsFile(parsedFile);
+	}
+	
+	/**
+	 * A known event which does not change the state (pattern + timestamp + lookup + dispatch)
+	 */
+	@Benchmark
+	public DocumentTransferProcess registerIgnoredEvent() {
+		preparingProcess.registerEventsFile(parsedFile);
+		return preparingProcess;
+	}
+	
+	/**
+	 * An unknown event suffix (pattern + timestamp + lookup)
+	 */
+	@Benchmark
+	public DocumentTransferProcess registerUnknownEvent() {
+		preparingProcess.registerEventsFile(unknownFile);
+		return preparingProcess;
+	}
+	
+	/**
+	 * A name which does not match the expected pattern
+	 */
+	@Benchmark
+	public DocumentTransferProcess registerMalformedEvent() {
+		preparingProcess.registerEventsFile(malformedFile);
+		return preparingProcess;
+	}
+	
+	/**
+	 * A new process moving from PARSING to SUCCEEDED (includes transition logging)
+	 */
+	@Benchmark
+	public DocumentTransferProcess registerLifecycle() {
+		final DocumentTransferProcess process = factory.createDocumentTransferProcess("benchmark", ROOT_FOLDER);
+		process.registerEventsFile(parsedFile);
+		process.registerEventsFile(sendingFile);
+		process.registerEventsFile(sentFile);
+		return process;
+	}
+}
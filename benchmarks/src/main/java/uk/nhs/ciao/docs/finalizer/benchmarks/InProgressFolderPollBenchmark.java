@@ -0,0 +1,90 @@
+package uk.nhs.ciao.docs.finalizer.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.nhs.ciao.docs.finalizer.processor.InProgressFolderPoller;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcessFactory;
+
+/**
+ * Measures a full {@link InProgressFolderPoller#poll(long)} over a synthetic in-progress folder.
+ * <p>
+ * Each correlation folder contains the usual control files and a single event file. The tree is
+ * created under <code>baseFolder</code> - which should be a tmpfs mount (e.g. <code>/dev/shm</code>)
+ * so that the results measure the poller rather than the disk. The first poll (which registers
+ * every process) is performed during setup, so the benchmark measures steady-state polling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class InProgressFolderPollBenchmark {
+	@Param({"1000", "10000", "100000"})
+	public int folderCount;
+	
+	@Param({"/dev/shm"})
+	public String baseFolder;
+	
+	@Param({"1"})
+	public int workerCount;
+	
+	private File inProgressFolder;
+	private InProgressFolderPoller poller;
+	
+	@Setup
+	public void setup() throws IOException {
+		inProgressFolder = new File(baseFolder, "ciao-docs-finalizer-benchmark-" + System.nanoTime());
+		for (int index = 0; index < folderCount; index++) {
+			createProcessFolder(String.format("%08d-0000-0000-0000-000000000000", index));
+		}
+		
+		final DocumentTransferProcessFactory factory = new DocumentTransferProcessFactory(Listeners.NOOP);
+		factory.setDocumentPreparationTimeout(TimeUnit.DAYS.toMillis(1));
+		
+		poller = new InProgressFolderPoller(factory, inProgressFolder);
+		poller.setWorkerCount(workerCount);
+		poller.poll(System.currentTimeMillis());
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		poller.close();
+		FileUtils.deleteDirectory(inProgressFolder);
+	}
+	
+	@Benchmark
+	public InProgressFolderPoller poll() {
+		poller.poll(System.currentTimeMillis());
+		return poller;
+	}
+	
+	private void createProcessFolder(final String correlationId) throws IOException {
+		final File processFolder = new File(inProgressFolder, correlationId);
+		
+		final File controlFolder = new File(processFolder, "control");
+		controlFolder.mkdirs();
+		FileUtils.write(new File(controlFolder, "completed-folder"), "./completed/" + correlationId);
+		FileUtils.write(new File(controlFolder, "error-folder"), "./error/" + correlationId);
+		
+		final File eventsFolder = new File(processFolder, "events");
+		eventsFolder.mkdirs();
+		new File(eventsFolder, "20150903-153545804-document-parsed").createNewFile();
+	}
+}
@@ -0,0 +1,38 @@
+package uk.nhs.ciao.docs.finalizer.benchmarks;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+/**
+ * Transition listeners used by the benchmarks
+ */
+final class Listeners {
+	/**
+	 * A listener which ignores all notifications
+	 */
+	static final TransitionListener NOOP = new TransitionListener() {
+		@Override
+		public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+			// NOOP
+		}
+	};
+	
+	private Listeners() {
+		// Suppress default constructor
+	}
+	
+	/**
+	 * Creates a listener which consumes each notification (so the call cannot be eliminated)
+	 */
+	static TransitionListener consuming(final Blackhole blackhole) {
+		return new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				blackhole.consume(transition);
+			}
+		};
+	}
+}
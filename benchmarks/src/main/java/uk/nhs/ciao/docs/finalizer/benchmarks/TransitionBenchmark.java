@@ -0,0 +1,97 @@
+package uk.nhs.ciao.docs.finalizer.benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListenerRegistry;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListenerSet;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Measures {@link Event#dispatch(State, DocumentTransferProcess, long)} and the fan-out of
+ * {@link TransitionListenerRegistry#onTransition(DocumentTransferProcess, Transition)}
+ * <p>
+ * (JMH's <code>State</code> annotation is fully qualified to avoid clashing with {@link State})
+ */
+@org.openjdk.jmh.annotations.State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransitionBenchmark {
+	private static final long EVENT_TIME = 1441294545806L;
+	
+	private DocumentTransferProcess process;
+	
+	@Setup
+	public void setup() {
+		process = new DocumentTransferProcess("benchmark", new File("in-progress/benchmark"), Listeners.NOOP);
+	}
+	
+	/**
+	 * A state-changing dispatch (SENDING to SUCCEEDED)
+	 */
+	@Benchmark
+	public State dispatchTransition() {
+		return Event.DOCUMENT_SENT.dispatch(State.SENDING, process, EVENT_TIME);
+	}
+	
+	/**
+	 * A dispatch which is ignored by the current state
+	 */
+	@Benchmark
+	public State dispatchIgnored() {
+		return Event.DOCUMENT_PARSED.dispatch(State.SUCCEEDED, process, EVENT_TIME);
+	}
+	
+	@Benchmark
+	public void registryFanOut(final FanOut fanOut) {
+		fanOut.registry.onTransition(process, fanOut.transition);
+	}
+	
+	/**
+	 * A registry with a configurable number of listeners registered against the to-state
+	 */
+	@org.openjdk.jmh.annotations.State(Scope.Thread)
+	public static class FanOut {
+		@Param({"1", "4", "16"})
+		public int listenerCount;
+		
+		private TransitionListenerRegistry registry;
+		private Transition transition;
+		
+		@Setup
+		public void setup(final Blackhole blackhole) {
+			final List<TransitionListener> listeners = Lists.newArrayList();
+			for (int index = 0; index < listenerCount; index++) {
+				listeners.add(Listeners.consuming(blackhole));
+			}
+			
+			registry = new TransitionListenerRegistry();
+			registry.addToStateListener(State.SUCCEEDED,
+					listenerCount == 1 ? listeners.get(0) : new TransitionListenerSet(listeners));
+			
+			transition = new Transition(State.SENDING, State.SUCCEEDED, Event.DOCUMENT_SENT, EVENT_TIME);
+		}
+	}
+}
@@ -2,17 +2,24 @@ package uk.nhs.ciao.docs.finalizer;
 
 import org.apache.camel.CamelContext;
 import org.apache.camel.RoutesBuilder;
+import org.apache.camel.StartupListener;
 import org.apache.camel.spi.IdempotentRepository;
 
+import uk.nhs.ciao.docs.finalizer.processor.AdaptivePollScheduler;
 import uk.nhs.ciao.docs.finalizer.processor.InProgressFolderPoller;
+import uk.nhs.ciao.docs.finalizer.route.EventSourceRoute;
 import uk.nhs.ciao.docs.finalizer.route.IdempotentTransitionListenerRoute;
 import uk.nhs.ciao.docs.finalizer.route.InProgressFolderPollerRoute;
+import uk.nhs.ciao.docs.finalizer.state.AsyncTransitionListener;
+import uk.nhs.ciao.docs.finalizer.state.TransitionJournal;
 
 public class DocsFinalizerRoutes implements RoutesBuilder {
 	@Override
 	public void addRoutesToCamelContext(final CamelContext context) throws Exception {
 		addInProgressFolderPoller(context);
+		addEventSource(context);
 		addIdempotentTransitionListener(context);
+		addTransitionJournalResume(context);
 	}
 	
 	private void addInProgressFolderPoller(final CamelContext context) throws Exception {
@@ -21,12 +28,55 @@ public class DocsFinalizerRoutes implements RoutesBuilder {
 		final InProgressFolderPoller inProgressDirectoryPoller = context.getRegistry().lookupByNameAndType(
 				"inProgressFolderPoller", InProgressFolderPoller.class);
 		
+		route.setMode("{{inProgressFolderMode}}");
 		route.setPeriod("{{inProgressFolderPollPeriod}}");
+		route.setRescanPeriod("{{inProgressFolderRescanPeriod}}");
+		route.setSweepPeriod("{{inProgressFolderSweepPeriod}}");
 		route.setInProgressFolderPoller(inProgressDirectoryPoller);
+		route.setAdaptivePollScheduler(context.getRegistry().lookupByNameAndType(
+				"adaptivePollScheduler", AdaptivePollScheduler.class));
 		
 		context.addRoutes(route);
 	}
 	
+	/**
+	 * Adds a route to receive pushed events (if an event source URI is configured)
+	 */
+	private void addEventSource(final CamelContext context) throws Exception {
+		final String uri = context.resolvePropertyPlaceholders("{{eventSourceUri}}");
+		if (uri == null || uri.trim().isEmpty()) {
+			return;
+		}
+		
+		final EventSourceRoute route = new EventSourceRoute();
+		route.setUri(uri.trim());
+		route.setEventSink(context.getRegistry().lookupByNameAndType(
+				"inProgressFolderPoller", InProgressFolderPoller.class));
+		
+		context.addRoutes(route);
+	}
+	
+	/**
+	 * Resumes the actions interrupted before the last shutdown once the context has started - the actions
+	 * are queued to the action lanes rather than holding up startup
+	 */
+	private void addTransitionJournalResume(final CamelContext context) throws Exception {
+		final TransitionJournal transitionJournal = context.getRegistry().lookupByNameAndType(
+				"transitionJournal", TransitionJournal.class);
+		final AsyncTransitionListener actionLanes = context.getRegistry().lookupByNameAndType(
+				"asyncTransitionListener", AsyncTransitionListener.class);
+		if (transitionJournal == null || actionLanes == null) {
+			return;
+		}
+		
+		context.addStartupListener(new StartupListener() {
+			@Override
+			public void onCamelContextStarted(final CamelContext context, final boolean alreadyStarted) {
+				transitionJournal.resumeIncompleteActions(actionLanes);
+			}
+		});
+	}
+	
 	private void addIdempotentTransitionListener(final CamelContext context) throws Exception {
 		final IdempotentTransitionListenerRoute route = new IdempotentTransitionListenerRoute();
 		
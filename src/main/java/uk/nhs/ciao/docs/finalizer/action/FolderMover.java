@@ -0,0 +1,391 @@
+package uk.nhs.ciao.docs.finalizer.action;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Moves a folder tree to a new location.
+ * <p>
+ * The move is first attempted as a single atomic rename - which is effectively free when the
+ * source and target are on the same file system. If the rename is not possible (e.g. the target is on
+ * a different device) the tree is copied using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * (allowing the OS to avoid copying through user space), with the files copied in parallel. The copy is written
+ * to a <code>.partial</code> sibling of the target, and only renamed to the target once the size of each
+ * copied file has been verified - the source tree is then deleted. If the copy fails (or is interrupted) the
+ * partial copy is removed once all pending file copies have stopped, and the source is left in place.
+ * <p>
+ * A move can be safely repeated after an earlier attempt was interrupted (e.g. by a restart): a left over
+ * partial copy is replaced, and a completed copy whose source was not deleted is accepted. A completed copy
+ * is identified by a marker file (naming the source) which is written to the partial copy before the final
+ * rename and removed once the source has been deleted - any other existing target is rejected.
+ */
+public class FolderMover {
+	private static final FolderMover DEFAULT_INSTANCE = new FolderMover(
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+	
+	private static final String PARTIAL_SUFFIX = ".partial";
+	
+	/**
+	 * Name of the marker file identifying a completed copy whose source has not yet been deleted
+	 */
+	static final String COPY_MARKER_FILE = ".folder-mover-source";
+	
+	/**
+	 * Maximum number of bytes transferred per call - so an aborted copy of a large file stops promptly
+	 */
+	private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+	
+	private static final Charset MARKER_CHARSET = Charset.forName("UTF-8");
+	
+	private final ExecutorService copyExecutor;
+	
+	/**
+	 * Returns the shared mover used by the built-in actions
+	 */
+	public static FolderMover getDefaultInstance() {
+		return DEFAULT_INSTANCE;
+	}
+	
+	/**
+	 * Creates a new mover
+	 *
+	 * @param copyThreads The number of files to copy in parallel when a rename is not possible
+	 */
+	public FolderMover(final int copyThreads) {
+		Preconditions.checkArgument(copyThreads > 0, "copyThreads must be positive");
+		
+		this.copyExecutor = Executors.newFixedThreadPool(copyThreads, new ThreadFactoryBuilder()
+				.setNameFormat("folderMover-%d")
+				.setDaemon(true)
+				.build());
+	}
+	
+	/**
+	 * Moves the source folder to the target location
+	 * <p>
+	 * The target must not already exist - unless it is a complete copy of the source left by an
+	 * earlier attempt of this mover, in which case only the source is deleted.
+	 *
+	 * @return The statistics of the completed move
+	 * @throws IOException If the folder could not be moved
+	 */
+	public MoveResult move(final File source, final File target) throws IOException {
+		final long startTime = System.nanoTime();
+		final Path sourcePath = source.toPath();
+		final Path targetPath = target.toPath();
+		
+		final Path markerPath = targetPath.resolve(COPY_MARKER_FILE);
+		if (isCopyOf(sourcePath, markerPath)) {
+			// An earlier attempt copied the tree but did not complete the clean up
+			if (Files.exists(sourcePath)) {
+				deleteTree(sourcePath);
+			}
+			Files.delete(markerPath);
+			return new MoveResult(false, 0, System.nanoTime() - startTime);
+		} else if (!Files.isDirectory(sourcePath)) {
+			throw new IOException("Source folder does not exist: " + source);
+		} else if (Files.exists(targetPath)) {
+			throw new FileAlreadyExistsException(target.toString());
+		}
+		
+		try {
+			rename(sourcePath, targetPath);
+			return new MoveResult(true, 0, System.nanoTime() - startTime);
+		} catch (AtomicMoveNotSupportedException e) {
+			// fall back to copy and delete
+		} catch (IOException e) {
+			// the rename can also be reported as a general failure (e.g. across devices) - fall back to copy and delete
+			if (Files.exists(targetPath) || !Files.isDirectory(sourcePath)) {
+				throw e;
+			}
+		}
+		
+		// Replace any partial copy left by an interrupted attempt
+		final Path partialPath = targetPath.resolveSibling(targetPath.getFileName() + PARTIAL_SUFFIX);
+		if (Files.exists(partialPath)) {
+			deleteTree(partialPath);
+		}
+		
+		final long bytes;
+		try {
+			bytes = copyTree(sourcePath, partialPath);
+			writeMarker(sourcePath, partialPath.resolve(COPY_MARKER_FILE));
+			Files.move(partialPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			deleteTreeQuietly(partialPath);
+			throw e;
+		}
+		
+		deleteTree(sourcePath);
+		Files.delete(markerPath);
+		return new MoveResult(false, bytes, System.nanoTime() - startTime);
+	}
+	
+	/**
+	 * Renames the source to the target as a single atomic operation
+	 * <p>
+	 * Overridable by tests to simulate a target on a different device.
+	 */
+	void rename(final Path source, final Path target) throws IOException {
+		Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Copies the tree - directories are created by the calling thread, while files are copied in parallel
+	 * <p>
+	 * If any copy fails (or the calling thread is interrupted) the pending copies are aborted - and this method
+	 * only returns once every submitted copy has stopped writing to the target.
+	 *
+	 * @return The total number of bytes copied
+	 */
+	private long copyTree(final Path source, final Path target) throws IOException {
+		final AtomicBoolean aborted = new AtomicBoolean();
+		final Semaphore stopped = new Semaphore(0);
+		final List<Future<Long>> copies = Lists.newArrayList();
+		boolean completed = false;
+		try {
+			Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+					Files.createDirectories(target.resolve(source.relativize(dir)));
+					return FileVisitResult.CONTINUE;
+				}
+			
+				@Override
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+					final File targetFile = target.resolve(source.relativize(file)).toFile();
+					copies.add(copyExecutor.submit(new FileCopy(file.toFile(), targetFile, attrs.size(),
+							aborted, stopped)));
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		
+			long bytes = 0;
+			for (final Future<Long> copy: copies) {
+				try {
+					bytes += copy.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while copying " + source);
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof IOException ? (IOException)e.getCause()
+							: new IOException("Unable to copy " + source, e.getCause());
+				}
+			}
+			
+			completed = true;
+			return bytes;
+		} finally {
+			if (!completed) {
+				// Queued copies skip the copy once aborted - but every copy still signals when it has stopped
+				aborted.set(true);
+				stopped.acquireUninterruptibly(copies.size());
+			}
+		}
+	}
+		
+	/**
+	 * Copies the content of a single file - stopping early if the copy is aborted
+	 * <p>
+	 * Overridable by tests to simulate failed copies.
+	 */
+	void copyFile(final File source, final File target, final AtomicBoolean aborted) throws IOException {
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		boolean threw = true;
+		try {
+			in = new FileInputStream(source);
+			out = new FileOutputStream(target);
+			
+			final FileChannel inChannel = in.getChannel();
+			final FileChannel outChannel = out.getChannel();
+			final long size = inChannel.size();
+			long position = 0;
+			while (position < size && !aborted.get()) {
+				final long transferred = inChannel.transferTo(position,
+						Math.min(TRANSFER_CHUNK_SIZE, size - position), outChannel);
+				if (transferred <= 0) {
+					break;
+				}
+				position += transferred;
+			}
+			threw = false;
+		} finally {
+			Closeables.closeQuietly(in);
+			Closeables.close(out, threw);
+		}
+	}
+		
+	/**
+	 * Records the source of a verified copy - the marker is forced to disk before the copy is renamed
+	 */
+	private static void writeMarker(final Path source, final Path marker) throws IOException {
+		final FileOutputStream out = new FileOutputStream(marker.toFile());
+		boolean threw = true;
+		try {
+			out.write(source.toAbsolutePath().toString().getBytes(MARKER_CHARSET));
+			out.getFD().sync();
+			threw = false;
+		} finally {
+			Closeables.close(out, threw);
+		}
+	}
+	
+	/**
+	 * Tests if the marker exists and names the source - i.e. the target is a completed copy of the source
+	 * left by an earlier attempt
+	 */
+	private static boolean isCopyOf(final Path source, final Path marker) throws IOException {
+		if (!Files.isRegularFile(marker)) {
+			return false;
+		}
+		
+		final String markedSource = new String(Files.readAllBytes(marker), MARKER_CHARSET);
+		return markedSource.equals(source.toAbsolutePath().toString());
+	}
+	
+	private static void deleteTree(final Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) throws IOException {
+				if (exc != null) {
+					throw exc;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	private static void deleteTreeQuietly(final Path root) {
+		try {
+			if (Files.exists(root)) {
+				deleteTree(root);
+			}
+		} catch (IOException e) {
+			// ignore - the original failure is reported
+		}
+	}
+	
+	/**
+	 * Copies a single file, verifying the size of the copy
+	 */
+	private class FileCopy implements Callable<Long> {
+		private final File source;
+		private final File target;
+		private final long expectedSize;
+		private final AtomicBoolean aborted;
+		private final Semaphore stopped;
+		
+		public FileCopy(final File source, final File target, final long expectedSize,
+				final AtomicBoolean aborted, final Semaphore stopped) {
+			this.source = source;
+			this.target = target;
+			this.expectedSize = expectedSize;
+			this.aborted = aborted;
+			this.stopped = stopped;
+		}
+		
+		@Override
+		public Long call() throws IOException {
+			try {
+				if (aborted.get()) {
+					throw new IOException("Copy was aborted: " + source);
+				}
+				
+				copyFile(source, target, aborted);
+			
+				final long copiedSize = target.length();
+				if (copiedSize != expectedSize || source.length() != expectedSize) {
+					throw new IOException("Size of copied file does not match source: " + source
+							+ " (expected " + expectedSize + " bytes, copied " + copiedSize + " bytes)");
+				}
+			
+				target.setLastModified(source.lastModified());
+				return copiedSize;
+			} finally {
+				stopped.release();
+			}
+		}
+	}
+	
+	/**
+	 * Statistics of a completed move
+	 */
+	public static class MoveResult {
+		private final boolean renamed;
+		private final long bytes;
+		private final long durationNanos;
+		
+		public MoveResult(final boolean renamed, final long bytes, final long durationNanos) {
+			this.renamed = renamed;
+			this.bytes = bytes;
+			this.durationNanos = durationNanos;
+		}
+		
+		/**
+		 * True if the folder was moved by a single rename, or false if the tree was copied
+		 */
+		public boolean isRenamed() {
+			return renamed;
+		}
+		
+		/**
+		 * The number of bytes copied (zero for a rename)
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+		
+		public long getDurationMillis() {
+			return durationNanos / 1000000L;
+		}
+		
+		public long getBytesPerSecond() {
+			return durationNanos <= 0 ? 0 : (long)(bytes * 1000000000.0 / durationNanos);
+		}
+		
+		@Override
+		public String toString() {
+			return MoreObjects.toStringHelper(this)
+					.add("renamed", renamed)
+					.add("bytes", bytes)
+					.add("durationMillis", getDurationMillis())
+					.add("bytesPerSecond", getBytesPerSecond())
+					.toString();
+		}
+	}
+}
@@ -5,22 +5,34 @@ import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
 import java.io.File;
 import java.io.IOException;
 
-import org.apache.commons.io.FileUtils;
-
+import uk.nhs.ciao.docs.finalizer.action.FolderMover.MoveResult;
 import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
 import uk.nhs.ciao.docs.finalizer.state.Transition;
 import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
 import uk.nhs.ciao.logging.CiaoLogger;
 
+import com.google.common.base.Preconditions;
+
 /**
  * Action to move a document transfer folder from in-progress to its
  * configured completed error folder.
  * 
- * @see DocumentTransferProcess#getCompletedFolder()
+ * @see DocumentTransferProcess#getErrorFolder()
+ * @see FolderMover
  */
 public class MoveToErrorFolder implements TransitionListener {
 	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(MoveToErrorFolder.class);
 	
+	private final FolderMover folderMover;
+	
+	public MoveToErrorFolder() {
+		this(FolderMover.getDefaultInstance());
+	}
+	
+	public MoveToErrorFolder(final FolderMover folderMover) {
+		this.folderMover = Preconditions.checkNotNull(folderMover);
+	}
+	
 	@Override
 	public void onTransition(final DocumentTransferProcess process, final Transition transition) {
 		LOGGER.info(logMsg("Moving files to error folder")
@@ -35,7 +47,16 @@ public class MoveToErrorFolder implements TransitionListener {
 		}
 
 		try {
-			FileUtils.moveDirectory(process.getRootFolder(), target);
+			final MoveResult result = folderMover.move(process.getRootFolder(), target);
+			LOGGER.info(logMsg("Moved files to error folder")
+				.documentId(process.getCorrelationId())
+				.state(process.getState())
+				.set("ErrorFolder", process.getErrorFolder())
+				.set("Renamed", result.isRenamed())
+				.set("Bytes", result.getBytes())
+				.set("DurationMillis", result.getDurationMillis())
+				.set("BytesPerSecond", result.getBytesPerSecond())
+				.eventName("moved-to-error-folder"));
 		} catch (IOException e) {
 			LOGGER.error(logMsg("Failed to move files to error folder")
 				.documentId(process.getCorrelationId())
@@ -0,0 +1,43 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count
+ */
+public class Counter extends Metric {
+	private final AtomicLong value = new AtomicLong();
+	
+	public Counter(final String name, final String help) {
+		super(name, help);
+	}
+	
+	public void increment() {
+		value.incrementAndGet();
+	}
+	
+	public void increment(final long amount) {
+		value.addAndGet(amount);
+	}
+	
+	public long getValue() {
+		return value.get();
+	}
+	
+	@Override
+	protected String getType() {
+		return "counter";
+	}
+	
+	@Override
+	protected void writeSamples(final Appendable out) throws IOException {
+		writeSample(out, getName(), null, null, null, getValue());
+	}
+	
+	@Override
+	protected void addSamples(final Map<String, Number> snapshot) {
+		snapshot.put(getName(), getValue());
+	}
+}
@@ -0,0 +1,45 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A value (or family of labelled values) sampled from a {@link Source} when the metrics are read
+ */
+public class Gauge extends Metric {
+	private final String labelName;
+	private final Source source;
+	
+	/**
+	 * Supplies the current gauge values keyed by label value (or a single entry with a null key if the gauge is not labelled)
+	 */
+	public interface Source {
+		Map<String, ? extends Number> getValues();
+	}
+	
+	public Gauge(final String name, final String help, final String labelName, final Source source) {
+		super(name, help);
+		this.labelName = labelName;
+		this.source = source;
+	}
+	
+	@Override
+	protected String getType() {
+		return "gauge";
+	}
+	
+	@Override
+	protected void writeSamples(final Appendable out) throws IOException {
+		for (final Entry<String, ? extends Number> entry: source.getValues().entrySet()) {
+			writeSample(out, getName(), entry.getKey() == null ? null : labelName, entry.getKey(), null, entry.getValue());
+		}
+	}
+	
+	@Override
+	protected void addSamples(final Map<String, Number> snapshot) {
+		for (final Entry<String, ? extends Number> entry: source.getValues().entrySet()) {
+			snapshot.put(sampleKey(getName(), entry.getKey()), entry.getValue());
+		}
+	}
+}
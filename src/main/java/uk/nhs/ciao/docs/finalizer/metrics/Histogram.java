@@ -0,0 +1,93 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A distribution of durations - recorded in millis, and exposed in seconds as a
+ * cumulative Prometheus histogram
+ */
+public class Histogram extends Metric {
+	/**
+	 * Default bucket bounds (in millis) - suitable for operations taking between a millisecond and a minute
+	 */
+	public static final long[] DEFAULT_BOUNDS_MILLIS = {1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+	
+	private final String labelName;
+	private final String labelValue;
+	private final long[] boundsMillis;
+	private final AtomicLongArray bucketCounts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumMillis = new AtomicLong();
+	
+	public Histogram(final String name, final String help, final long... boundsMillis) {
+		this(name, help, null, null, boundsMillis);
+	}
+	
+	Histogram(final String name, final String help, final String labelName, final String labelValue,
+			final long... boundsMillis) {
+		super(name, help);
+		Preconditions.checkArgument(boundsMillis.length > 0, "at least one bucket is required");
+		
+		this.labelName = labelName;
+		this.labelValue = labelValue;
+		this.boundsMillis = boundsMillis.clone();
+		Arrays.sort(this.boundsMillis);
+		this.bucketCounts = new AtomicLongArray(boundsMillis.length);
+	}
+	
+	public void record(final long millis) {
+		count.incrementAndGet();
+		sumMillis.addAndGet(millis);
+		
+		// buckets are stored non-cumulatively - only one slot needs to be updated
+		for (int index = 0; index < boundsMillis.length; index++) {
+			if (millis <= boundsMillis[index]) {
+				bucketCounts.incrementAndGet(index);
+				break;
+			}
+		}
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getSumMillis() {
+		return sumMillis.get();
+	}
+	
+	@Override
+	protected String getType() {
+		return "histogram";
+	}
+	
+	@Override
+	protected void writeSamples(final Appendable out) throws IOException {
+		final long count = getCount();
+		long cumulative = 0;
+		for (int index = 0; index < boundsMillis.length; index++) {
+			cumulative += bucketCounts.get(index);
+			writeSample(out, getName() + "_bucket", labelName, labelValue,
+					"le=\"" + toSeconds(boundsMillis[index]) + "\"", Math.min(cumulative, count));
+		}
+		writeSample(out, getName() + "_bucket", labelName, labelValue, "le=\"+Inf\"", count);
+		writeSample(out, getName() + "_sum", labelName, labelValue, null, toSeconds(getSumMillis()));
+		writeSample(out, getName() + "_count", labelName, labelValue, null, count);
+	}
+	
+	@Override
+	protected void addSamples(final Map<String, Number> snapshot) {
+		snapshot.put(sampleKey(getName(), labelValue) + ".count", getCount());
+		snapshot.put(sampleKey(getName(), labelValue) + ".sumMillis", getSumMillis());
+	}
+	
+	private static double toSeconds(final long millis) {
+		return millis / 1000.0;
+	}
+}
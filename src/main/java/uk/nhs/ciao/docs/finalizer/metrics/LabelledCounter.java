@@ -0,0 +1,57 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A family of counters distinguished by the value of a single label (e.g. the event name)
+ */
+public class LabelledCounter extends Metric {
+	private final String labelName;
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+	
+	public LabelledCounter(final String name, final String help, final String labelName) {
+		super(name, help);
+		this.labelName = Preconditions.checkNotNull(labelName);
+	}
+	
+	public void increment(final String labelValue) {
+		get(labelValue).increment();
+	}
+	
+	public Counter get(final String labelValue) {
+		Counter counter = counters.get(labelValue);
+		if (counter == null) {
+			final Counter newCounter = new Counter(getName(), getHelp());
+			counter = counters.putIfAbsent(labelValue, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+	
+	@Override
+	protected String getType() {
+		return "counter";
+	}
+	
+	@Override
+	protected void writeSamples(final Appendable out) throws IOException {
+		for (final Entry<String, Counter> entry: counters.entrySet()) {
+			writeSample(out, getName(), labelName, entry.getKey(), null, entry.getValue().getValue());
+		}
+	}
+	
+	@Override
+	protected void addSamples(final Map<String, Number> snapshot) {
+		for (final Entry<String, Counter> entry: counters.entrySet()) {
+			snapshot.put(sampleKey(getName(), entry.getKey()), entry.getValue().getValue());
+		}
+	}
+}
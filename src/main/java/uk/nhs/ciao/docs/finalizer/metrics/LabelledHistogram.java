@@ -0,0 +1,58 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A family of histograms distinguished by the value of a single label (e.g. the action name)
+ */
+public class LabelledHistogram extends Metric {
+	private final String labelName;
+	private final long[] boundsMillis;
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+	
+	public LabelledHistogram(final String name, final String help, final String labelName, final long... boundsMillis) {
+		super(name, help);
+		this.labelName = Preconditions.checkNotNull(labelName);
+		this.boundsMillis = boundsMillis.clone();
+	}
+	
+	public void record(final String labelValue, final long millis) {
+		get(labelValue).record(millis);
+	}
+	
+	public Histogram get(final String labelValue) {
+		Histogram histogram = histograms.get(labelValue);
+		if (histogram == null) {
+			final Histogram newHistogram = new Histogram(getName(), getHelp(), labelName, labelValue, boundsMillis);
+			histogram = histograms.putIfAbsent(labelValue, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+	
+	@Override
+	protected String getType() {
+		return "histogram";
+	}
+	
+	@Override
+	protected void writeSamples(final Appendable out) throws IOException {
+		for (final Histogram histogram: histograms.values()) {
+			histogram.writeSamples(out);
+		}
+	}
+	
+	@Override
+	protected void addSamples(final Map<String, Number> snapshot) {
+		for (final Histogram histogram: histograms.values()) {
+			histogram.addSamples(snapshot);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Base class for metrics stored in a {@link MetricRegistry}
+ */
+public abstract class Metric {
+	private final String name;
+	private final String help;
+	
+	protected Metric(final String name, final String help) {
+		this.name = Preconditions.checkNotNull(name);
+		this.help = Preconditions.checkNotNull(help);
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getHelp() {
+		return help;
+	}
+	
+	/**
+	 * The Prometheus metric type (counter, gauge, histogram)
+	 */
+	protected abstract String getType();
+	
+	/**
+	 * Writes the current sample values in the Prometheus text format
+	 */
+	protected abstract void writeSamples(Appendable out) throws IOException;
+	
+	/**
+	 * Adds the current sample values to the snapshot (keyed by sample name)
+	 */
+	protected abstract void addSamples(Map<String, Number> snapshot);
+	
+	/**
+	 * Writes a single sample line
+	 */
+	protected static void writeSample(final Appendable out, final String name, final String labelName,
+			final String labelValue, final String extraLabel, final Object value) throws IOException {
+		out.append(name);
+		if (labelName != null || extraLabel != null) {
+			out.append('{');
+			if (labelName != null) {
+				out.append(labelName).append("=\"").append(escape(labelValue)).append('"');
+			}
+			if (extraLabel != null) {
+				if (labelName != null) {
+					out.append(',');
+				}
+				out.append(extraLabel);
+			}
+			out.append('}');
+		}
+		out.append(' ').append(String.valueOf(value)).append('\n');
+	}
+	
+	/**
+	 * Builds the snapshot key of a sample (e.g. <code>name.labelValue</code>)
+	 */
+	protected static String sampleKey(final String name, final String labelValue) {
+		return labelValue == null ? name : name + "." + labelValue;
+	}
+	
+	private static String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
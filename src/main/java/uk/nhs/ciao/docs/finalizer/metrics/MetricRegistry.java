@@ -0,0 +1,111 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Registry of the metrics published by the finalizer.
+ * <p>
+ * Metrics are plain atomic counters / bucket arrays which are cheap to update from the polling and
+ * action threads. The registry renders them in the Prometheus text format (see {@link #writePrometheus(Appendable)})
+ * and as a flat snapshot for JMX (see {@link MetricRegistryMBean}).
+ * <p>
+ * Requesting a metric which has already been registered returns the existing instance - so components
+ * sharing a registry can look up the same metric independently.
+ * <p>
+ * Components record into unregistered metrics (see {@link #unregisteredCounter()}) until a registry is set - so
+ * they never need to create a registry of their own.
+ */
+public class MetricRegistry {
+	public static final String PREFIX = "ciao_docs_finalizer_";
+	private static final String UNREGISTERED_NAME = PREFIX + "unregistered";
+	
+	/**
+	 * Returns a new counter which is not held by any registry
+	 */
+	public static Counter unregisteredCounter() {
+		return new Counter(UNREGISTERED_NAME, "");
+	}
+	
+	/**
+	 * Returns a new labelled counter which is not held by any registry
+	 */
+	public static LabelledCounter unregisteredCounter(final String labelName) {
+		return new LabelledCounter(UNREGISTERED_NAME, "", labelName);
+	}
+	
+	/**
+	 * Returns a new histogram which is not held by any registry
+	 */
+	public static Histogram unregisteredHistogram() {
+		return new Histogram(UNREGISTERED_NAME, "", Histogram.DEFAULT_BOUNDS_MILLIS);
+	}
+	
+	private final Map<String, Metric> metrics = Maps.newLinkedHashMap();
+	
+	public Counter counter(final String name, final String help) {
+		return register(new Counter(PREFIX + name, help), Counter.class);
+	}
+	
+	public LabelledCounter counter(final String name, final String help, final String labelName) {
+		return register(new LabelledCounter(PREFIX + name, help, labelName), LabelledCounter.class);
+	}
+	
+	public Histogram histogram(final String name, final String help) {
+		return register(new Histogram(PREFIX + name, help, Histogram.DEFAULT_BOUNDS_MILLIS), Histogram.class);
+	}
+	
+	public Histogram histogram(final String name, final String help, final long... boundsMillis) {
+		return register(new Histogram(PREFIX + name, help, boundsMillis), Histogram.class);
+	}
+	
+	public LabelledHistogram histogram(final String name, final String help, final String labelName) {
+		return register(new LabelledHistogram(PREFIX + name, help, labelName, Histogram.DEFAULT_BOUNDS_MILLIS),
+				LabelledHistogram.class);
+	}
+	
+	public Gauge gauge(final String name, final String help, final String labelName, final Gauge.Source source) {
+		return register(new Gauge(PREFIX + name, help, labelName, source), Gauge.class);
+	}
+	
+	/**
+	 * Writes all metrics in the Prometheus text exposition format
+	 */
+	public void writePrometheus(final Appendable out) throws IOException {
+		for (final Metric metric: getMetrics()) {
+			out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+			out.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+			metric.writeSamples(out);
+		}
+	}
+	
+	/**
+	 * Returns the current value of all samples keyed by sample name
+	 */
+	public Map<String, Number> snapshot() {
+		final Map<String, Number> snapshot = Maps.newLinkedHashMap();
+		for (final Metric metric: getMetrics()) {
+			metric.addSamples(snapshot);
+		}
+		return snapshot;
+	}
+	
+	private synchronized Metric[] getMetrics() {
+		return metrics.values().toArray(new Metric[metrics.size()]);
+	}
+	
+	private synchronized <T extends Metric> T register(final T metric, final Class<T> type) {
+		final Metric existing = metrics.get(metric.getName());
+		if (existing == null) {
+			metrics.put(metric.getName(), metric);
+			return metric;
+		}
+		
+		Preconditions.checkArgument(type.isInstance(existing), "Metric %s is already registered as a %s",
+				metric.getName(), existing.getClass().getSimpleName());
+		return type.cast(existing);
+	}
+}
@@ -0,0 +1,81 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Exposes the samples of a {@link MetricRegistry} as read-only JMX attributes.
+ * <p>
+ * Each sample is published as a separate attribute (e.g. <code>ciao_docs_finalizer_transitions_total.document-parsed</code>).
+ * The attribute set is rebuilt each time the MBean info is requested - so labelled samples created after
+ * registration are also visible.
+ */
+public class MetricRegistryMBean implements DynamicMBean {
+	private final MetricRegistry registry;
+	
+	public MetricRegistryMBean(final MetricRegistry registry) {
+		this.registry = Preconditions.checkNotNull(registry);
+	}
+	
+	@Override
+	public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+		final Number value = registry.snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+	
+	@Override
+	public AttributeList getAttributes(final String[] attributes) {
+		final Map<String, Number> snapshot = registry.snapshot();
+		final AttributeList list = new AttributeList();
+		for (final String attribute: attributes) {
+			final Number value = snapshot.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+	
+	@Override
+	public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metric attributes are read-only: " + attribute.getName());
+	}
+	
+	@Override
+	public AttributeList setAttributes(final AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+		throw new UnsupportedOperationException(actionName);
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final List<MBeanAttributeInfo> attributes = Lists.newArrayList();
+		for (final Entry<String, Number> entry: registry.snapshot().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+					entry.getKey(), true, false, false));
+		}
+		
+		return new MBeanInfo(getClass().getName(), "ciao-docs-finalizer metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,142 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes a {@link MetricRegistry} over JMX and (optionally) as a Prometheus text endpoint
+ * served at <code>http://{host}:{port}/metrics</code>
+ * <p>
+ * The endpoint is not authenticated - it is disabled unless a port is configured, and only
+ * listens on the loopback interface unless another host is configured.
+ */
+public class MetricsExporter {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(MetricsExporter.class);
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	
+	private final MetricRegistry registry;
+	private String objectName = "uk.nhs.ciao.docs.finalizer:type=Metrics";
+	private String httpPort;
+	private String httpHost = "127.0.0.1";
+	
+	private ObjectName registeredName;
+	private HttpServer httpServer;
+	private ExecutorService httpExecutor;
+	
+	public MetricsExporter(final MetricRegistry registry) {
+		this.registry = Preconditions.checkNotNull(registry);
+	}
+	
+	/**
+	 * Sets the JMX object name (an empty name disables JMX publication)
+	 */
+	public void setObjectName(final String objectName) {
+		this.objectName = objectName;
+	}
+	
+	/**
+	 * Sets the port of the Prometheus endpoint (an empty value disables the endpoint)
+	 */
+	public void setHttpPort(final String httpPort) {
+		this.httpPort = httpPort;
+	}
+	
+	/**
+	 * Sets the host name or address the Prometheus endpoint listens on (an empty value listens on all interfaces)
+	 */
+	public void setHttpHost(final String httpHost) {
+		this.httpHost = httpHost;
+	}
+	
+	public synchronized void start() throws IOException, JMException {
+		if (!Strings.isNullOrEmpty(objectName)) {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(objectName);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new MetricRegistryMBean(registry), name);
+			registeredName = name;
+		}
+		
+		if (!Strings.isNullOrEmpty(httpPort) && !Strings.isNullOrEmpty(httpPort.trim())) {
+			final int port = Integer.parseInt(httpPort.trim());
+			httpExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+					.setNameFormat("metricsHttpServer-%d")
+					.setDaemon(true)
+					.build());
+			
+			final InetSocketAddress address = Strings.isNullOrEmpty(httpHost) || httpHost.trim().isEmpty()
+					? new InetSocketAddress(port) : new InetSocketAddress(httpHost.trim(), port);
+			httpServer = HttpServer.create(address, 0);
+			httpServer.createContext("/metrics", new PrometheusHandler());
+			httpServer.setExecutor(httpExecutor);
+			httpServer.start();
+			
+			LOGGER.info(logMsg("Started metrics endpoint")
+				.set("Host", httpServer.getAddress().getHostString())
+				.set("Port", httpServer.getAddress().getPort()));
+		}
+	}
+	
+	public synchronized void stop() throws JMException {
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpExecutor.shutdownNow();
+			httpServer = null;
+			httpExecutor = null;
+		}
+		
+		if (registeredName != null) {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(registeredName)) {
+				server.unregisterMBean(registeredName);
+			}
+			registeredName = null;
+		}
+	}
+	
+	private class PrometheusHandler implements HttpHandler {
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				
+				final StringBuilder body = new StringBuilder(4096);
+				registry.writePrometheus(body);
+				final byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+				
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, bytes.length);
+				final OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.flush();
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
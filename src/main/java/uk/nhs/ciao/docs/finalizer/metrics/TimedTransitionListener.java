@@ -0,0 +1,32 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A listener which records the time taken by a delegate listener (e.g. an action)
+ */
+public class TimedTransitionListener implements TransitionListener {
+	private final TransitionListener delegate;
+	private final Histogram duration;
+	
+	public TimedTransitionListener(final TransitionListener delegate, final Histogram duration) {
+		this.delegate = Preconditions.checkNotNull(delegate);
+		this.duration = Preconditions.checkNotNull(duration);
+	}
+	
+	@Override
+	public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+		final long startTime = System.nanoTime();
+		try {
+			delegate.onTransition(process, transition);
+		} finally {
+			duration.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+		}
+	}
+}
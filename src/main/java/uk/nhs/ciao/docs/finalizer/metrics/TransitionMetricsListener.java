@@ -0,0 +1,86 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * A listener which records transition metrics before notifying a delegate listener:
+ * <ul>
+ * <li>transitions by event</li>
+ * <li>timeouts fired by timeout type</li>
+ * <li>the time taken for a process to reach a terminal state after leaving {@link State#PARSING}</li>
+ * </ul>
+ * Only processes which leave PARSING while tracked by this node contribute to the time-to-terminal metric.
+ * Processes which stop being tracked before reaching a terminal state should be passed to {@link #untrack(String)}.
+ */
+public class TransitionMetricsListener implements TransitionListener {
+	private static final Set<Event> TIMEOUT_EVENTS = EnumSet.of(Event.DOCUMENT_PREPARATION_TIMEOUT,
+			Event.DOCUMENT_SEND_TIMEOUT, Event.INF_RESPONSE_TIMEOUT, Event.BUS_RESPONSE_TIMEOUT);
+	
+	/**
+	 * Upper bound on the number of processes timed concurrently - prevents unbounded growth if
+	 * removed processes are not untracked
+	 */
+	private static final int MAX_TIMED_PROCESSES = 100000;
+	
+	private final TransitionListener delegate;
+	private final LabelledCounter transitions;
+	private final LabelledCounter timeouts;
+	private final Histogram timeToTerminal;
+	private final ConcurrentMap<String, Long> parsedTimes = Maps.newConcurrentMap();
+	
+	public TransitionMetricsListener(final TransitionListener delegate, final MetricRegistry registry) {
+		this.delegate = Preconditions.checkNotNull(delegate);
+		
+		transitions = registry.counter("transitions_total", "State transitions by event", "event");
+		timeouts = registry.counter("timeouts_fired_total", "Timeouts fired by timeout type", "timeout");
+		timeToTerminal = registry.histogram("time_to_terminal_seconds",
+				"Time between a document leaving PARSING and reaching a terminal state",
+				1000, 5000, 30000, 60000, 300000, 900000, 3600000, 14400000, 86400000, 172800000);
+	}
+	
+	@Override
+	public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+		transitions.increment(transition.getEvent().getFileSuffix());
+		if (TIMEOUT_EVENTS.contains(transition.getEvent())) {
+			timeouts.increment(transition.getEvent().getFileSuffix());
+		}
+		
+		if (transition.getFromState() == State.PARSING && !transition.getToState().isTerminal()) {
+			if (parsedTimes.size() < MAX_TIMED_PROCESSES) {
+				parsedTimes.put(process.getCorrelationId(), transition.getTime());
+			}
+		} else if (transition.getToState().isTerminal()) {
+			final Long parsedTime = parsedTimes.remove(process.getCorrelationId());
+			if (parsedTime != null) {
+				timeToTerminal.record(Math.max(0, transition.getTime() - parsedTime));
+			}
+		}
+		
+		delegate.onTransition(process, transition);
+	}
+	
+	/**
+	 * Stops timing a process which is no longer tracked (e.g. its folder was removed before it reached a terminal state)
+	 */
+	public void untrack(final String correlationId) {
+		parsedTimes.remove(correlationId);
+	}
+
+	/**
+	 * The number of processes currently being timed
+	 */
+	public int getTimedProcessCount() {
+		return parsedTimes.size();
+	}
+}
@@ -0,0 +1,131 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import java.util.Collections;
+import java.util.Map;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Gauge;
+import uk.nhs.ciao.docs.finalizer.metrics.LabelledCounter;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.docs.finalizer.state.TimeoutScheduler;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides when the in-progress folder should be polled - adapting the poll interval to the observed
+ * arrival of event files.
+ * <p>
+ * {@link #onTimer(long)} is called every <code>minPeriod</code>. While polls keep finding new event files
+ * the interval is halved (down to <code>minPeriod</code>), and while polls find nothing new the interval is
+ * doubled (up to <code>maxPeriod</code>) - so bursts are picked up quickly without repeatedly listing a static
+ * folder tree at quiet times.
+ * <p>
+ * If a {@link TimeoutScheduler} is configured, due timeouts are processed as soon as they trigger rather
+ * than waiting for the next poll.
+ */
+public class AdaptivePollScheduler {
+	/**
+	 * Wake-up reasons published in the <code>poll_wakeups_total</code> metric
+	 */
+	public static final String REASON_INTERVAL = "interval";
+	public static final String REASON_TIMEOUT = "timeout";
+	
+	private final InProgressFolderPoller poller;
+	private long minPeriod = 250;
+	private long maxPeriod = 30000;
+	private TimeoutScheduler timeoutScheduler;
+	
+	private long interval;
+	private long nextPollTime;
+	private long lastEventFileCount;
+	
+	// metrics
+	private LabelledCounter wakeups = MetricRegistry.unregisteredCounter("reason");
+	
+	public AdaptivePollScheduler(final InProgressFolderPoller poller) {
+		this.poller = Preconditions.checkNotNull(poller);
+	}
+	
+	/**
+	 * Sets the shortest interval in millis between polls - this is also the period at which
+	 * {@link #onTimer(long)} should be called
+	 */
+	public void setMinPeriod(final long minPeriod) {
+		Preconditions.checkArgument(minPeriod > 0, "minPeriod must be positive");
+		this.minPeriod = minPeriod;
+	}
+	
+	public long getMinPeriod() {
+		return minPeriod;
+	}
+	
+	/**
+	 * Sets the longest interval in millis between polls
+	 */
+	public void setMaxPeriod(final long maxPeriod) {
+		Preconditions.checkArgument(maxPeriod > 0, "maxPeriod must be positive");
+		this.maxPeriod = maxPeriod;
+	}
+	
+	public long getMaxPeriod() {
+		return maxPeriod;
+	}
+	
+	/**
+	 * Sets the (optional) scheduler used to wake early when a timeout triggers
+	 */
+	public void setTimeoutScheduler(final TimeoutScheduler timeoutScheduler) {
+		this.timeoutScheduler = timeoutScheduler;
+	}
+	
+	/**
+	 * Registers the current poll interval and the number of wake-ups by reason with the registry
+	 */
+	public final void setMetricRegistry(final MetricRegistry registry) {
+		wakeups = registry.counter("poll_wakeups_total", "In-progress folder poller wake-ups by reason", "reason");
+		registry.gauge("poll_interval_seconds", "Current interval between in-progress folder polls", null, new Gauge.Source() {
+			@Override
+			public Map<String, Double> getValues() {
+				return Collections.singletonMap(null, getInterval() / 1000.0);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the current interval in millis between polls
+	 */
+	public synchronized long getInterval() {
+		return Math.max(minPeriod, Math.min(maxPeriod, interval));
+	}
+	
+	/**
+	 * Polls the in-progress folder if the current interval has elapsed - otherwise processes
+	 * any timeouts which have triggered
+	 *
+	 * @return The reason the poller was woken, or null if there was nothing to do
+	 */
+	public synchronized String onTimer(final long now) {
+		if (now >= nextPollTime) {
+			wakeups.increment(REASON_INTERVAL);
+			poll(now);
+			return REASON_INTERVAL;
+		} else if (timeoutScheduler != null && timeoutScheduler.getNextTrigger() <= now) {
+			wakeups.increment(REASON_TIMEOUT);
+			poller.processTimeouts(now);
+			return REASON_TIMEOUT;
+		}
+		
+		return null;
+	}
+	
+	private void poll(final long now) {
+		poller.poll(now);
+		
+		final long eventFileCount = poller.getEventFileCount();
+		final boolean active = eventFileCount != lastEventFileCount;
+		lastEventFileCount = eventFileCount;
+		
+		final long current = getInterval();
+		interval = active ? Math.max(minPeriod, current / 2) : Math.min(maxPeriod, current * 2);
+		nextPollTime = now + interval;
+	}
+}
@@ -0,0 +1,55 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Statistics of a completed backfill
+ */
+public class BackfillResult {
+	private final long folderCount;
+	private final long eventCount;
+	private final long durationNanos;
+	
+	public BackfillResult(final long folderCount, final long eventCount, final long durationNanos) {
+		this.folderCount = folderCount;
+		this.eventCount = eventCount;
+		this.durationNanos = durationNanos;
+	}
+	
+	/**
+	 * The number of process folders backfilled
+	 */
+	public long getFolderCount() {
+		return folderCount;
+	}
+	
+	/**
+	 * The number of event files replayed
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+	
+	public long getDurationMillis() {
+		return durationNanos / 1000000L;
+	}
+	
+	public long getFoldersPerSecond() {
+		return durationNanos <= 0 ? 0 : (long)(folderCount * 1000000000.0 / durationNanos);
+	}
+	
+	public long getEventsPerSecond() {
+		return durationNanos <= 0 ? 0 : (long)(eventCount * 1000000000.0 / durationNanos);
+	}
+	
+	@Override
+	public String toString() {
+		return MoreObjects.toStringHelper(this)
+				.add("folderCount", folderCount)
+				.add("eventCount", eventCount)
+				.add("durationMillis", getDurationMillis())
+				.add("foldersPerSecond", getFoldersPerSecond())
+				.add("eventsPerSecond", getEventsPerSecond())
+				.toString();
+	}
+}
@@ -0,0 +1,217 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Lists the in-progress folder tree with as few file system calls as possible.
+ * <p>
+ * The in-progress folder is listed with {@link Files#walkFileTree} - which reads the attributes of each
+ * entry once to select the sub-directories (on Linux this is one <code>lstat</code> per process folder).
+ * <p>
+ * The folder of a process is not listed itself - only its <code>control</code> and <code>events</code> folders
+ * are read (other folders such as <code>input</code> are skipped entirely). Both are read with
+ * {@link Files#newDirectoryStream(Path)}, which returns names only: event files are not queried at all (the
+ * caller only checks the few names it has not yet processed - see {@link EventFileTracker}), and the
+ * size of a control file is only read if the file is understood by the process.
+ */
+public class DirectoryScanner {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(DirectoryScanner.class);
+	private static final Set<FileVisitOption> NO_OPTIONS = Collections.unmodifiableSet(EnumSet.noneOf(FileVisitOption.class));
+	
+	private static final String CONTROL_FOLDER = "control";
+	private static final String EVENTS_FOLDER = "events";
+	private static final Set<String> CONTROL_FILE_NAMES = ImmutableSet.of(
+			DocumentTransferProcess.COMPLETED_FOLDER_FILE,
+			DocumentTransferProcess.ERROR_FOLDER_FILE,
+			DocumentTransferProcess.WANTS_INF_ACK_FILE,
+			DocumentTransferProcess.WANTS_BUS_ACK_FILE);
+	
+	private final Counter directoriesListed;
+	private final Counter entriesScanned;
+	
+	/**
+	 * Creates a new scanner which records the directories listed and entries scanned
+	 * in the specified counters
+	 */
+	public DirectoryScanner(final Counter directoriesListed, final Counter entriesScanned) {
+		this.directoriesListed = Preconditions.checkNotNull(directoriesListed);
+		this.entriesScanned = Preconditions.checkNotNull(entriesScanned);
+	}
+	
+	/**
+	 * Returns the names of the sub-directories of the directory
+	 *
+	 * @return The sub-directory names, or null if the directory could not be listed
+	 */
+	public List<String> listDirectories(final File directory) {
+		final Path root = directory.toPath();
+		final List<String> names = Lists.newArrayList();
+		final boolean[] listed = { false };
+		
+		walk(directory, 1, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) {
+				listed[0] = true;
+				directoriesListed.increment();
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+				if (!file.equals(root)) {
+					entriesScanned.increment();
+					if (attrs.isDirectory()) {
+						names.add(file.getFileName().toString());
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		
+		return listed[0] ? names : null;
+	}
+	
+	/**
+	 * Scans the control and events folders of a process folder
+	 * <p>
+	 * The names in the events folder are returned without checking their type - callers should check
+	 * that any new names refer to regular files.
+	 *
+	 * @return The files found in the process folder, or null if the process folder does not exist
+	 */
+	public ProcessFolderListing scanProcessFolder(final File processFolder) {
+		final ProcessFolderListing listing = new ProcessFolderListing();
+		final Path controlFolder = new File(processFolder, CONTROL_FOLDER).toPath();
+		final boolean controlListed = list(controlFolder, new NameVisitor() {
+			@Override
+			public void visit(final String name) {
+				if (CONTROL_FILE_NAMES.contains(name)) {
+					addControlFile(listing, controlFolder.resolve(name));
+				}
+			}
+		});
+		
+		final boolean eventsListed = list(new File(processFolder, EVENTS_FOLDER).toPath(), new NameVisitor() {
+			@Override
+			public void visit(final String name) {
+				listing.eventFileNames.add(name);
+			}
+		});
+		
+		// Only check the process folder itself if neither folder exists (e.g. a newly created process)
+		return controlListed || eventsListed || processFolder.isDirectory() ? listing : null;
+	}
+	
+	/**
+	 * Reads the names in the directory (without reading their attributes)
+	 * 
+	 * @return true if the directory was listed, or false if it could not be read (e.g. it does not exist)
+	 */
+	private boolean list(final Path directory, final NameVisitor visitor) {
+		try {
+			final DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+			try {
+				directoriesListed.increment();
+				for (final Path entry: stream) {
+					entriesScanned.increment();
+					visitor.visit(entry.getFileName().toString());
+				}
+			} finally {
+				stream.close();
+			}
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (NotDirectoryException e) {
+			return false;
+		} catch (IOException e) {
+			LOGGER.debug(logMsg("Unable to list directory")
+				.fileName(directory), e);
+			return false;
+		} catch (DirectoryIteratorException e) {
+			LOGGER.debug(logMsg("Unable to list directory")
+				.fileName(directory), e.getCause());
+			return false;
+		}
+	}
+				
+	private static void addControlFile(final ProcessFolderListing listing, final Path file) {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			if (attributes.isRegularFile()) {
+				listing.controlFileLengths.put(file.getFileName().toString(), attributes.size());
+			}
+		} catch (IOException e) {
+			// removed since the folder was listed
+		}
+	}
+	
+	private void walk(final File directory, final int maxDepth, final SimpleFileVisitor<Path> visitor) {
+		try {
+			Files.walkFileTree(directory.toPath(), NO_OPTIONS, maxDepth, visitor);
+		} catch (IOException e) {
+			LOGGER.debug(logMsg("Unable to list directory")
+				.fileName(directory), e);
+		}
+	}
+	
+	private interface NameVisitor {
+		void visit(String name);
+	}
+	
+	/**
+	 * The files found in the control and events folders of a process folder
+	 */
+	public static class ProcessFolderListing {
+		private static final String[] NO_NAMES = {};
+		
+		private final Map<String, Long> controlFileLengths = Maps.newLinkedHashMap();
+		private final List<String> eventFileNames = Lists.newArrayList();
+		
+		/**
+		 * Returns the lengths of the control files (understood by the process) keyed by file name
+		 */
+		public Map<String, Long> getControlFileLengths() {
+			return controlFileLengths;
+		}
+		
+		/**
+		 * Returns the names in the events folder - the type of each entry has not been checked
+		 */
+		public String[] getEventFileNames() {
+			return eventFileNames.isEmpty() ? NO_NAMES : eventFileNames.toArray(new String[eventFileNames.size()]);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tracks which event files of a single document transfer process have already been registered.
+ * <p>
+ * Event file names start with a fixed-width timestamp (<code>yyyyMMdd-HHmmssSSS</code>) which sorts
+ * lexically in time order. The tracker keeps the names of the latest processed files (at most
+ * {@link #MAX_TRACKED_NAMES}) in a small sorted array - once older names are dropped from the array, names
+ * stamped at or below the dropped timestamps (the floor) are treated as processed. Only the new names
+ * are sorted, and the memory of tracking a process stays bounded as its events folder grows.
+ * <p>
+ * An event file which arrives late with an earlier timestamp than a processed file (e.g. an acknowledgement
+ * from a slower producer) is still registered - unless it is stamped at or below the floor.
+ * <p>
+ * Names which do not start with a valid timestamp prefix are ignored (they would be rejected
+ * by {@link uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess#registerEventsFile(java.io.File)}).
+ */
+public class EventFileTracker {
+	/**
+	 * The maximum number of processed names held by the tracker - larger than the number of
+	 * events raised by a normal document transfer
+	 */
+	static final int MAX_TRACKED_NAMES = 16;
+	
+	/**
+	 * Length of the <code>yyyyMMdd-HHmmssSSS</code> timestamp prefix
+	 */
+	private static final int TIMESTAMP_LENGTH = 18;
+	
+	/**
+	 * Floor value used before any names have been dropped (all valid timestamps are positive)
+	 */
+	private static final long NO_FLOOR = -1;
+	private static final String[] NO_NAMES = {};
+	
+	private long floor = NO_FLOOR;
+	private String[] processedNames = NO_NAMES; // ascending order
+	
+	/**
+	 * Returns the timestamp prefix of the latest processed event file, or null if no files have been processed
+	 */
+	public synchronized String getHighWaterMark() {
+		return processedNames.length == 0 ? formatTimestampPrefix(floor)
+				: processedNames[processedNames.length - 1].substring(0, TIMESTAMP_LENGTH);
+	}
+	
+	/**
+	 * Returns the timestamp prefix at or below which all names are treated as processed, or null
+	 * if no names have been dropped
+	 */
+	public synchronized String getFloor() {
+		return formatTimestampPrefix(floor);
+	}
+	
+	/**
+	 * Returns the processed names above the floor in ascending order
+	 */
+	public synchronized List<String> getProcessedNames() {
+		return Lists.newArrayList(processedNames);
+	}
+	
+	/**
+	 * Restores a previously stored floor and processed names
+	 *
+	 * @see #getFloor()
+	 * @see #getProcessedNames()
+	 */
+	public synchronized void restore(final String floor, final Collection<String> processedNames) {
+		this.floor = floor == null ? NO_FLOOR : parseTimestampPrefix(floor);
+		this.processedNames = NO_NAMES;
+		for (final String name: processedNames) {
+			if (isNew(name)) {
+				advance(name);
+			}
+		}
+	}
+	
+	/**
+	 * Selects the names which have not previously been processed and marks them as processed
+	 *
+	 * @return The new file names in ascending time order
+	 */
+	public synchronized List<String> selectNewFileNames(final String[] fileNames) {
+		List<String> newFileNames = null;
+		for (int index = 0; index < fileNames.length; index++) {
+			final String fileName = fileNames[index];
+			if (isNew(fileName)) {
+				if (newFileNames == null) {
+					newFileNames = Lists.newArrayListWithCapacity(4);
+				}
+				newFileNames.add(fileName);
+			}
+		}
+		
+		if (newFileNames == null) {
+			return Collections.emptyList();
+		}
+		
+		// process in order of ascending time-stamps - only the new names need to be sorted
+		Collections.sort(newFileNames);
+		for (final String fileName: newFileNames) {
+			advance(fileName);
+		}
+		
+		return newFileNames;
+	}
+		
+	/**
+	 * Tests if the file has been processed (or is at or below the floor)
+	 */
+	public synchronized boolean isProcessed(final String fileName) {
+		return !isNew(fileName);
+	}
+	
+	/**
+	 * Marks a single file as processed
+	 *
+	 * @return true if the file had not previously been processed, or false otherwise
+	 */
+	public synchronized boolean markProcessed(final String fileName) {
+		if (!isNew(fileName)) {
+			return false;
+		}
+		
+		advance(fileName);
+		return true;
+	}
+	
+	private boolean isNew(final String fileName) {
+		return hasTimestampPrefix(fileName) && parseTimestampPrefix(fileName) > floor
+				&& Arrays.binarySearch(processedNames, fileName) < 0;
+	}
+	
+	/**
+	 * Records a processed name (which must be new) - dropping the oldest name into the floor if
+	 * the tracker is full
+	 */
+	private void advance(final String fileName) {
+		final int insertionPoint = -(Arrays.binarySearch(processedNames, fileName) + 1);
+		final String[] names = new String[processedNames.length + 1];
+		System.arraycopy(processedNames, 0, names, 0, insertionPoint);
+		names[insertionPoint] = fileName;
+		System.arraycopy(processedNames, insertionPoint, names, insertionPoint + 1, processedNames.length - insertionPoint);
+		
+		if (names.length <= MAX_TRACKED_NAMES) {
+			processedNames = names;
+			return;
+		}
+		
+		// the remaining names sharing the timestamp of the dropped name are now covered by the floor
+		floor = parseTimestampPrefix(names[0]);
+		int start = 1;
+		while (start < names.length && parseTimestampPrefix(names[start]) <= floor) {
+			start++;
+		}
+		processedNames = Arrays.copyOfRange(names, start, names.length);
+	}
+	
+	/**
+	 * Formats a packed timestamp as a <code>yyyyMMdd-HHmmssSSS</code> prefix
+	 */
+	private static String formatTimestampPrefix(final long timestamp) {
+		if (timestamp == NO_FLOOR) {
+			return null;
+		}
+		
+		// yyyyMMddHHmmssSSS -> yyyyMMdd-HHmmssSSS
+		final char[] chars = new char[TIMESTAMP_LENGTH];
+		long digits = timestamp;
+		for (int index = TIMESTAMP_LENGTH - 1; index >= 0; index--) {
+			if (index == 8) {
+				chars[index] = '-';
+			} else {
+				chars[index] = (char)('0' + (digits % 10));
+				digits /= 10;
+			}
+		}
+		return new String(chars);
+	}
+		
+	/**
+	 * Packs the digits of the timestamp prefix into a long - preserving the time order of the prefixes
+	 * <p>
+	 * The name must have a valid prefix (see {@link #hasTimestampPrefix(String)})
+	 */
+	private static long parseTimestampPrefix(final String fileName) {
+		long timestamp = 0;
+		for (int index = 0; index < TIMESTAMP_LENGTH; index++) {
+			if (index != 8) {
+				timestamp = timestamp * 10 + (fileName.charAt(index) - '0');
+			}
+		}
+		return timestamp;
+	}
+	
+	/**
+	 * Tests if the name starts with a <code>yyyyMMdd-HHmmssSSS-</code> prefix followed by at least one character
+	 */
+	private static boolean hasTimestampPrefix(final String fileName) {
+		if (fileName == null || fileName.length() <= TIMESTAMP_LENGTH + 1) {
+			return false;
+		}
+		
+		for (int index = 0; index <= TIMESTAMP_LENGTH; index++) {
+			final char c = fileName.charAt(index);
+			if (index == 8 || index == TIMESTAMP_LENGTH) {
+				if (c != '-') {
+					return false;
+				}
+			} else if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,19 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import uk.nhs.ciao.docs.finalizer.state.Event;
+
+/**
+ * Receives document transfer events from an {@link EventSource}
+ * 
+ * @see InProgressFolderPoller#registerEvent(String, Event, long)
+ */
+public interface EventSink {
+	/**
+	 * Registers an event of the specified document transfer process
+	 * 
+	 * @param correlationId The correlation id of the process
+	 * @param event The event which occurred
+	 * @param eventTime The time the event occurred
+	 */
+	void registerEvent(String correlationId, Event event, long eventTime);
+}
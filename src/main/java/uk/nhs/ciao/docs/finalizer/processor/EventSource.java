@@ -0,0 +1,17 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+/**
+ * A source of document transfer events which are pushed directly into an {@link EventSink}.
+ * <p>
+ * Event files in the in-progress folder remain the durable record of each process (and are still
+ * detected by {@link InProgressFolderPoller}) - an event source allows producers to deliver the same events
+ * in-memory without waiting for the file to be detected.
+ * 
+ * @see uk.nhs.ciao.docs.finalizer.route.EventSourceRoute
+ */
+public interface EventSource {
+	/**
+	 * Sets the sink to deliver events to
+	 */
+	void setEventSink(EventSink eventSink);
+}
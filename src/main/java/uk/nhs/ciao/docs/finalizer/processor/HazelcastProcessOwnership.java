@@ -0,0 +1,64 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MemberAttributeEvent;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+import com.hazelcast.core.Partition;
+
+/**
+ * Ownership strategy which partitions processes across the members of a Hazelcast cluster.
+ * <p>
+ * A process is owned by the member which owns the Hazelcast partition of its correlation id.
+ * Ownership is evaluated on each check, so processes automatically move between members as
+ * the cluster partitions are migrated (e.g. when members join or leave the cluster).
+ * <p>
+ * While a partition is being migrated (i.e. has no owner) the process is treated as locally
+ * owned - any resulting duplicate actions are suppressed by the idempotent repository.
+ */
+public class HazelcastProcessOwnership implements ProcessOwnership {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(HazelcastProcessOwnership.class);
+	
+	private final HazelcastInstance hazelcastInstance;
+	
+	public HazelcastProcessOwnership(final HazelcastInstance hazelcastInstance) {
+		this.hazelcastInstance = Preconditions.checkNotNull(hazelcastInstance);
+		
+		hazelcastInstance.getCluster().addMembershipListener(new MembershipLogger());
+	}
+	
+	@Override
+	public boolean isLocallyOwned(final String correlationId) {
+		final Partition partition = hazelcastInstance.getPartitionService().getPartition(correlationId);
+		final Member owner = partition == null ? null : partition.getOwner();
+		return owner == null || owner.localMember();
+	}
+	
+	/**
+	 * Logs cluster membership changes - which cause process ownership to be rebalanced
+	 */
+	private static class MembershipLogger implements MembershipListener {
+		@Override
+		public void memberAdded(final MembershipEvent membershipEvent) {
+			LOGGER.info(logMsg("Cluster member added - process ownership will be rebalanced")
+				.set("Member", membershipEvent.getMember()));
+		}
+		
+		@Override
+		public void memberRemoved(final MembershipEvent membershipEvent) {
+			LOGGER.info(logMsg("Cluster member removed - process ownership will be rebalanced")
+				.set("Member", membershipEvent.getMember()));
+		}
+		
+		@Override
+		public void memberAttributeChanged(final MemberAttributeEvent memberAttributeEvent) {
+			// NOOP
+		}
+	}
+}
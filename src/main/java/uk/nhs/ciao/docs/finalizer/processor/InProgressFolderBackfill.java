@@ -0,0 +1,165 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.nhs.ciao.docs.finalizer.processor.DirectoryScanner.ProcessFolderListing;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Rebuilds the state of the untracked processes of the in-progress tree in parallel.
+ * <p>
+ * The process folders are scanned by a fork-join pool - the scanned state of each process is then applied
+ * in one go on the lane of the process (if process lanes are enabled), so a replay is never interleaved
+ * with the watcher, poller or timeout threads. {@link #run(long)} only returns once every replay has been
+ * applied.
+ */
+class InProgressFolderBackfill {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(InProgressFolderBackfill.class);
+	private static final int THRESHOLD = 32;
+	
+	private final InProgressFolderPoller poller;
+	private final int parallelism;
+	private final AtomicLong folderCount = new AtomicLong();
+	private final AtomicLong eventCount = new AtomicLong();
+	private final AtomicInteger submittedCount = new AtomicInteger();
+	private final Semaphore appliedReplays = new Semaphore(0);
+	
+	/**
+	 * @param parallelism The number of threads used to scan the process folders
+	 */
+	public InProgressFolderBackfill(final InProgressFolderPoller poller, final int parallelism) {
+		Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+		this.poller = Preconditions.checkNotNull(poller);
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Backfills every root of the poller and waits for the replays to be applied
+	 *
+	 * @return The number of folders and events replayed, and the resulting throughput
+	 */
+	public BackfillResult run(final long now) {
+		final long startTime = System.nanoTime();
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			final List<ForkJoinTask<?>> tasks = Lists.newArrayList();
+			for (final File rootFolder: poller.getInProgressFolders()) {
+				final List<String> correlationIds = poller.listProcessFolders(rootFolder);
+				if (correlationIds != null) {
+					tasks.add(pool.submit(new ScanTask(rootFolder, correlationIds, 0, correlationIds.size(), now)));
+				}
+			}
+			
+			for (final ForkJoinTask<?> task: tasks) {
+				task.join();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		
+		try {
+			appliedReplays.acquire(submittedCount.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOGGER.warn(logMsg("Interrupted while waiting for the backfilled processes to be replayed"));
+		}
+		
+		final BackfillResult result = new BackfillResult(folderCount.get(), eventCount.get(), System.nanoTime() - startTime);
+		LOGGER.info(logMsg("Backfilled in-progress folder")
+			.set("FolderCount", result.getFolderCount())
+			.set("EventCount", result.getEventCount())
+			.set("DurationMillis", result.getDurationMillis())
+			.set("FoldersPerSecond", result.getFoldersPerSecond())
+			.set("EventsPerSecond", result.getEventsPerSecond()));
+		return result;
+	}
+	
+	/**
+	 * Scans a single process folder and queues the replay of its state
+	 */
+	private void backfillProcess(final File rootFolder, final String correlationId, final long now) {
+		final ProcessFolderListing listing = poller.scanUntrackedProcess(rootFolder, correlationId);
+		if (listing == null) {
+			return;
+		}
+		
+		submittedCount.incrementAndGet();
+		final Runnable replay = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final int events = poller.replayProcess(rootFolder, correlationId, listing, now);
+					if (events >= 0) {
+						folderCount.incrementAndGet();
+						eventCount.addAndGet(events);
+					}
+				} catch (RuntimeException e) {
+					LOGGER.warn(logMsg("Unable to backfill in-progress folder")
+						.documentId(correlationId)
+						.fileName(new File(rootFolder, correlationId)), e);
+				} finally {
+					appliedReplays.release();
+				}
+			}
+		};
+		
+		if (!poller.execute(correlationId, replay)) {
+			appliedReplays.release();
+		}
+	}
+	
+	/**
+	 * Scans a range of the process folders of a root - large ranges are split and scanned in parallel
+	 */
+	private class ScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final File rootFolder;
+		private final List<String> correlationIds;
+		private final int start;
+		private final int end;
+		private final long now;
+		
+		public ScanTask(final File rootFolder, final List<String> correlationIds, final int start, final int end,
+				final long now) {
+			this.rootFolder = rootFolder;
+			this.correlationIds = correlationIds;
+			this.start = start;
+			this.end = end;
+			this.now = now;
+		}
+		
+		@Override
+		protected void compute() {
+			if (end - start > THRESHOLD) {
+				final int middle = (start + end) >>> 1;
+				invokeAll(new ScanTask(rootFolder, correlationIds, start, middle, now),
+						new ScanTask(rootFolder, correlationIds, middle, end, now));
+				return;
+			}
+			
+			for (int index = start; index < end; index++) {
+				final String correlationId = correlationIds.get(index);
+				try {
+					backfillProcess(rootFolder, correlationId, now);
+				} catch (RuntimeException e) {
+					LOGGER.warn(logMsg("Unable to backfill in-progress folder")
+						.documentId(correlationId)
+						.fileName(new File(rootFolder, correlationId)), e);
+				}
+			}
+		}
+	}
+}
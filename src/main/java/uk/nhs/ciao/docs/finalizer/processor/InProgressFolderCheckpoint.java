@@ -0,0 +1,344 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.Timeout;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+/**
+ * Compact on-disk snapshot of the processes tracked by {@link InProgressFolderPoller}.
+ * <p>
+ * The snapshot stores the state, control flags, folder targets and timeouts of each process along
+ * with the event files which have been processed. After a restart the poller restores each process
+ * from the snapshot and only needs to catch up on files created after the snapshot was taken - rather
+ * than replaying every event file from {@link State#PARSING}.
+ * <p>
+ * The snapshot is written to a temporary file, forced to disk and then moved over the previous snapshot - so
+ * a crash while writing leaves the previous snapshot intact.
+ */
+class InProgressFolderCheckpoint {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(InProgressFolderCheckpoint.class);
+	
+	private static final int MAGIC = 0xC1A0F1A1;
+	private static final int VERSION = 1;
+	
+	/**
+	 * Lower bound on the stored size of an entry (the timeouts alone) - used to reject a corrupt entry count
+	 */
+	private static final int MIN_ENTRY_LENGTH = ProcessEntry.TIMEOUT_COUNT * 16;
+	
+	private final File file;
+	
+	public InProgressFolderCheckpoint(final File file) {
+		this.file = Preconditions.checkNotNull(file);
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Reads the stored snapshot
+	 *
+	 * @return The stored entries, or an empty list if no valid snapshot is available
+	 */
+	public List<ProcessEntry> read() {
+		if (!file.isFile()) {
+			return Collections.emptyList();
+		}
+		
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			final int version = in.readInt() == MAGIC ? in.readInt() : -1;
+			if (version != VERSION) {
+				LOGGER.warn(logMsg("Ignoring in-progress folder checkpoint - unsupported format")
+					.fileName(file));
+				return Collections.emptyList();
+			}
+			
+			final int count = in.readInt();
+			if (count < 0 || count > file.length() / MIN_ENTRY_LENGTH) {
+				LOGGER.warn(logMsg("Ignoring in-progress folder checkpoint - corrupt entry count")
+					.fileName(file)
+					.set("Count", count));
+				return Collections.emptyList();
+			}
+			
+			final List<ProcessEntry> entries = Lists.newArrayListWithCapacity(count);
+			for (int index = 0; index < count; index++) {
+				entries.add(readEntry(in));
+			}
+			
+			return entries;
+		} catch (IOException e) {
+			LOGGER.warn(logMsg("Unable to read in-progress folder checkpoint - all folders will be re-processed")
+				.fileName(file), e);
+			return Collections.emptyList();
+		} catch (IllegalArgumentException e) {
+			LOGGER.warn(logMsg("Unable to read in-progress folder checkpoint - all folders will be re-processed")
+				.fileName(file), e);
+			return Collections.emptyList();
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+	
+	/**
+	 * Captures the state of the tracked and terminal processes and replaces the stored snapshot
+	 */
+	public void write(final Collection<TrackedProcess> trackedProcesses,
+			final Collection<DocumentTransferProcess> terminalProcesses) throws IOException {
+		final List<ProcessEntry> entries = Lists.newArrayListWithCapacity(trackedProcesses.size() + terminalProcesses.size());
+		for (final TrackedProcess tracked: trackedProcesses) {
+			final ProcessEntry entry = new ProcessEntry(tracked.process.getCorrelationId());
+			entry.capture(tracked);
+			entries.add(entry);
+		}
+		
+		for (final DocumentTransferProcess process: terminalProcesses) {
+			final ProcessEntry entry = new ProcessEntry(process.getCorrelationId());
+			entry.capture(process);
+			entries.add(entry);
+		}
+		
+		write(entries);
+	}
+	
+	/**
+	 * Replaces the stored snapshot with the specified entries
+	 */
+	public void write(final Collection<ProcessEntry> entries) throws IOException {
+		final File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		
+		final File tempFile = new File(file.getPath() + ".tmp");
+		final FileOutputStream fileOut = new FileOutputStream(tempFile);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		boolean threw = true;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (final ProcessEntry entry: entries) {
+				writeEntry(out, entry);
+			}
+			
+			// the snapshot must be durable before it replaces the previous snapshot
+			out.flush();
+			fileOut.getFD().sync();
+			threw = false;
+		} finally {
+			Closeables.close(out, threw);
+		}
+		
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	private ProcessEntry readEntry(final DataInputStream in) throws IOException {
+		final ProcessEntry entry = new ProcessEntry(in.readUTF());
+		entry.state = State.valueOf(in.readUTF());
+		
+		final int flags = in.readByte();
+		entry.infAckWanted = (flags & 1) != 0;
+		entry.busAckWanted = (flags & 2) != 0;
+		entry.completedFolderUnread = (flags & 8) != 0;
+		entry.errorFolderUnread = (flags & 16) != 0;
+		entry.completedFolder = readNullableUTF(in);
+		entry.errorFolder = readNullableUTF(in);
+		if ((flags & 4) != 0) {
+			entry.lastEvent = Event.valueOf(in.readUTF());
+		}
+		
+		for (int index = 0; index < ProcessEntry.TIMEOUT_COUNT; index++) {
+			entry.timeoutStarts[index] = in.readLong();
+			entry.timeoutThresholds[index] = in.readLong();
+		}
+		
+		entry.eventsFloor = readNullableUTF(in);
+		final int eventCount = in.readInt();
+		for (int index = 0; index < eventCount; index++) {
+			entry.processedEvents.add(in.readUTF());
+		}
+		
+		final int controlCount = in.readInt();
+		for (int index = 0; index < controlCount; index++) {
+			entry.controlFileLengths.put(in.readUTF(), in.readLong());
+		}
+		
+		return entry;
+	}
+	
+	private void writeEntry(final DataOutputStream out, final ProcessEntry entry) throws IOException {
+		out.writeUTF(entry.correlationId);
+		out.writeUTF(entry.state.name());
+		out.writeByte((entry.infAckWanted ? 1 : 0) | (entry.busAckWanted ? 2 : 0) | (entry.lastEvent != null ? 4 : 0)
+				| (entry.completedFolderUnread ? 8 : 0) | (entry.errorFolderUnread ? 16 : 0));
+		writeNullableUTF(out, entry.completedFolder);
+		writeNullableUTF(out, entry.errorFolder);
+		if (entry.lastEvent != null) {
+			out.writeUTF(entry.lastEvent.name());
+		}
+		
+		for (int index = 0; index < ProcessEntry.TIMEOUT_COUNT; index++) {
+			out.writeLong(entry.timeoutStarts[index]);
+			out.writeLong(entry.timeoutThresholds[index]);
+		}
+		
+		writeNullableUTF(out, entry.eventsFloor);
+		out.writeInt(entry.processedEvents.size());
+		for (final String name: entry.processedEvents) {
+			out.writeUTF(name);
+		}
+		
+		out.writeInt(entry.controlFileLengths.size());
+		for (final Entry<String, Long> controlFile: entry.controlFileLengths.entrySet()) {
+			out.writeUTF(controlFile.getKey());
+			out.writeLong(controlFile.getValue());
+		}
+		
+	}
+	
+	private static String readNullableUTF(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+	
+	private static void writeNullableUTF(final DataOutputStream out, final String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+	
+	/**
+	 * Checkpointed state of a single document transfer process
+	 */
+	static class ProcessEntry {
+		static final int TIMEOUT_COUNT = 4;
+		
+		final String correlationId;
+		State state;
+		boolean infAckWanted;
+		boolean busAckWanted;
+		String completedFolder; // folder name - or the path of the unread control file
+		String errorFolder; // folder name - or the path of the unread control file
+		boolean completedFolderUnread;
+		boolean errorFolderUnread;
+		Event lastEvent;
+		final long[] timeoutStarts = new long[TIMEOUT_COUNT];
+		final long[] timeoutThresholds = new long[TIMEOUT_COUNT];
+		String eventsFloor;
+		final List<String> processedEvents = Lists.newArrayList();
+		final Map<String, Long> controlFileLengths = Maps.newHashMap();
+		
+		public ProcessEntry(final String correlationId) {
+			this.correlationId = Preconditions.checkNotNull(correlationId);
+		}
+		
+		/**
+		 * Captures the current state of the process and the files which have been processed
+		 */
+		void capture(final TrackedProcess tracked) {
+			// The tracker lock ensures the recorded events match the captured process state
+			synchronized (tracked.eventFileTracker) {
+				eventsFloor = tracked.eventFileTracker.getFloor();
+				processedEvents.addAll(tracked.eventFileTracker.getProcessedNames());
+				capture(tracked.process);
+			}
+			tracked.captureControlFileLengths(controlFileLengths);
+		}
+		
+		/**
+		 * Captures the current state of the process - folder control files which have not yet been
+		 * read are stored by path (rather than being read by the checkpoint)
+		 */
+		void capture(final DocumentTransferProcess process) {
+			state = process.getState();
+			infAckWanted = process.isInfAckWanted();
+			busAckWanted = process.isBusAckWanted();
+			lastEvent = process.getLastEvent();
+			
+			final File completedFolderFile = process.getUnreadCompletedFolderFile();
+			completedFolderUnread = completedFolderFile != null;
+			completedFolder = completedFolderUnread ? completedFolderFile.getPath() : process.getResolvedCompletedFolder();
+			
+			final File errorFolderFile = process.getUnreadErrorFolderFile();
+			errorFolderUnread = errorFolderFile != null;
+			errorFolder = errorFolderUnread ? errorFolderFile.getPath() : process.getResolvedErrorFolder();
+			
+			final Timeout[] timeouts = getTimeouts(process);
+			for (int index = 0; index < TIMEOUT_COUNT; index++) {
+				timeoutStarts[index] = timeouts[index].getStart();
+				timeoutThresholds[index] = timeouts[index].getThreshold();
+			}
+		}
+		
+		/**
+		 * Restores the captured state into the process and the files which have been processed - without
+		 * notifying any transition listeners
+		 */
+		void restore(final TrackedProcess tracked) {
+			restore(tracked.process);
+			tracked.eventFileTracker.restore(eventsFloor, processedEvents);
+			tracked.restoreControlFileLengths(controlFileLengths);
+		}
+		
+		/**
+		 * Restores the captured state into the process - without notifying any transition listeners
+		 */
+		void restore(final DocumentTransferProcess process) {
+			process.restore(state, completedFolderUnread ? null : completedFolder, errorFolderUnread ? null : errorFolder,
+					infAckWanted, busAckWanted, lastEvent);
+			if (completedFolderUnread) {
+				process.registerControlFile(new File(completedFolder));
+			}
+			if (errorFolderUnread) {
+				process.registerControlFile(new File(errorFolder));
+			}
+			
+			final Timeout[] timeouts = getTimeouts(process);
+			for (int index = 0; index < TIMEOUT_COUNT; index++) {
+				timeouts[index].setThreshold(timeoutThresholds[index]);
+				if (timeoutStarts[index] > 0) {
+					timeouts[index].start(timeoutStarts[index]);
+				}
+			}
+		}
+		
+		private static Timeout[] getTimeouts(final DocumentTransferProcess process) {
+			return new Timeout[] {
+				process.getDocumentPreparationTimeout(),
+				process.getDocumentSendTimeout(),
+				process.getInfResponseTimeout(),
+				process.getBusResponseTimeout()
+			};
+		}
+	}
+}
@@ -3,133 +3,1005 @@ package uk.nhs.ciao.docs.finalizer.processor;
 import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
 
 import java.io.File;
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.metrics.Gauge;
+import uk.nhs.ciao.docs.finalizer.metrics.Histogram;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.docs.finalizer.metrics.TransitionMetricsListener;
+import uk.nhs.ciao.docs.finalizer.processor.DirectoryScanner.ProcessFolderListing;
+import uk.nhs.ciao.docs.finalizer.processor.InProgressFolderCheckpoint.ProcessEntry;
+import uk.nhs.ciao.docs.finalizer.repository.BatchIdempotentRepository;
+import uk.nhs.ciao.docs.finalizer.state.AsyncTransitionListener;
 import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
 import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcessFactory;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.EventFileNameParser;
+import uk.nhs.ciao.docs.finalizer.state.ProcessLanes;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.TimeoutScheduler;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
 import uk.nhs.ciao.logging.CiaoLogger;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-public class InProgressFolderPoller {
+/**
+ * Tracks the document transfer processes stored in the in-progress folders.
+ * <p>
+ * The full folder tree is scanned by {@link #poll(long)}. Alternatively, individual files (or events from an
+ * {@link EventSource}) can be pushed into the poller as they are detected - in which case {@link #poll(long)}
+ * only needs to be called occasionally as a safety net for missed changes. Each event is only applied once.
+ * <p>
+ * Methods may be called concurrently from multiple threads: process mutations are synchronised by
+ * {@link DocumentTransferProcess}, or run on the lane of the process if {@link ProcessLanes} are configured.
+ * Each root folder is scanned on its own thread, and the processes of a root are partitioned into shards which
+ * are scanned in parallel when more than one worker is configured. Only processes owned by the local node
+ * (see {@link ProcessOwnership}) are tracked, and a correlation id found in more than one root is only
+ * processed in the root where it was tracked first.
+ * <p>
+ * The remaining work is delegated: {@link InProgressFolderCheckpoint} stores the tracked state between restarts,
+ * {@link TerminalProcesses} keeps the processes which have reached a terminal state until their folder is
+ * removed, and {@link InProgressFolderBackfill} rebuilds the state of a whole tree.
+ */
+public class InProgressFolderPoller implements EventSink {
 	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(InProgressFolderPoller.class);
 	
 	private final DocumentTransferProcessFactory factory;
-	private final File inProgressFolder;
-	private final Map<String, DocumentTransferState> stateByCorrelationId = Maps.newHashMap();
+	private final Root[] roots;
+	private volatile Shard[] shards = { new Shard() };
+	private ExecutorService executorService;
+	private volatile ProcessOwnership ownership = new LocalProcessOwnership();
+	private volatile BatchIdempotentRepository idempotentRepository;
+	private volatile TransitionMetricsListener transitionMetrics;
+	private InProgressFolderCheckpoint checkpoint;
+	private long checkpointPeriod = 60000;
+	private volatile long lastCheckpointTime;
+	private volatile boolean restored;
+	private final TerminalProcesses terminalProcesses = new TerminalProcesses();
+	private int backfillThreads;
+	private volatile boolean backfillPending;
 	
-	public InProgressFolderPoller(final DocumentTransferProcessFactory factory, final File inProgressFolder) {
+	// metrics
+	private Counter eventFilesRegistered = MetricRegistry.unregisteredCounter();
+	
+	public InProgressFolderPoller(final DocumentTransferProcessFactory factory, final File... inProgressFolders) {
 		this.factory = Preconditions.checkNotNull(factory);
-		this.inProgressFolder = Preconditions.checkNotNull(inProgressFolder);
+		Preconditions.checkArgument(inProgressFolders.length > 0, "at least one inProgressFolder is required");
+		
+		this.roots = new Root[inProgressFolders.length];
+		for (int index = 0; index < roots.length; index++) {
+			roots[index] = new Root(index, Preconditions.checkNotNull(inProgressFolders[index]));
+		}
+	}
+	
+	/**
+	 * Parses a comma separated list of in-progress folders (e.g. from a property value)
+	 */
+	public static File[] parseFolders(final String inProgressFolders) {
+		final List<File> folders = Lists.newArrayList();
+		for (final String path: Splitter.on(',').trimResults().omitEmptyStrings().split(inProgressFolders)) {
+			folders.add(new File(path));
+		}
+		return folders.toArray(new File[folders.size()]);
+	}
+	
+	/**
+	 * Returns the first (or only) in-progress root folder
+	 */
+	public File getInProgressFolder() {
+		return roots[0].folder;
+	}
+	
+	/**
+	 * Returns all in-progress root folders tracked by the poller
+	 */
+	public List<File> getInProgressFolders() {
+		final List<File> folders = Lists.newArrayListWithCapacity(roots.length);
+		for (final Root root: roots) {
+			folders.add(root.folder);
+		}
+		return folders;
+	}
+	
+	/**
+	 * Sets the number of worker threads (and shards) used to scan the in-progress folder.
+	 * <p>
+	 * This should be configured before the first poll. A single worker scans all folders
+	 * on the calling thread.
+	 */
+	public synchronized void setWorkerCount(final int workerCount) {
+		Preconditions.checkArgument(workerCount > 0, "workerCount must be positive");
+		Preconditions.checkState(getProcessCount() == 0 && getTombstoneCount() == 0,
+				"workerCount cannot be changed while processes are tracked");
+		
+		close();
+		
+		final Shard[] newShards = new Shard[workerCount];
+		for (int index = 0; index < newShards.length; index++) {
+			newShards[index] = new Shard();
+		}
+		shards = newShards;
+		
+		if (workerCount > 1) {
+			executorService = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder()
+					.setNameFormat("inProgressFolderPoller-%d")
+					.setDaemon(true)
+					.build());
+		}
+	}
+	
+	/**
+	 * Sets the strategy used to determine which processes are tracked by this node
+	 */
+	public void setOwnership(final ProcessOwnership ownership) {
+		this.ownership = Preconditions.checkNotNull(ownership);
+	}
+	
+	/**
+	 * Sets the repository whose claims should expire when a process folder is removed
+	 */
+	public void setIdempotentRepository(final BatchIdempotentRepository idempotentRepository) {
+		this.idempotentRepository = idempotentRepository;
+	}
+	
+	/**
+	 * Sets the (optional) transition metrics which should stop timing processes once they are no longer tracked
+	 */
+	public void setTransitionMetrics(final TransitionMetricsListener transitionMetrics) {
+		this.transitionMetrics = transitionMetrics;
+	}
+	
+	/**
+	 * Registers the poller metrics (poll duration, folders scanned and processes by state) with the registry
+	 * <p>
+	 * When multiple roots are configured, the poll duration and folder scan metrics are labelled by root.
+	 */
+	public final void setMetricRegistry(final MetricRegistry registry) {
+		for (final Root root: roots) {
+			root.setMetricRegistry(registry, roots.length > 1);
+		}
+		eventFilesRegistered = registry.counter("poll_event_files_total",
+				"New event files (or pushed events) registered with the tracked processes");
+		registry.gauge("processes", "Tracked document transfer processes by state", "state", new Gauge.Source() {
+			@Override
+			public Map<String, Integer> getValues() {
+				return getProcessCountByState();
+			}
+		});
+		terminalProcesses.setMetricRegistry(registry);
+	}
+	
+	/**
+	 * Sets the (optional) listener used to retry the actions of terminal processes whose folder has not
+	 * been removed - this should notify the actions directly (i.e. without any idempotent check)
+	 */
+	public void setRetryListener(final TransitionListener retryListener) {
+		terminalProcesses.setRetryListener(retryListener);
+	}
+	
+	/**
+	 * Sets the minimum time in millis between retries of the actions of a terminal process
+	 */
+	public void setTombstoneRetryPeriod(final long tombstoneRetryPeriod) {
+		terminalProcesses.setRetryPeriod(tombstoneRetryPeriod);
+	}
+	
+	/**
+	 * Sets the (optional) lanes which run the actions of each process - the actions of a terminal process
+	 * are only retried once its pending actions have completed, and the retry is run on the same lane
+	 */
+	public void setActionLanes(final AsyncTransitionListener actionLanes) {
+		terminalProcesses.setActionLanes(actionLanes);
+	}
+	
+	/**
+	 * Sets the number of threads used by the backfill run by the first poll (zero disables the backfill)
+	 */
+	public synchronized void setBackfillThreads(final int backfillThreads) {
+		Preconditions.checkArgument(backfillThreads >= 0, "backfillThreads must not be negative");
+		this.backfillThreads = backfillThreads;
+		this.backfillPending = backfillThreads > 0;
+	}
+	
+	/**
+	 * Sets the file used to checkpoint the tracked state (an empty path disables checkpointing)
+	 */
+	public void setCheckpointFile(final String checkpointFile) {
+		this.checkpoint = Strings.isNullOrEmpty(checkpointFile) ? null
+				: new InProgressFolderCheckpoint(new File(checkpointFile));
+	}
+	
+	/**
+	 * Sets the minimum time in millis between checkpoints
+	 */
+	public void setCheckpointPeriod(final long checkpointPeriod) {
+		this.checkpointPeriod = checkpointPeriod;
+	}
+	
+	/**
+	 * Stops any worker threads started by the poller and stores a final checkpoint
+	 */
+	public synchronized void close() {
+		if (executorService != null) {
+			executorService.shutdownNow();
+			executorService = null;
+		}
+		
+		for (final Root root: roots) {
+			root.close();
+		}
+		
+		if (restored) {
+			writeCheckpoint();
+		}
 	}
 	
+	/**
+	 * Returns the number of (non-terminal) document transfer processes currently being tracked
+	 */
+	public int getProcessCount() {
+		int count = 0;
+		for (final Shard shard: shards) {
+			count += shard.stateByCorrelationId.size();
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the number of terminal processes whose folder has not yet been removed
+	 */
+	public int getTombstoneCount() {
+		return terminalProcesses.size();
+	}
+	
+	/**
+	 * Returns the number of new event files registered with the tracked processes
+	 * (e.g. to detect whether a poll found any activity)
+	 */
+	public long getEventFileCount() {
+		return eventFilesRegistered.getValue();
+	}
+	
+	/**
+	 * Returns the number of tracked document transfer processes in each state
+	 */
+	public Map<String, Integer> getProcessCountByState() {
+		final int[] counts = new int[State.values().length];
+		for (final Shard shard: shards) {
+			for (final TrackedProcess state: shard.stateByCorrelationId.values()) {
+				counts[state.process.getState().ordinal()]++;
+			}
+		}
+		for (final DocumentTransferProcess process: terminalProcesses.getProcesses()) {
+			counts[process.getState().ordinal()]++;
+		}
+		
+		final Map<String, Integer> countByState = Maps.newLinkedHashMap();
+		for (final State state: State.values()) {
+			countByState.put(state.name(), counts[state.ordinal()]);
+		}
+		return countByState;
+	}
+	
+	/**
+	 * Scans the full in-progress folder tree and processes any triggered timeouts
+	 * <p>
+	 * A single root is scanned on the calling thread. Multiple roots are each scanned on the
+	 * thread of the root - without waiting for the scans to complete.
+	 */
 	public void poll(final long now) {
-		final String[] correlationIds = inProgressFolder.list();
+		if (!restored) {
+			restoreCheckpoint();
+		}
 		
-		if (correlationIds != null) {
-			for (int index = 0; index < correlationIds.length; index++) {
-				final String correlationId = correlationIds[index];
-				final File processDirectory = new File(inProgressFolder, correlationId);
-				if (!processDirectory.isDirectory()) {
-					continue;
-				}
+		if (backfillPending) {
+			runPendingBackfill(now);
+		}
+		
+		if (roots.length == 1) {
+			pollRoot(roots[0]);
+		} else {
+			for (final Root root: roots) {
+				root.submitPoll();
+			}
+		}
+		
+		processTimeouts(now);
+		
+		if (checkpoint != null && now - lastCheckpointTime >= checkpointPeriod) {
+			lastCheckpointTime = now;
+			writeCheckpoint();
+		}
+	}
 	
-				if (LOGGER.isDebugEnabled()) {
-					LOGGER.debug(logMsg("Processing in-progress folder")
-						.documentId(correlationId)
-						.fileName(processDirectory));
-				}
+	private synchronized void runPendingBackfill(final long now) {
+		if (backfillPending) {
+			backfillPending = false;
+			backfill(now, backfillThreads);
+		}
+	}
 	
-				DocumentTransferState state = stateByCorrelationId.get(correlationId);
-				if (state == null) {
-					final DocumentTransferProcess process = factory.createDocumentTransferProcess(correlationId, processDirectory);
-					state = new DocumentTransferState(process);
-					stateByCorrelationId.put(correlationId, state);
-				}
+	/**
+	 * Rebuilds the state of every untracked process in the in-progress tree in parallel.
+	 * <p>
+	 * Intermediate transitions are not notified - listeners are only notified for processes which end in
+	 * a terminal state, or whose timeouts are overdue at <code>now</code>. Processes which are already tracked
+	 * (e.g. restored from the checkpoint) are skipped.
+	 * 
+	 * @param parallelism The number of threads used to scan the process folders
+	 * @return The number of folders and events replayed, and the resulting throughput
+	 * @see InProgressFolderBackfill
+	 */
+	public BackfillResult backfill(final long now, final int parallelism) {
+		if (!restored) {
+			restoreCheckpoint();
+		}
+		
+		return new InProgressFolderBackfill(this, parallelism).run(now);
+	}
 	
-				processControlFiles(state.process, state.processedFileNames);
-				processEventFiles(state.process, state.processedFileNames);
+	/**
+	 * Lists the process folders of the specified root
+	 * 
+	 * @return The correlation ids, or null if the root could not be listed
+	 */
+	List<String> listProcessFolders(final File rootFolder) {
+		final Root root = getRoot(rootFolder);
+		return root.scanner.listDirectories(root.folder);
+	}
+		
+	/**
+	 * Scans the folder of a process to be backfilled
+	 * 
+	 * @return The folder listing, or null if the process is already tracked (or should not be backfilled)
+	 */
+	ProcessFolderListing scanUntrackedProcess(final File rootFolder, final String correlationId) {
+		if (!ownership.isLocallyOwned(correlationId) || getShard(correlationId).stateByCorrelationId.containsKey(correlationId)
+				|| terminalProcesses.contains(correlationId)) {
+			return null;
+		}
+		
+		return getRoot(rootFolder).scanner.scanProcessFolder(new File(rootFolder, correlationId));
+	}
+	
+	/**
+	 * Rebuilds the state of a single untracked process from a folder listing - this should be
+	 * run on the lane of the process (see {@link #execute(String, Runnable)})
+	 * 
+	 * @return The number of event files replayed, or -1 if the process was tracked concurrently
+	 */
+	int replayProcess(final File rootFolder, final String correlationId, final ProcessFolderListing listing,
+			final long now) {
+		final File processDirectory = new File(rootFolder, correlationId);
+		final DocumentTransferProcess process = factory.createDocumentTransferProcess(correlationId, processDirectory);
+		final TrackedProcess state = new TrackedProcess(rootFolder, process);
+		if (terminalProcesses.contains(correlationId)
+				|| getShard(correlationId).stateByCorrelationId.putIfAbsent(correlationId, state) != null) {
+			// tracked concurrently (or in another root)
+			process.cancelTimeouts();
+			return -1;
+		}
+		
+		processControlFiles(state, listing);
+		
+		final File eventsFolder = new File(processDirectory, "events");
+		final List<String> fileNames;
+		synchronized (state.eventFileTracker) {
+			fileNames = selectNewEventFiles(state, eventsFolder, listing.getEventFileNames());
+			eventFilesRegistered.increment(fileNames.size());
+			process.replayEventsFiles(eventsFolder, fileNames);
+		}
+		
+		process.processTimeouts(now);
+		retireIfTerminal(state);
+		return fileNames.size();
+	}
+	
+	/**
+	 * Scans the folder tree of a single in-progress root
+	 */
+	private void pollRoot(final Root root) {
+		final long startTime = System.nanoTime();
+		final List<String> correlationIds = root.scanner.listDirectories(root.folder);
+		final Shard[] currentShards = shards;
+		
+		// Partition the listing by shard
+		final List<List<String>> correlationIdsByShard = Lists.newArrayListWithCapacity(currentShards.length);
+		for (int index = 0; index < currentShards.length; index++) {
+			correlationIdsByShard.add(Lists.<String>newArrayList());
+		}
+		
+		if (correlationIds != null) {
+			for (final String correlationId: correlationIds) {
+				correlationIdsByShard.get(getShardIndex(correlationId, currentShards.length)).add(correlationId);
 			}
 		}
 		
-		// Clean state map (i.e. remove entries with no matching in-progress folder)
-		if (!stateByCorrelationId.isEmpty()) {
-			if (correlationIds == null) {
-				stateByCorrelationId.clear();
-			} else {
-				stateByCorrelationId.keySet().retainAll(Arrays.asList(correlationIds));
+		final ExecutorService workers = executorService;
+		if (workers == null || currentShards.length == 1) {
+			for (int index = 0; index < currentShards.length; index++) {
+				pollShard(root, currentShards[index], correlationIdsByShard.get(index));
 			}
-		}		
-
-		if (!stateByCorrelationId.isEmpty()) {
-			for (final DocumentTransferState state : stateByCorrelationId.values()) {
-				processTimeouts(now, state.process);
+		} else {
+			final List<Future<?>> futures = Lists.newArrayListWithCapacity(currentShards.length);
+			for (int index = 0; index < currentShards.length; index++) {
+				final Shard shard = currentShards[index];
+				final List<String> shardCorrelationIds = correlationIdsByShard.get(index);
+				futures.add(workers.submit(new Runnable() {
+					@Override
+					public void run() {
+						pollShard(root, shard, shardCorrelationIds);
+					}
+				}));
+			}
+			
+			if (!awaitAll(root, futures)) {
+				return;
 			}
 		}
+		
+		final Set<String> activeCorrelationIds = correlationIds == null ? Collections.<String>emptySet()
+				: Sets.newHashSet(correlationIds);
+		expireClaims(terminalProcesses.removeUntracked(root.folder, activeCorrelationIds, ownership));
+		
+		root.pollDuration.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
 	}
-
-	private void processControlFiles(final DocumentTransferProcess process,
-			final Set<String> processedFileNames) {
-		final File controlDirectory = new File(process.getRootFolder(), "control");
-		if (!controlDirectory.isDirectory()) {
+	
+	/**
+	 * Restores the tracked state from the checkpoint (if configured) - only processes
+	 * which still have a matching in-progress folder are restored
+	 */
+	private synchronized void restoreCheckpoint() {
+		if (restored) {
+			return;
+		} else if (checkpoint == null) {
+			restored = true;
 			return;
 		}
 		
-		final String[] fileNames = controlDirectory.list();
-		for (int index = 0; index < fileNames.length; index++) {
-			final String fileName = fileNames[index];
-			if (processedFileNames.contains(fileNames)) {
+		int count = 0;
+		for (final ProcessEntry entry: checkpoint.read()) {
+			final Root root = findRoot(entry.correlationId);
+			if (root == null || !ownership.isLocallyOwned(entry.correlationId)) {
 				continue;
 			}
 			
-			processedFileNames.add(fileName);
+			final File processDirectory = new File(root.folder, entry.correlationId);
+			final DocumentTransferProcess process = factory.createDocumentTransferProcess(entry.correlationId, processDirectory);
+			final TrackedProcess state = new TrackedProcess(root.folder, process);
+			entry.restore(state);
 			
-			final File controlFile = new File(controlDirectory, fileName);
-			if (controlFile.isFile()) {
-				process.registerControlFile(controlFile);
+			if (entry.state.isTerminal()) {
+				process.cancelTimeouts();
+				if (terminalProcesses.restore(root.folder, process)) {
+					count++;
+				}
+				continue;
+			}
+			
+			if (getShard(entry.correlationId).stateByCorrelationId.putIfAbsent(entry.correlationId, state) == null) {
+				count++;
+			} else {
+				process.cancelTimeouts();
 			}
 		}
+		
+		LOGGER.info(logMsg("Restored in-progress folder checkpoint")
+			.fileName(checkpoint.getFile())
+			.set("ProcessCount", count));
+		
+		restored = true;
 	}
 	
-	private void processEventFiles(final DocumentTransferProcess process, final Set<String> processedFileNames) {
-		final File eventsDirectory = new File(process.getRootFolder(), "events");
-		if (!eventsDirectory.isDirectory()) {
+	/**
+	 * Stores the tracked state in the checkpoint (if configured)
+	 */
+	private synchronized void writeCheckpoint() {
+		if (checkpoint == null) {
 			return;
 		}
 		
-		final String[] fileNames = eventsDirectory.list();
-		if (fileNames.length == 0) {
+		final List<TrackedProcess> trackedProcesses = Lists.newArrayListWithCapacity(getProcessCount());
+		for (final Shard shard: shards) {
+			trackedProcesses.addAll(shard.stateByCorrelationId.values());
+		}
+		
+		try {
+			checkpoint.write(trackedProcesses, terminalProcesses.getProcesses());
+		} catch (IOException e) {
+			LOGGER.warn(logMsg("Unable to write in-progress folder checkpoint")
+				.fileName(checkpoint.getFile()), e);
+		}
+	}
+	
+	/**
+	 * Scans the processes of a single shard of a root and stops tracking any processes in the shard
+	 * of the root which no longer have a matching in-progress folder
+	 */
+	private void pollShard(final Root root, final Shard shard, final List<String> correlationIds) {
+		for (final String correlationId: correlationIds) {
+			pollProcess(root, correlationId);
+		}
+		
+		// Clean state map (i.e. remove entries with no matching in-progress folder or owned by another node)
+		// and retire any processes which have reached a terminal state (e.g. by a timeout)
+		if (!shard.stateByCorrelationId.isEmpty()) {
+			final Set<String> activeCorrelationIds = Sets.newHashSet(correlationIds);
+			final List<String> removedCorrelationIds = Lists.newArrayList();
+			for (final Entry<String, TrackedProcess> entry: shard.stateByCorrelationId.entrySet()) {
+				final String correlationId = entry.getKey();
+				if (!root.folder.equals(entry.getValue().rootFolder)) {
+					continue;
+				} else if (!activeCorrelationIds.contains(correlationId)) {
+					untrackProcess(correlationId);
+					removedCorrelationIds.add(correlationId);
+				} else if (!ownership.isLocallyOwned(correlationId)) {
+					untrackProcess(correlationId);
+				} else {
+					retireIfTerminal(entry.getValue());
+				}
+			}
+			
+			
+			expireClaims(removedCorrelationIds);
+		}
+	}
+		
+	/**
+	 * Waits for all shards to be polled
+	 *
+	 * @return true if all shards completed, or false if the calling thread was interrupted
+	 */
+	private boolean awaitAll(final Root root, final List<Future<?>> futures) {
+		for (final Future<?> future: futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				LOGGER.error(logMsg("Unable to poll in-progress folder shard")
+					.fileName(root.folder), e.getCause());
+			} catch (CancellationException e) {
+				// poller has been closed
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Scans the control and events folders of a single document transfer process
+	 */
+	public void pollProcess(final String correlationId) {
+		pollProcess(null, correlationId);
+	}
+	
+	/**
+	 * Scans the control and events folders of a single document transfer process
+	 * 
+	 * @param root The root containing the process folder, or null if the root should be located
+	 */
+	private void pollProcess(final Root root, final String correlationId) {
+		execute(correlationId, new Runnable() {
+			@Override
+			public void run() {
+				// the scan determines whether the process folder exists
+				final TrackedProcess state = getState(root, correlationId, false);
+				if (state == null) {
+					return;
+				}
+		
+				final ProcessFolderListing listing = getRoot(state.rootFolder).scanner.scanProcessFolder(state.process.getRootFolder());
+				if (listing == null) {
+					return;
+				}
+				
+				processControlFiles(state, listing);
+				processEventFiles(state, listing);
+				retireIfTerminal(state);
+			}
+		});
+	}
+	
+	/**
+	 * Registers a single (newly detected) control file of a document transfer process
+	 * <p>
+	 * Control files are re-read each time they are registered - allowing content
+	 * written after the file was created to be picked up. Files which are not understood
+	 * by the process are ignored.
+	 */
+	public void registerControlFile(final String correlationId, final String fileName) {
+		final int controlFileIndex = TrackedProcess.getControlFileIndex(fileName);
+		if (controlFileIndex < 0) {
 			return;
 		}
 		
-		/*
-		 * process in order of ascending time-stamps
-		 * the format of file-names allows a lexical sort to be used
-		 */
-		Arrays.sort(fileNames);
+		execute(correlationId, new Runnable() {
+			@Override
+			public void run() {
+				final TrackedProcess state = getState(correlationId);
+				if (state == null) {
+					return;
+				}
+		
+				final File controlFile = new File(new File(state.process.getRootFolder(), "control"), fileName);
+				if (controlFile.isFile()) {
+					state.updateControlFileLength(controlFileIndex, controlFile.length());
+					state.process.registerControlFile(controlFile);
+				}
+				retireIfTerminal(state);
+			}
+		});
+	}
+	
+	/**
+	 * Registers a single (newly detected) event file of a document transfer process
+	 * <p>
+	 * The event is ignored if the file has previously been registered
+	 * 
+	 * @see EventFileTracker
+	 */
+	public void registerEventsFile(final String correlationId, final String fileName) {
+		execute(correlationId, new Runnable() {
+			@Override
+			public void run() {
+				final TrackedProcess state = getState(correlationId);
+				if (state == null) {
+					return;
+				}
+		
+				synchronized (state.eventFileTracker) {
+					if (!state.eventFileTracker.markProcessed(fileName)) {
+						return;
+					}
+		
+					final File eventFile = new File(new File(state.process.getRootFolder(), "events"), fileName);
+					if (eventFile.isFile()) {
+						eventFilesRegistered.increment();
+						state.process.registerEventsFile(eventFile);
+					}
+				}
+				retireIfTerminal(state);
+			}
+		});
+	}
+	
+	/**
+	 * Registers an event pushed by an {@link EventSource}
+	 * <p>
+	 * The event is ignored if the equivalent event file (or event) has previously been registered, or if
+	 * the process folder does not exist - the event will then be registered when the file is detected.
+	 * The event is only recorded as processed if it moves the process into a new state - an event which
+	 * arrives before an earlier event file has been polled is applied again (in order) from its file.
+	 * 
+	 * @see EventFileNameParser#format(long, Event)
+	 */
+	@Override
+	public void registerEvent(final String correlationId, final Event event, final long eventTime) {
+		final String fileName = EventFileNameParser.format(eventTime, event);
 		
-		for (int index = 0; index < fileNames.length; index++) {
-			final String fileName = fileNames[index];
+		execute(correlationId, new Runnable() {
+			@Override
+			public void run() {
+				final TrackedProcess state = getState(correlationId);
+				if (state == null) {
+					LOGGER.debug(logMsg("Unable to register event - the process folder is not tracked by this node")
+						.documentId(correlationId)
+						.eventName(event.getFileSuffix()));
+					return;
+				}
+				
+				synchronized (state.eventFileTracker) {
+					if (!state.eventFileTracker.isProcessed(fileName)
+							&& state.process.registerEvent(event, eventTime)) {
+						state.eventFileTracker.markProcessed(fileName);
+						eventFilesRegistered.increment();
+					}
+				}
+				retireIfTerminal(state);
+			}
+		});
+	}
+	
+	/**
+	 * Runs the task on the lane of the process if process lanes are enabled (so that the scan and
+	 * resulting mutations are applied together by a single thread) - otherwise on the calling thread
+	 * 
+	 * @return true if the task was run or queued, or false if it was discarded (the lanes have been closed)
+	 */
+	boolean execute(final String correlationId, final Runnable task) {
+		final ProcessLanes lanes = factory.getProcessLanes();
+		if (lanes == null) {
+			task.run();
+			return true;
+		} else {
+			return lanes.execute(correlationId, task);
+		}
+	}
+	
+	/**
+	 * Stops tracking the specified document transfer process after the folder has been removed
+	 */
+	public void removeProcess(final String correlationId) {
+		untrackProcess(correlationId);
+		expireClaims(Collections.singletonList(correlationId));
+	}
+	
+	private void untrackProcess(final String correlationId) {
+		final Shard shard = getShard(correlationId);
+		final TrackedProcess state = shard.stateByCorrelationId.remove(correlationId);
+		if (state != null) {
+			state.process.cancelTimeouts();
 			
-			/*
-			 * Ignore any processed files
-			 * (it may be more efficient to strip processed files prior to sorting)
-			 */
-			if (processedFileNames.contains(fileNames)) {
+			final TransitionMetricsListener metrics = transitionMetrics;
+			if (metrics != null) {
+				metrics.untrack(correlationId);
+			}
+		}
+		terminalProcesses.remove(correlationId);
+	}
+	
+	/**
+	 * Replaces the tracked state of a process which has reached a terminal state with a tombstone
+	 */
+	private void retireIfTerminal(final TrackedProcess state) {
+		if (!state.process.getState().isTerminal()) {
+			return;
+		}
+		
+		final String correlationId = state.process.getCorrelationId();
+		final Shard shard = getShard(correlationId);
+		if (shard.stateByCorrelationId.remove(correlationId, state)) {
+			terminalProcesses.retire(state.rootFolder, state.process);
+		}
+	}
+	
+	/**
+	 * Drops the tombstones of terminal processes whose folder has been removed, and retries the actions
+	 * of any terminal processes whose folder remains (at most once per retry period)
+	 * 
+	 * @see TerminalProcesses#sweep(long)
+	 */
+	public void sweepTombstones(final long now) {
+		expireClaims(terminalProcesses.sweep(now));
+	}
+	
+	/**
+	 * Schedules the idempotent claims of removed processes to expire (if a repository is configured)
+	 */
+	private void expireClaims(final List<String> correlationIds) {
+		final BatchIdempotentRepository repository = idempotentRepository;
+		if (repository == null || correlationIds.isEmpty()) {
+			return;
+		}
+		
+		try {
+			repository.expire(correlationIds);
+		} catch (RuntimeException e) {
+			LOGGER.warn(logMsg("Unable to expire idempotent claims of removed processes")
+				.set("ProcessCount", correlationIds.size()), e);
+		}
+	}
+	
+	/**
+	 * Processes any triggered timeouts of all tracked document transfer processes
+	 * <p>
+	 * If the processes are registered with a {@link TimeoutScheduler}, only the
+	 * processes with due timeouts are visited.
+	 */
+	public void processTimeouts(final long now) {
+		final TimeoutScheduler timeoutScheduler = factory.getTimeoutScheduler();
+		if (timeoutScheduler != null) {
+			timeoutScheduler.processTimeouts(now);
+		} else {
+			for (final Shard shard: shards) {
+				for (final TrackedProcess state : shard.stateByCorrelationId.values()) {
+					processTimeouts(now, state.process);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the tracked state associated with the specified correlation id - creating a new
+	 * entry if required.
+	 *
+	 * @return The associated state, or null if the correlation id does not refer to a locally owned process folder
+	 */
+	private TrackedProcess getState(final String correlationId) {
+		return getState(null, correlationId, true);
+	}
+	
+	/**
+	 * Returns the tracked state associated with the specified correlation id - creating a new
+	 * entry if required.
+	 *
+	 * @param root The root containing the process folder, or null if the root should be located
+	 * @param checkDirectory true if the process folder should be checked - false if the caller
+	 * 			checks the folder itself (e.g. by listing it)
+	 * @return The associated state, or null if the correlation id does not refer to a locally owned process folder
+	 * 			(or the process is already tracked in another root)
+	 */
+	private TrackedProcess getState(final Root root, final String correlationId, final boolean checkDirectory) {
+		if (!ownership.isLocallyOwned(correlationId)) {
+			return null;
+		}
+		
+		final Shard shard = getShard(correlationId);
+		if (terminalProcesses.contains(correlationId)) {
+			// terminal - the folder is not scanned again
+			return null;
+		}
+		
+		final ConcurrentMap<String, TrackedProcess> stateByCorrelationId = shard.stateByCorrelationId;
+		TrackedProcess state = stateByCorrelationId.get(correlationId);
+		if (state != null) {
+			if (checkDirectory && !state.process.getRootFolder().isDirectory()) {
+				return null;
+			}
+			return isTrackedInRoot(state, root) ? state : null;
+		}
+		
+		final Root processRoot = root != null ? root : findRoot(correlationId);
+		if (processRoot == null) {
+			return null;
+		}
+		
+		final File processDirectory = new File(processRoot.folder, correlationId);
+		if (checkDirectory && !processDirectory.isDirectory()) {
+			return null;
+		}
+	
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(logMsg("Processing in-progress folder")
+				.documentId(correlationId)
+				.fileName(processDirectory));
+		}
+	
+		final DocumentTransferProcess process = factory.createDocumentTransferProcess(correlationId, processDirectory);
+		state = new TrackedProcess(processRoot.folder, process);
+	
+		final TrackedProcess existing = stateByCorrelationId.putIfAbsent(correlationId, state);
+		if (existing != null) {
+			return isTrackedInRoot(existing, root) ? existing : null;
+		}
+		
+		return state;
+	}
+	
+	/**
+	 * Checks that a tracked process belongs to the specified root - a duplicate folder
+	 * with the same correlation id in another root is reported (once) and ignored
+	 */
+	private boolean isTrackedInRoot(final TrackedProcess state, final Root root) {
+		if (root == null || root.folder.equals(state.rootFolder)) {
+			return true;
+		}
+		
+		if (!state.duplicateReported) {
+			state.duplicateReported = true;
+			LOGGER.warn(logMsg("Ignoring duplicate in-progress folder - the correlation id is already tracked in another root")
+				.documentId(state.process.getCorrelationId())
+				.fileName(new File(root.folder, state.process.getCorrelationId())));
+		}
+		return false;
+	}
+	
+	/**
+	 * Finds the root containing the folder of the specified process
+	 * <p>
+	 * With a single root the folder is assumed to be in that root - otherwise each root is checked in turn.
+	 * 
+	 * @return The matching root, or null if no root contains the process folder
+	 */
+	private Root findRoot(final String correlationId) {
+		if (roots.length == 1) {
+			return roots[0];
+		}
+		
+		for (final Root root: roots) {
+			if (new File(root.folder, correlationId).isDirectory()) {
+				return root;
+			}
+		}
+		return null;
+	}
+	
+	private Shard getShard(final String correlationId) {
+		final Shard[] currentShards = shards;
+		return currentShards[getShardIndex(correlationId, currentShards.length)];
+	}
+	
+	/**
+	 * Returns the configured root with the specified folder
+	 */
+	private Root getRoot(final File folder) {
+		for (final Root root: roots) {
+			if (root.folder.equals(folder)) {
+				return root;
+			}
+		}
+		throw new IllegalArgumentException("Unknown in-progress root folder: " + folder);
+	}
+	
+	private static int getShardIndex(final String correlationId, final int shardCount) {
+		return (correlationId.hashCode() & Integer.MAX_VALUE) % shardCount;
+	}
+	
+	/**
+	 * Registers any new control files - or any control files whose length has changed
+	 * (e.g. if the contents were written after the file was first detected)
+	 */
+	private void processControlFiles(final TrackedProcess state, final ProcessFolderListing listing) {
+		for (final Entry<String, Long> controlFile: listing.getControlFileLengths().entrySet()) {
+			final int controlFileIndex = TrackedProcess.getControlFileIndex(controlFile.getKey());
+			if (controlFileIndex < 0) {
 				continue;
 			}
 			
-			processedFileNames.add(fileName);
-			
-			final File eventFile = new File(eventsDirectory, fileName);
-			if (eventFile.isFile()) {
-				process.registerEventsFile(eventFile);
+			if (state.updateControlFileLength(controlFileIndex, controlFile.getValue())) {
+				final File controlDirectory = new File(state.process.getRootFolder(), "control");
+				state.process.registerControlFile(new File(controlDirectory, controlFile.getKey()));
+			}
+		}
+	}
+	
+	/**
+	 * Registers any new event files in order of ascending time-stamps
+	 * 
+	 * @see EventFileTracker
+	 */
+	private void processEventFiles(final TrackedProcess state, final ProcessFolderListing listing) {
+		final String[] fileNames = listing.getEventFileNames();
+		if (fileNames.length == 0) {
+			return;
+		}
+		
+		final File eventsFolder = new File(state.process.getRootFolder(), "events");
+		synchronized (state.eventFileTracker) {
+			final List<String> newFileNames = selectNewEventFiles(state, eventsFolder, fileNames);
+			eventFilesRegistered.increment(newFileNames.size());
+			state.process.registerEventsFiles(eventsFolder, newFileNames);
+		}
+	}
+	
+	/**
+	 * Selects the names which have not been processed by the tracker and which refer to regular files
+	 * <p>
+	 * The folder listing does not read the type of each entry - so only the new names are checked here.
+	 */
+	private static List<String> selectNewEventFiles(final TrackedProcess state, final File eventsFolder,
+			final String[] fileNames) {
+		final List<String> newFileNames = state.eventFileTracker.selectNewFileNames(fileNames);
+		for (final Iterator<String> iterator = newFileNames.iterator(); iterator.hasNext();) {
+			if (!new File(eventsFolder, iterator.next()).isFile()) {
+				iterator.remove();
 			}
 		}
+		return newFileNames;
 	}
 	
 	private void processTimeouts(final long now, final DocumentTransferProcess process) {
@@ -137,15 +1009,94 @@ public class InProgressFolderPoller {
 	}
 	
 	/**
-	 * Maintains state of an in-progress document transfer and previously processed files
+	 * An in-progress root folder - when multiple roots are configured, each root is
+	 * scanned on a separate thread and has separate metrics
 	 */
-	private static class DocumentTransferState {
-		final DocumentTransferProcess process;
-		final Set<String> processedFileNames;
+	private class Root {
+		final int index;
+		final File folder;
+		private final AtomicBoolean polling = new AtomicBoolean();
+		private ExecutorService executor;
 		
-		public DocumentTransferState(final DocumentTransferProcess process) {
-			this.process = Preconditions.checkNotNull(process);
-			this.processedFileNames = Sets.newHashSet();
+		// metrics
+		Histogram pollDuration = MetricRegistry.unregisteredHistogram();
+		DirectoryScanner scanner = new DirectoryScanner(MetricRegistry.unregisteredCounter(),
+				MetricRegistry.unregisteredCounter());
+		
+		public Root(final int index, final File folder) {
+			this.index = index;
+			this.folder = folder;
+		}
+		
+		public void setMetricRegistry(final MetricRegistry registry, final boolean labelled) {
+			final String histogramName = "poll_duration_seconds";
+			final String histogramHelp = "Duration of full in-progress folder polls";
+			final String directoriesName = "poll_directories_listed_total";
+			final String directoriesHelp = "Directories listed while polling the in-progress folder";
+			final String entriesName = "poll_entries_scanned_total";
+			final String entriesHelp = "Directory entries scanned while polling the in-progress folder";
+			
+			if (labelled) {
+				final String label = folder.getPath();
+				pollDuration = registry.histogram(histogramName, histogramHelp, "root").get(label);
+				scanner = new DirectoryScanner(registry.counter(directoriesName, directoriesHelp, "root").get(label),
+						registry.counter(entriesName, entriesHelp, "root").get(label));
+			} else {
+				pollDuration = registry.histogram(histogramName, histogramHelp);
+				scanner = new DirectoryScanner(registry.counter(directoriesName, directoriesHelp),
+						registry.counter(entriesName, entriesHelp));
+			}
+		}
+		
+		/**
+		 * Scans the root on the thread of the root - unless the previous scan is still running
+		 */
+		public void submitPoll() {
+			if (!polling.compareAndSet(false, true)) {
+				LOGGER.debug(logMsg("Skipping poll of in-progress folder - the previous poll is still running")
+					.fileName(folder));
+				return;
+			}
+			
+			try {
+				getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							pollRoot(Root.this);
+						} finally {
+							polling.set(false);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// poller has been closed
+				polling.set(false);
+			}
+		}
+		
+		private synchronized ExecutorService getExecutor() {
+			if (executor == null) {
+				executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+						.setNameFormat("inProgressFolderRoot-" + index)
+						.setDaemon(true)
+						.build());
+			}
+			return executor;
 		}
+		
+		public synchronized void close() {
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+	}
+	
+	/**
+	 * A partition of the tracked processes - each shard is polled by a single worker
+	 */
+	private static class Shard {
+		final ConcurrentMap<String, TrackedProcess> stateByCorrelationId = Maps.newConcurrentMap();
 	}
 }
@@ -0,0 +1,234 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.camel.support.ServiceSupport;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Watches the in-progress folder for changes via a {@link WatchService} and pushes newly
+ * detected control and event files into the associated {@link InProgressFolderPoller}.
+ * <p>
+ * The root folder, each process folder and the <code>control</code> and <code>events</code>
+ * sub-folders of each process are registered with the watch service. Only the changed entries
+ * are registered with the poller - the full tree is only re-scanned if the watch service reports
+ * an overflow. The poller should still be polled at a low frequency as a safety net for any
+ * changes which are not reported by the underlying file system.
+ * <p>
+ * If the poller tracks multiple in-progress roots, a separate watcher (and thread) is used for each root.
+ */
+public class InProgressFolderWatcher extends ServiceSupport {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(InProgressFolderWatcher.class);
+	
+	private final InProgressFolderPoller poller;
+	private final Path rootFolder;
+	private final ConcurrentMap<WatchKey, WatchedFolder> watchedFolders = Maps.newConcurrentMap();
+	private volatile WatchService watchService;
+	private volatile Thread thread;
+	
+	public InProgressFolderWatcher(final InProgressFolderPoller poller) {
+		this(poller, poller.getInProgressFolder());
+	}
+	
+	/**
+	 * Creates a watcher for one of the in-progress root folders tracked by the poller
+	 */
+	public InProgressFolderWatcher(final InProgressFolderPoller poller, final File rootFolder) {
+		this.poller = Preconditions.checkNotNull(poller);
+		this.rootFolder = rootFolder.toPath();
+	}
+	
+	@Override
+	protected void doStart() throws Exception {
+		watchService = rootFolder.getFileSystem().newWatchService();
+		
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "inProgressFolderWatcher-" + rootFolder.getFileName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@Override
+	protected void doStop() throws Exception {
+		final WatchService service = watchService;
+		watchService = null;
+		
+		if (service != null) {
+			service.close();
+		}
+		
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		
+		watchedFolders.clear();
+	}
+	
+	private void watch() {
+		final WatchService service = watchService;
+		if (service == null) {
+			return;
+		}
+		
+		try {
+			registerAll(service);
+			
+			while (watchService == service) {
+				final WatchKey key = service.take();
+				processEvents(service, key);
+			}
+		} catch (ClosedWatchServiceException e) {
+			// normal shutdown
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			LOGGER.error(logMsg("In-progress folder watcher has failed - changes will only be detected by polling")
+				.fileName(rootFolder.toFile()), e);
+		}
+	}
+	
+	/**
+	 * Registers the full in-progress folder tree with the watch service and scans
+	 * each process folder to pick up any files created prior to registration
+	 */
+	private void registerAll(final WatchService service) {
+		register(service, rootFolder, null, FolderType.ROOT);
+		
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(rootFolder)) {
+			for (final Path processFolder: stream) {
+				registerProcess(service, processFolder.getFileName().toString());
+			}
+		} catch (IOException e) {
+			LOGGER.warn(logMsg("Unable to list in-progress folder")
+				.fileName(rootFolder.toFile()), e);
+		}
+	}
+	
+	private void registerProcess(final WatchService service, final String correlationId) {
+		final Path processFolder = rootFolder.resolve(correlationId);
+		if (!Files.isDirectory(processFolder)) {
+			return;
+		}
+		
+		register(service, processFolder, correlationId, FolderType.PROCESS);
+		register(service, processFolder.resolve("control"), correlationId, FolderType.CONTROL);
+		register(service, processFolder.resolve("events"), correlationId, FolderType.EVENTS);
+		
+		// Pick up any files created before the folders were registered
+		poller.pollProcess(correlationId);
+	}
+	
+	private void register(final WatchService service, final Path folder, final String correlationId,
+			final FolderType type) {
+		if (!Files.isDirectory(folder)) {
+			return;
+		}
+		
+		try {
+			final WatchKey key;
+			if (type == FolderType.CONTROL) {
+				key = folder.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+			} else {
+				key = folder.register(service, ENTRY_CREATE, ENTRY_DELETE);
+			}
+			watchedFolders.put(key, new WatchedFolder(correlationId, type));
+		} catch (IOException e) {
+			LOGGER.warn(logMsg("Unable to watch in-progress folder - changes will only be detected by polling")
+				.documentId(correlationId)
+				.fileName(folder.toFile()), e);
+		}
+	}
+	
+	private void processEvents(final WatchService service, final WatchKey key) {
+		final WatchedFolder folder = watchedFolders.get(key);
+		
+		for (final WatchEvent<?> event: key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				LOGGER.info(logMsg("In-progress folder watcher overflowed - rescanning all folders")
+					.fileName(rootFolder.toFile()));
+				registerAll(service);
+				continue;
+			} else if (folder == null) {
+				continue;
+			}
+			
+			final String fileName = ((Path)event.context()).getFileName().toString();
+			switch (folder.type) {
+			case ROOT:
+				if (event.kind() == ENTRY_DELETE) {
+					poller.removeProcess(fileName);
+				} else {
+					registerProcess(service, fileName);
+				}
+				break;
+			
+			case PROCESS:
+				if (event.kind() == ENTRY_CREATE && ("control".equals(fileName) || "events".equals(fileName))) {
+					register(service, rootFolder.resolve(folder.correlationId).resolve(fileName),
+							folder.correlationId, "control".equals(fileName) ? FolderType.CONTROL : FolderType.EVENTS);
+					poller.pollProcess(folder.correlationId);
+				}
+				break;
+			
+			case CONTROL:
+				poller.registerControlFile(folder.correlationId, fileName);
+				break;
+			
+			case EVENTS:
+				if (event.kind() == ENTRY_CREATE) {
+					poller.registerEventsFile(folder.correlationId, fileName);
+				}
+				break;
+			}
+		}
+		
+		if (!key.reset()) {
+			// The folder is no longer accessible (e.g. it has been moved/deleted)
+			watchedFolders.remove(key);
+		}
+	}
+	
+	private enum FolderType {
+		ROOT,
+		PROCESS,
+		CONTROL,
+		EVENTS;
+	}
+	
+	/**
+	 * Details of a folder registered with the watch service
+	 */
+	private static class WatchedFolder {
+		final String correlationId;
+		final FolderType type;
+		
+		public WatchedFolder(final String correlationId, final FolderType type) {
+			this.correlationId = correlationId;
+			this.type = Preconditions.checkNotNull(type);
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+/**
+ * Ownership strategy for a single node - all processes are owned locally
+ */
+public class LocalProcessOwnership implements ProcessOwnership {
+	@Override
+	public boolean isLocallyOwned(final String correlationId) {
+		return true;
+	}
+}
@@ -0,0 +1,14 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+/**
+ * Determines which document transfer processes should be tracked by the local node.
+ * <p>
+ * When multiple nodes monitor the same in-progress folder, each process can be owned by
+ * a single node - so that adding nodes adds capacity rather than duplicated work.
+ */
+public interface ProcessOwnership {
+	/**
+	 * Tests if the process with the specified correlation id is owned by the local node
+	 */
+	boolean isLocallyOwned(final String correlationId);
+}
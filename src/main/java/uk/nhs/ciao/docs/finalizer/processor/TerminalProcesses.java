@@ -0,0 +1,270 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.metrics.Gauge;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.docs.finalizer.state.AsyncTransitionListener;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The terminal processes retired by {@link InProgressFolderPoller} whose folder has not yet been removed.
+ * <p>
+ * Only the process itself is kept (as a tombstone) so that its actions can be retried if the folder is
+ * not moved. A tombstone only becomes eligible for a retry once the actions already raised for the process
+ * have completed (or failed) - and retries are run on the same action lane as the original actions, so
+ * at most one attempt to move a folder is in flight at any time.
+ */
+class TerminalProcesses {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(TerminalProcesses.class);
+	
+	private final ConcurrentMap<String, Tombstone> tombstones = Maps.newConcurrentMap();
+	private volatile TransitionListener retryListener;
+	private volatile long retryPeriod = 300000;
+	private volatile AsyncTransitionListener actionLanes;
+	
+	// metrics
+	private Counter retries = MetricRegistry.unregisteredCounter();
+	
+	/**
+	 * Sets the listener used to retry the actions of terminal processes - this should notify the actions
+	 * directly (i.e. without any idempotent check)
+	 */
+	public void setRetryListener(final TransitionListener retryListener) {
+		this.retryListener = retryListener;
+	}
+	
+	/**
+	 * Sets the minimum time in millis between the completion of an attempt and the next retry
+	 */
+	public void setRetryPeriod(final long retryPeriod) {
+		this.retryPeriod = retryPeriod;
+	}
+	
+	/**
+	 * Sets the lanes which run the actions of each process - retries are queued behind any pending actions
+	 */
+	public void setActionLanes(final AsyncTransitionListener actionLanes) {
+		this.actionLanes = actionLanes;
+	}
+	
+	public void setMetricRegistry(final MetricRegistry registry) {
+		retries = registry.counter("terminal_retries_total", "Retried actions of terminal processes whose folder was not removed");
+		registry.gauge("terminal_processes", "Terminal processes waiting for their folder to be removed", null, new Gauge.Source() {
+			@Override
+			public Map<String, Integer> getValues() {
+				return Collections.singletonMap(null, size());
+			}
+		});
+	}
+	
+	public int size() {
+		return tombstones.size();
+	}
+	
+	public boolean contains(final String correlationId) {
+		return tombstones.containsKey(correlationId);
+	}
+	
+	public Collection<DocumentTransferProcess> getProcesses() {
+		final List<DocumentTransferProcess> processes = Lists.newArrayListWithCapacity(tombstones.size());
+		for (final Tombstone tombstone: tombstones.values()) {
+			processes.add(tombstone.process);
+		}
+		return processes;
+	}
+	
+	/**
+	 * Keeps a tombstone for a process which has just reached a terminal state
+	 * <p>
+	 * The tombstone is eligible for a retry once the actions queued for the process have been run.
+	 */
+	public void retire(final File rootFolder, final DocumentTransferProcess process) {
+		final Tombstone tombstone = new Tombstone(rootFolder, process);
+		tombstones.put(process.getCorrelationId(), tombstone);
+		awaitPendingActions(tombstone);
+	}
+	
+	/**
+	 * Keeps a tombstone for a terminal process restored from a checkpoint
+	 * <p>
+	 * Any incomplete actions resumed by the transition journal are queued on the same lane - so the tombstone
+	 * is only eligible for a retry once a full retry period has passed after the queued actions.
+	 *
+	 * @return true if the tombstone was added, or false if the process was already retired
+	 */
+	public boolean restore(final File rootFolder, final DocumentTransferProcess process) {
+		final Tombstone tombstone = new Tombstone(rootFolder, process);
+		if (tombstones.putIfAbsent(process.getCorrelationId(), tombstone) != null) {
+			return false;
+		}
+		
+		awaitPendingActions(tombstone);
+		return true;
+	}
+	
+	public void remove(final String correlationId) {
+		tombstones.remove(correlationId);
+	}
+	
+	/**
+	 * Drops the tombstones of a root whose folder is no longer listed or which are owned by another node
+	 *
+	 * @return The correlation ids whose folder has been removed
+	 */
+	public List<String> removeUntracked(final File rootFolder, final Set<String> activeCorrelationIds,
+			final ProcessOwnership ownership) {
+		final List<String> removedCorrelationIds = Lists.newArrayList();
+		for (final Entry<String, Tombstone> entry: tombstones.entrySet()) {
+			final String correlationId = entry.getKey();
+			if (!rootFolder.equals(entry.getValue().rootFolder)) {
+				continue;
+			} else if (!activeCorrelationIds.contains(correlationId)) {
+				if (tombstones.remove(correlationId, entry.getValue())) {
+					removedCorrelationIds.add(correlationId);
+				}
+			} else if (!ownership.isLocallyOwned(correlationId)) {
+				tombstones.remove(correlationId, entry.getValue());
+			}
+		}
+		return removedCorrelationIds;
+	}
+	
+	/**
+	 * Drops the tombstones whose folder has been removed, and retries the actions of any eligible
+	 * processes whose folder remains
+	 * <p>
+	 * Actions are retried by notifying the retry listener of a transition from the terminal state to itself,
+	 * triggered by the event which originally moved the process into the terminal state.
+	 *
+	 * @return The correlation ids whose folder has been removed
+	 */
+	public List<String> sweep(final long now) {
+		final List<String> removedCorrelationIds = Lists.newArrayList();
+		for (final Entry<String, Tombstone> entry: tombstones.entrySet()) {
+			final Tombstone tombstone = entry.getValue();
+			if (!tombstone.process.getRootFolder().isDirectory()) {
+				if (tombstones.remove(entry.getKey(), tombstone)) {
+					removedCorrelationIds.add(entry.getKey());
+				}
+			} else if (retryListener != null && now - tombstone.lastAttemptTime >= retryPeriod
+					&& tombstone.pending.compareAndSet(false, true)) {
+				retryActions(tombstone);
+			}
+		}
+		return removedCorrelationIds;
+	}
+	
+	/**
+	 * Marks the tombstone as pending until the actions already queued for the process have been run
+	 */
+	private void awaitPendingActions(final Tombstone tombstone) {
+		tombstone.pending.set(true);
+		execute(tombstone, new Runnable() {
+			@Override
+			public void run() {
+				tombstone.attemptCompleted();
+			}
+		});
+	}
+	
+	private void retryActions(final Tombstone tombstone) {
+		execute(tombstone, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// the folder may have been moved by an action which completed after the sweep
+					final DocumentTransferProcess process = tombstone.process;
+					if (tombstones.get(process.getCorrelationId()) == tombstone && process.getRootFolder().isDirectory()) {
+						notifyRetryListener(process);
+					}
+				} finally {
+					tombstone.attemptCompleted();
+				}
+			}
+		});
+	}
+	
+	private void notifyRetryListener(final DocumentTransferProcess process) {
+		final TransitionListener listener = retryListener;
+		final Event event = process.getLastEvent();
+		if (listener == null || event == null) {
+			return;
+		}
+		
+		retries.increment();
+		LOGGER.info(logMsg("Retrying actions of terminal process - the in-progress folder has not been removed")
+			.documentId(process.getCorrelationId())
+			.state(process.getState())
+			.fileName(process.getRootFolder()));
+		
+		try {
+			listener.onTransition(process, new Transition(process.getState(), process.getState(), event,
+					System.currentTimeMillis()));
+		} catch (RuntimeException e) {
+			LOGGER.warn(logMsg("Unable to retry actions of terminal process")
+				.documentId(process.getCorrelationId())
+				.state(process.getState()), e);
+		}
+	}
+	
+	/**
+	 * Runs the task on the action lane of the process (if configured) - otherwise on the calling thread
+	 */
+	private void execute(final Tombstone tombstone, final Runnable task) {
+		final AsyncTransitionListener lanes = actionLanes;
+		if (lanes == null) {
+			task.run();
+			return;
+		}
+		
+		try {
+			lanes.execute(tombstone.process.getCorrelationId(), task);
+		} catch (IllegalStateException e) {
+			// the action lanes have been closed - the tombstone stays pending until the next restart
+			LOGGER.debug(logMsg("Unable to queue terminal process on the action lanes")
+				.documentId(tombstone.process.getCorrelationId()), e);
+		}
+	}
+	
+	/**
+	 * A process which has reached a terminal state
+	 */
+	private static class Tombstone {
+		final File rootFolder;
+		final DocumentTransferProcess process;
+		final AtomicBoolean pending = new AtomicBoolean();
+		volatile long lastAttemptTime;
+		
+		public Tombstone(final File rootFolder, final DocumentTransferProcess process) {
+			this.rootFolder = rootFolder;
+			this.process = process;
+		}
+		
+		/**
+		 * Records that the last action (or retry) has completed - starting the retry period
+		 */
+		public void attemptCompleted() {
+			lastAttemptTime = System.currentTimeMillis();
+			pending.set(false);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Maintains state of an in-progress document transfer tracked by {@link InProgressFolderPoller} and
+ * the files which have previously been processed
+ * <p>
+ * Only the control files understood by the process are tracked - their lengths are held
+ * in a small array (indexed by {@link #getControlFileIndex(String)}) rather than a map.
+ */
+class TrackedProcess {
+	private static final String[] CONTROL_FILE_NAMES = {
+		DocumentTransferProcess.COMPLETED_FOLDER_FILE,
+		DocumentTransferProcess.ERROR_FOLDER_FILE,
+		DocumentTransferProcess.WANTS_INF_ACK_FILE,
+		DocumentTransferProcess.WANTS_BUS_ACK_FILE
+	};
+	private static final long UNKNOWN_LENGTH = -1;
+	
+	/**
+	 * The in-progress root folder containing the process folder
+	 */
+	final File rootFolder;
+	final DocumentTransferProcess process;
+	final EventFileTracker eventFileTracker;
+	private final long[] controlFileLengths;
+	volatile boolean duplicateReported;
+	
+	public TrackedProcess(final File rootFolder, final DocumentTransferProcess process) {
+		this.rootFolder = Preconditions.checkNotNull(rootFolder);
+		this.process = Preconditions.checkNotNull(process);
+		this.eventFileTracker = new EventFileTracker();
+		this.controlFileLengths = new long[CONTROL_FILE_NAMES.length];
+		Arrays.fill(controlFileLengths, UNKNOWN_LENGTH);
+	}
+	
+	/**
+	 * Returns the index of the named control file, or -1 if the file is not understood by the process
+	 */
+	public static int getControlFileIndex(final String fileName) {
+		for (int index = 0; index < CONTROL_FILE_NAMES.length; index++) {
+			if (CONTROL_FILE_NAMES[index].equals(fileName)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Records the current length of a control file
+	 * 
+	 * @return true if the length has changed since the file was last recorded
+	 */
+	public synchronized boolean updateControlFileLength(final int controlFileIndex, final long length) {
+		final long previous = controlFileLengths[controlFileIndex];
+		controlFileLengths[controlFileIndex] = length;
+		return previous != length;
+	}
+	
+	public synchronized void captureControlFileLengths(final Map<String, Long> lengths) {
+		for (int index = 0; index < controlFileLengths.length; index++) {
+			if (controlFileLengths[index] != UNKNOWN_LENGTH) {
+				lengths.put(CONTROL_FILE_NAMES[index], controlFileLengths[index]);
+			}
+		}
+	}
+	
+	public synchronized void restoreControlFileLengths(final Map<String, Long> lengths) {
+		for (final Entry<String, Long> entry: lengths.entrySet()) {
+			final int controlFileIndex = getControlFileIndex(entry.getKey());
+			if (controlFileIndex >= 0) {
+				controlFileLengths[controlFileIndex] = entry.getValue();
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.util.Collections;
+import java.util.Map;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.metrics.Gauge;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Base class for repositories which expire claims and record eviction statistics
+ * <p>
+ * The claims of active uploads are never evicted - if only active uploads remain once the eligible
+ * records have been evicted, the repository is allowed to grow past its maximum size and the overflow
+ * is logged and counted instead.
+ */
+public abstract class AbstractBatchIdempotentRepository implements BatchIdempotentRepository {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(AbstractBatchIdempotentRepository.class);
+	
+	private volatile long expiryPeriod = 3600000;
+	private volatile long purgePeriod = 60000;
+	private volatile boolean overflowing;
+	
+	// statistics
+	protected volatile Counter expiredCount = MetricRegistry.unregisteredCounter();
+	protected volatile Counter evictedCount = MetricRegistry.unregisteredCounter();
+	protected volatile Counter overflowCount = MetricRegistry.unregisteredCounter();
+	
+	/**
+	 * Sets the time in millis to retain the claims of a process after it reaches a terminal state (or its folder is removed)
+	 */
+	public void setExpiryPeriod(final long expiryPeriod) {
+		Preconditions.checkArgument(expiryPeriod >= 0, "expiryPeriod must not be negative");
+		this.expiryPeriod = expiryPeriod;
+	}
+	
+	public long getExpiryPeriod() {
+		return expiryPeriod;
+	}
+	
+	/**
+	 * Sets the minimum time in millis between purges of expired claims
+	 */
+	public void setPurgePeriod(final long purgePeriod) {
+		Preconditions.checkArgument(purgePeriod > 0, "purgePeriod must be positive");
+		this.purgePeriod = purgePeriod;
+	}
+	
+	public long getPurgePeriod() {
+		return purgePeriod;
+	}
+	
+	/**
+	 * Registers the repository statistics (tracked processes, expired and evicted records) with the registry
+	 */
+	public final void setMetricRegistry(final MetricRegistry registry) {
+		registry.gauge("idempotent_repository_processes", "Processes with claims held by the local idempotent repository",
+				null, new Gauge.Source() {
+			@Override
+			public Map<String, Long> getValues() {
+				return Collections.singletonMap(null, getProcessCount());
+			}
+		});
+		expiredCount = registry.counter("idempotent_repository_expired_total",
+				"Process claim records removed from the idempotent repository after expiring");
+		evictedCount = registry.counter("idempotent_repository_evicted_total",
+				"Process claim records of terminal processes evicted from the idempotent repository to bound its size");
+		overflowCount = registry.counter("idempotent_repository_overflow_total",
+				"Checks which found the idempotent repository over its maximum size with only active processes left to evict");
+	}
+	
+	/**
+	 * The number of processes with claims held by the local repository
+	 */
+	public abstract long getProcessCount();
+	
+	/**
+	 * The number of process records removed after expiring
+	 */
+	public long getExpiredCount() {
+		return expiredCount.getValue();
+	}
+	
+	/**
+	 * The number of process records evicted (before expiring) to keep the repository within its maximum size
+	 */
+	public long getEvictedCount() {
+		return evictedCount.getValue();
+	}
+	
+	/**
+	 * The number of times the repository was found over its maximum size with only active processes left to evict
+	 */
+	public long getOverflowCount() {
+		return overflowCount.getValue();
+	}
+
+	/**
+	 * Records whether the repository is over its maximum size once the eligible records have been evicted - a
+	 * warning is logged when the repository first overflows
+	 *
+	 * @return true if the repository is over its maximum size
+	 */
+	protected boolean checkOverflow(final long processCount, final long maxProcesses) {
+		if (processCount <= maxProcesses) {
+			overflowing = false;
+			return false;
+		}
+		
+		overflowCount.increment();
+		if (!overflowing) {
+			overflowing = true;
+			LOGGER.warn(logMsg("Idempotent repository is over its maximum size - the claims of active processes are retained")
+				.set("ProcessCount", processCount)
+				.set("MaxSize", maxProcesses));
+		}
+		return true;
+	}
+}
@@ -0,0 +1,35 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * A repository of claimed transitions which can claim many keys in a single operation.
+ * <p>
+ * Unlike {@link org.apache.camel.spi.IdempotentRepository} (one call per key), implementations backed by
+ * a remote store should claim the whole batch in a single round-trip.
+ * <p>
+ * Claims are grouped by process. The claims of a process are kept while the process is active, and expire
+ * a configured period after the process reaches a terminal state (or its folder has been removed) - so the
+ * repository only holds the claims of active and recently completed processes.
+ */
+public interface BatchIdempotentRepository {
+	/**
+	 * Attempts to claim each of the specified keys
+	 * <p>
+	 * Claiming a transition to a terminal state schedules the claims of the process to expire.
+	 *
+	 * @return The keys which were successfully claimed by this call (i.e. had not previously been claimed)
+	 */
+	Set<IdempotentKey> claim(final Collection<IdempotentKey> keys);
+	
+	/**
+	 * Releases a previously claimed key - allowing it to be claimed again (e.g. after the associated action failed)
+	 */
+	void release(final IdempotentKey key);
+	
+	/**
+	 * Schedules the claims of the specified processes to expire (e.g. once their folders have been removed)
+	 */
+	void expire(final Collection<String> correlationIds);
+}
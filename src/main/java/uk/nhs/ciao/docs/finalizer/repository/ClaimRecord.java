@@ -0,0 +1,124 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * The transitions claimed for a single document transfer process, and the time at which
+ * the claims expire.
+ * <p>
+ * Transitions are held as packed codes (see {@link IdempotentKey#getTransitionCode()}) and serialized
+ * as three ordinal bytes each.
+ */
+class ClaimRecord implements IdentifiedDataSerializable {
+	/**
+	 * Expiry time of records whose process is still active
+	 */
+	static final long NEVER = Long.MAX_VALUE;
+	
+	private static final int[] NO_TRANSITIONS = {};
+	
+	private int[] transitionCodes = NO_TRANSITIONS;
+	private long expiryTime = NEVER;
+	
+	/**
+	 * @return true if the transition was claimed, or false if it had already been claimed
+	 */
+	public boolean claim(final int transitionCode) {
+		if (indexOf(transitionCode) >= 0) {
+			return false;
+		}
+	
+		transitionCodes = Arrays.copyOf(transitionCodes, transitionCodes.length + 1);
+		transitionCodes[transitionCodes.length - 1] = transitionCode;
+		return true;
+	}
+	
+	public boolean release(final int transitionCode) {
+		final int index = indexOf(transitionCode);
+		if (index < 0) {
+			return false;
+		}
+		
+		final int[] remaining = new int[transitionCodes.length - 1];
+		System.arraycopy(transitionCodes, 0, remaining, 0, index);
+		System.arraycopy(transitionCodes, index + 1, remaining, index, remaining.length - index);
+		transitionCodes = remaining;
+		return true;
+	}
+	
+	public boolean isEmpty() {
+		return transitionCodes.length == 0;
+	}
+	
+	/**
+	 * Schedules the record to expire at the specified time - an earlier expiry time is retained
+	 */
+	public void expireAt(final long time) {
+		expiryTime = Math.min(expiryTime, time);
+	}
+	
+	public boolean isExpired(final long now) {
+		return expiryTime <= now;
+	}
+	
+	public long getExpiryTime() {
+		return expiryTime;
+	}
+	
+	@Override
+	public int getFactoryId() {
+		return RepositoryDataSerializableFactory.FACTORY_ID;
+	}
+
+	@Override
+	public int getId() {
+		return RepositoryDataSerializableFactory.CLAIM_RECORD;
+	}
+	
+	@Override
+	public void writeData(final ObjectDataOutput out) throws IOException {
+		out.writeLong(expiryTime);
+		writeTransitionCodes(out, transitionCodes);
+	}
+	
+	@Override
+	public void readData(final ObjectDataInput in) throws IOException {
+		expiryTime = in.readLong();
+		transitionCodes = readTransitionCodes(in);
+	}
+	
+	private int indexOf(final int transitionCode) {
+		for (int index = 0; index < transitionCodes.length; index++) {
+			if (transitionCodes[index] == transitionCode) {
+				return index;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Writes the codes as a count followed by three ordinal bytes per code - a process can only make a
+	 * handful of distinct transitions, so the count always fits in a byte
+	 */
+	static void writeTransitionCodes(final ObjectDataOutput out, final int[] transitionCodes) throws IOException {
+		out.writeByte(transitionCodes.length);
+		for (final int transitionCode: transitionCodes) {
+			out.writeByte(transitionCode >>> 16);
+			out.writeByte(transitionCode >>> 8);
+			out.writeByte(transitionCode);
+		}
+	}
+	
+	static int[] readTransitionCodes(final ObjectDataInput in) throws IOException {
+		final int[] transitionCodes = new int[in.readUnsignedByte()];
+		for (int index = 0; index < transitionCodes.length; index++) {
+			transitionCodes[index] = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+		}
+		return transitionCodes;
+	}
+}
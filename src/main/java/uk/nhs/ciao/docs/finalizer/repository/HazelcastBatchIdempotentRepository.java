@@ -0,0 +1,390 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Batch repository backed by a Hazelcast map of claim records keyed by {@link ProcessKey}.
+ * <p>
+ * Keys, records and entry processors use compact {@link IdentifiedDataSerializable} encodings - the
+ * {@link RepositoryDataSerializableFactory} must be registered in the Hazelcast serialization configuration.
+ * <p>
+ * The keys of a batch are claimed using a single {@link IMap#executeOnKeys(Set, com.hazelcast.map.EntryProcessor)}
+ * call - the claim is performed atomically on the member owning each record, and the calls to each member are
+ * made in parallel.
+ * <p>
+ * Expired records are purged periodically by the oldest member of the cluster. The map must not be configured
+ * with an eviction policy (the claims of active uploads would be lost) - instead each member periodically checks
+ * the number of locally owned records against the maximum size, and logs and counts any overflow.
+ */
+public class HazelcastBatchIdempotentRepository extends AbstractBatchIdempotentRepository {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(HazelcastBatchIdempotentRepository.class);
+	
+	private final HazelcastInstance hazelcastInstance;
+	private final IMap<ProcessKey, ClaimRecord> map;
+	private volatile long maxProcesses = Long.MAX_VALUE;
+	private ScheduledExecutorService purgeExecutor;
+	
+	public HazelcastBatchIdempotentRepository(final HazelcastInstance hazelcastInstance, final String mapName) {
+		Preconditions.checkNotNull(mapName);
+		
+		this.hazelcastInstance = Preconditions.checkNotNull(hazelcastInstance);
+		this.map = hazelcastInstance.getMap(mapName);
+	}
+		
+	/**
+	 * Sets the maximum number of process records owned by each member before an overflow is reported
+	 */
+	public void setMaxProcesses(final long maxProcesses) {
+		Preconditions.checkArgument(maxProcesses > 0, "maxProcesses must be positive");
+		this.maxProcesses = maxProcesses;
+	}
+	
+	/**
+	 * Starts periodically purging expired records
+	 */
+	public synchronized void start() {
+		if (purgeExecutor != null) {
+			return;
+		}
+		
+		purgeExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("idempotentRepositoryPurge-%d")
+				.setDaemon(true)
+				.build());
+		purgeExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (isOldestMember()) {
+						purge();
+					}
+					checkOverflow(getProcessCount(), maxProcesses);
+				} catch (RuntimeException e) {
+					LOGGER.warn(logMsg("Unable to purge expired records from the idempotent repository"), e);
+				}
+			}
+		}, getPurgePeriod(), getPurgePeriod(), TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stop() {
+		if (purgeExecutor != null) {
+			purgeExecutor.shutdownNow();
+			purgeExecutor = null;
+		}
+	}
+	
+	@Override
+	public Set<IdempotentKey> claim(final Collection<IdempotentKey> keys) {
+		final Set<IdempotentKey> claimed = Sets.newHashSet();
+		if (keys.isEmpty()) {
+			return claimed;
+		}
+		
+		final Map<ProcessKey, int[]> transitionCodesByProcess = Maps.newHashMap();
+		for (final IdempotentKey key: keys) {
+			final int[] transitionCodes = transitionCodesByProcess.get(key.getProcessKey());
+			transitionCodesByProcess.put(key.getProcessKey(), append(transitionCodes, key.getTransitionCode()));
+		}
+		
+		final Map<ProcessKey, Object> results = map.executeOnKeys(transitionCodesByProcess.keySet(),
+				new ClaimEntryProcessor(transitionCodesByProcess, getExpiryPeriod()));
+		for (final IdempotentKey key: keys) {
+			final Object claimedTransitionCodes = results.get(key.getProcessKey());
+			if (claimedTransitionCodes instanceof int[] && contains((int[])claimedTransitionCodes, key.getTransitionCode())) {
+				claimed.add(key);
+			}
+		}
+		return claimed;
+	}
+	
+	@Override
+	public void release(final IdempotentKey key) {
+		map.executeOnKey(key.getProcessKey(), new ReleaseEntryProcessor(key.getTransitionCode()));
+	}
+	
+	@Override
+	public void expire(final Collection<String> correlationIds) {
+		if (correlationIds.isEmpty()) {
+			return;
+		}
+		
+		final Set<ProcessKey> processKeys = Sets.newHashSet();
+		for (final String correlationId: correlationIds) {
+			processKeys.add(ProcessKey.valueOf(correlationId));
+		}
+		map.executeOnKeys(processKeys, new ExpireEntryProcessor(getExpiryPeriod()));
+	}
+	
+	@Override
+	public long getProcessCount() {
+		return map.getLocalMapStats().getOwnedEntryCount();
+	}
+	
+	/**
+	 * Removes all expired records from the map
+	 */
+	public void purge() {
+		final Map<ProcessKey, Object> results = map.executeOnEntries(new PurgeEntryProcessor());
+		for (final Object result: results.values()) {
+			if (Boolean.TRUE.equals(result)) {
+				expiredCount.increment();
+			}
+		}
+	}
+	
+	private boolean isOldestMember() {
+		final Set<Member> members = hazelcastInstance.getCluster().getMembers();
+		return !members.isEmpty() && members.iterator().next().localMember();
+	}
+	
+	private static int[] append(final int[] values, final int value) {
+		if (values == null) {
+			return new int[] { value };
+		}
+		
+		final int[] result = Arrays.copyOf(values, values.length + 1);
+		result[values.length] = value;
+		return result;
+	}
+	
+	private static boolean contains(final int[] values, final int value) {
+		for (final int candidate: values) {
+			if (candidate == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Base class for the repository entry processors - the same processor is applied to the primary and backup entries
+	 */
+	abstract static class ClaimRecordProcessor implements EntryProcessor<ProcessKey, ClaimRecord>,
+			EntryBackupProcessor<ProcessKey, ClaimRecord>, IdentifiedDataSerializable {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public EntryBackupProcessor<ProcessKey, ClaimRecord> getBackupProcessor() {
+			return this;
+		}
+		
+		@Override
+		public void processBackup(final Entry<ProcessKey, ClaimRecord> entry) {
+			process(entry);
+		}
+		
+		@Override
+		public int getFactoryId() {
+			return RepositoryDataSerializableFactory.FACTORY_ID;
+		}
+	}
+	
+	/**
+	 * Claims the transitions of a process, returning the codes of the claimed transitions
+	 */
+	static class ClaimEntryProcessor extends ClaimRecordProcessor {
+		private static final long serialVersionUID = 1L;
+		
+		private Map<ProcessKey, int[]> transitionCodesByProcess;
+		private long expiryPeriod;
+		
+		public ClaimEntryProcessor() {
+			// Constructor for deserialization
+		}
+		
+		public ClaimEntryProcessor(final Map<ProcessKey, int[]> transitionCodesByProcess, final long expiryPeriod) {
+			this.transitionCodesByProcess = transitionCodesByProcess;
+			this.expiryPeriod = expiryPeriod;
+		}
+		
+		@Override
+		public Object process(final Entry<ProcessKey, ClaimRecord> entry) {
+			final int[] transitionCodes = transitionCodesByProcess.get(entry.getKey());
+			if (transitionCodes == null) {
+				return null;
+			}
+			
+			final long now = System.currentTimeMillis();
+			ClaimRecord record = entry.getValue();
+			if (record == null || record.isExpired(now)) {
+				record = new ClaimRecord();
+			}
+			
+			int[] claimed = new int[0];
+			for (final int transitionCode: transitionCodes) {
+				if (record.claim(transitionCode)) {
+					claimed = append(claimed, transitionCode);
+				}
+				
+				if (IdempotentKey.isTerminal(transitionCode)) {
+					record.expireAt(now + expiryPeriod);
+				}
+			}
+			
+			entry.setValue(record);
+			return claimed;
+		}
+	
+		@Override
+		public int getId() {
+			return RepositoryDataSerializableFactory.CLAIM_PROCESSOR;
+		}
+		
+		@Override
+		public void writeData(final ObjectDataOutput out) throws IOException {
+			out.writeLong(expiryPeriod);
+			out.writeInt(transitionCodesByProcess.size());
+			for (final Entry<ProcessKey, int[]> entry: transitionCodesByProcess.entrySet()) {
+				entry.getKey().writeData(out);
+				ClaimRecord.writeTransitionCodes(out, entry.getValue());
+			}
+		}
+		
+		@Override
+		public void readData(final ObjectDataInput in) throws IOException {
+			expiryPeriod = in.readLong();
+			final int size = in.readInt();
+			transitionCodesByProcess = Maps.newHashMapWithExpectedSize(size);
+			for (int index = 0; index < size; index++) {
+				final ProcessKey processKey = new ProcessKey();
+				processKey.readData(in);
+				transitionCodesByProcess.put(processKey, ClaimRecord.readTransitionCodes(in));
+			}
+		}
+	}
+	
+	static class ReleaseEntryProcessor extends ClaimRecordProcessor {
+		private static final long serialVersionUID = 1L;
+		
+		private int transitionCode;
+		
+		public ReleaseEntryProcessor() {
+			// Constructor for deserialization
+		}
+		
+		public ReleaseEntryProcessor(final int transitionCode) {
+			this.transitionCode = transitionCode;
+		}
+		
+		@Override
+		public Object process(final Entry<ProcessKey, ClaimRecord> entry) {
+			final ClaimRecord record = entry.getValue();
+			if (record != null && record.release(transitionCode)) {
+				entry.setValue(record.isEmpty() ? null : record);
+			}
+			return null;
+		}
+		
+		@Override
+		public int getId() {
+			return RepositoryDataSerializableFactory.RELEASE_PROCESSOR;
+		}
+	
+		@Override
+		public void writeData(final ObjectDataOutput out) throws IOException {
+			out.writeInt(transitionCode);
+		}
+		
+		@Override
+		public void readData(final ObjectDataInput in) throws IOException {
+			transitionCode = in.readInt();
+		}
+	}
+	
+	static class ExpireEntryProcessor extends ClaimRecordProcessor {
+		private static final long serialVersionUID = 1L;
+		
+		private long expiryPeriod;
+		
+		public ExpireEntryProcessor() {
+			// Constructor for deserialization
+		}
+		
+		public ExpireEntryProcessor(final long expiryPeriod) {
+			this.expiryPeriod = expiryPeriod;
+		}
+		
+		@Override
+		public Object process(final Entry<ProcessKey, ClaimRecord> entry) {
+			final ClaimRecord record = entry.getValue();
+			if (record != null) {
+				record.expireAt(System.currentTimeMillis() + expiryPeriod);
+				entry.setValue(record);
+			}
+			return null;
+		}
+		
+		@Override
+		public int getId() {
+			return RepositoryDataSerializableFactory.EXPIRE_PROCESSOR;
+		}
+		
+		@Override
+		public void writeData(final ObjectDataOutput out) throws IOException {
+			out.writeLong(expiryPeriod);
+		}
+		
+		@Override
+		public void readData(final ObjectDataInput in) throws IOException {
+			expiryPeriod = in.readLong();
+		}
+	}
+	
+	/**
+	 * Removes the record if it has expired - returning true if the record was removed
+	 */
+	static class PurgeEntryProcessor extends ClaimRecordProcessor {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public Object process(final Entry<ProcessKey, ClaimRecord> entry) {
+			final ClaimRecord record = entry.getValue();
+			if (record == null || !record.isExpired(System.currentTimeMillis())) {
+				return null;
+			}
+			
+			entry.setValue(null);
+			return Boolean.TRUE;
+		}
+		
+		@Override
+		public int getId() {
+			return RepositoryDataSerializableFactory.PURGE_PROCESSOR;
+		}
+		
+		@Override
+		public void writeData(final ObjectDataOutput out) throws IOException {
+			// NOOP
+		}
+		
+		@Override
+		public void readData(final ObjectDataInput in) throws IOException {
+			// NOOP
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Identifies a single transition of a document transfer process - the unit claimed
+ * from a {@link BatchIdempotentRepository}.
+ * <p>
+ * Repositories store the key in its compact form: the {@link ProcessKey} and the transition code
+ * (the event, from-state and to-state ordinals packed into an int).
+ */
+public final class IdempotentKey {
+	private static final State[] STATES = State.values();
+	
+	private final String correlationId;
+	private final ProcessKey processKey;
+	private final Event event;
+	private final State fromState;
+	private final State toState;
+	
+	public IdempotentKey(final String correlationId, final Transition transition) {
+		this(correlationId, transition.getEvent(), transition.getFromState(), transition.getToState());
+	}
+	
+	public IdempotentKey(final String correlationId, final Event event, final State fromState, final State toState) {
+		this.correlationId = Preconditions.checkNotNull(correlationId);
+		this.event = Preconditions.checkNotNull(event);
+		this.fromState = Preconditions.checkNotNull(fromState);
+		this.toState = Preconditions.checkNotNull(toState);
+		this.processKey = ProcessKey.valueOf(correlationId);
+	}
+	
+	public String getCorrelationId() {
+		return correlationId;
+	}
+	
+	public ProcessKey getProcessKey() {
+		return processKey;
+	}
+	
+	public Event getEvent() {
+		return event;
+	}
+	
+	public State getFromState() {
+		return fromState;
+	}
+	
+	public State getToState() {
+		return toState;
+	}
+	
+	/**
+	 * Identifies the transition within the process: <code>event &lt;&lt; 16 | fromState &lt;&lt; 8 | toState</code> (ordinals)
+	 */
+	public int getTransitionCode() {
+		return (event.ordinal() << 16) | (fromState.ordinal() << 8) | toState.ordinal();
+	}
+	
+	/**
+	 * Tests if the transition identified by the code is to a terminal state
+	 */
+	public static boolean isTerminal(final int transitionCode) {
+		return STATES[transitionCode & 0xff].isTerminal();
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(correlationId, event, fromState, toState);
+	}
+	
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		} else if (obj == null || getClass() != obj.getClass()) {
+			return false;
+		}
+		
+		final IdempotentKey other = (IdempotentKey) obj;
+		return correlationId.equals(other.correlationId) && event == other.event
+				&& fromState == other.fromState && toState == other.toState;
+	}
+	
+	/**
+	 * The key in the format used by the Camel idempotent route (<code>correlationId:event:from:to</code>)
+	 */
+	@Override
+	public String toString() {
+		return correlationId + ":" + event + ":" + fromState + ":" + toState;
+	}
+}
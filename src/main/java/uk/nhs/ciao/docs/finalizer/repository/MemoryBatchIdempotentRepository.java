@@ -0,0 +1,121 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+/**
+ * Batch repository held in local memory - suitable for a single node.
+ * <p>
+ * Expired records are purged periodically. The number of process records is bounded: if the maximum
+ * is exceeded, expired records are purged immediately and then the least recently used records of terminal
+ * (or removed) processes are evicted. If only active processes remain, the eviction is retried once per
+ * purge period.
+ */
+public class MemoryBatchIdempotentRepository extends AbstractBatchIdempotentRepository {
+	private final int maxProcesses;
+	private final Map<ProcessKey, ClaimRecord> records = new LinkedHashMap<ProcessKey, ClaimRecord>(16, 0.75f, true);
+	private long nextPurgeTime;
+	private long nextEvictionTime;
+	
+	/**
+	 * Creates a new repository
+	 *
+	 * @param maxProcesses The maximum number of process records to hold
+	 */
+	public MemoryBatchIdempotentRepository(final int maxProcesses) {
+		Preconditions.checkArgument(maxProcesses > 0, "maxProcesses must be positive");
+		this.maxProcesses = maxProcesses;
+	}
+	
+	@Override
+	public synchronized Set<IdempotentKey> claim(final Collection<IdempotentKey> keys) {
+		final long now = System.currentTimeMillis();
+		if (now >= nextPurgeTime) {
+			purge(now);
+		}
+		
+		final Set<IdempotentKey> claimed = Sets.newHashSet();
+		for (final IdempotentKey key: keys) {
+			ClaimRecord record = records.get(key.getProcessKey());
+			if (record == null || record.isExpired(now)) {
+				record = new ClaimRecord();
+				records.put(key.getProcessKey(), record);
+			}
+			
+			if (record.claim(key.getTransitionCode())) {
+				claimed.add(key);
+			}
+			
+			if (key.getToState().isTerminal()) {
+				record.expireAt(now + getExpiryPeriod());
+			}
+		}
+		
+		if (records.size() > maxProcesses && now >= nextEvictionTime) {
+			purge(now);
+			evictExcess();
+		}
+		
+		if (checkOverflow(records.size(), maxProcesses)) {
+			nextEvictionTime = nextPurgeTime;
+		}
+		
+		return claimed;
+	}
+	
+	@Override
+	public synchronized void release(final IdempotentKey key) {
+		final ClaimRecord record = records.get(key.getProcessKey());
+		if (record != null && record.release(key.getTransitionCode()) && record.isEmpty()) {
+			records.remove(key.getProcessKey());
+		}
+	}
+	
+	@Override
+	public synchronized void expire(final Collection<String> correlationIds) {
+		final long expiryTime = System.currentTimeMillis() + getExpiryPeriod();
+		for (final String correlationId: correlationIds) {
+			final ClaimRecord record = records.get(ProcessKey.valueOf(correlationId));
+			if (record != null) {
+				record.expireAt(expiryTime);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized long getProcessCount() {
+		return records.size();
+	}
+	
+	private void purge(final long now) {
+		nextPurgeTime = now + getPurgePeriod();
+		
+		final Iterator<ClaimRecord> iterator = records.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().isExpired(now)) {
+				iterator.remove();
+				expiredCount.increment();
+			}
+		}
+	}
+	
+	/**
+	 * Evicts the least recently used records of terminal (or removed) processes until the repository is
+	 * within the maximum size - the records of active processes are retained
+	 */
+	private void evictExcess() {
+		final Iterator<ClaimRecord> iterator = records.values().iterator();
+		while (records.size() > maxProcesses && iterator.hasNext()) {
+			if (iterator.next().getExpiryTime() != ClaimRecord.NEVER) {
+				iterator.remove();
+				evictedCount.increment();
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import com.google.common.base.Preconditions;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Compact key identifying a document transfer process.
+ * <p>
+ * Correlation ids in the canonical (lower-case) UUID form are held as two longs - other correlation ids
+ * are held as a string. Only the canonical form is compacted so that distinct correlation ids
+ * (e.g. differing by case) never share a key.
+ */
+public final class ProcessKey implements IdentifiedDataSerializable {
+	private static final int UUID_LENGTH = 36;
+	
+	private long mostSignificantBits;
+	private long leastSignificantBits;
+	private String name; // null for UUIDs
+	
+	/**
+	 * Constructor for deserialization
+	 */
+	public ProcessKey() {
+		// NOOP
+	}
+	
+	private ProcessKey(final long mostSignificantBits, final long leastSignificantBits, final String name) {
+		this.mostSignificantBits = mostSignificantBits;
+		this.leastSignificantBits = leastSignificantBits;
+		this.name = name;
+	}
+	
+	public static ProcessKey valueOf(final String correlationId) {
+		Preconditions.checkNotNull(correlationId);
+		
+		if (!isCanonicalUuid(correlationId)) {
+			return new ProcessKey(0, 0, correlationId);
+		}
+		
+		final long mostSignificantBits = (hex(correlationId, 0, 8) << 32) | (hex(correlationId, 9, 4) << 16)
+				| hex(correlationId, 14, 4);
+		final long leastSignificantBits = (hex(correlationId, 19, 4) << 48) | hex(correlationId, 24, 12);
+		return new ProcessKey(mostSignificantBits, leastSignificantBits, null);
+	}
+	
+	public String getCorrelationId() {
+		return name != null ? name : new UUID(mostSignificantBits, leastSignificantBits).toString();
+	}
+	
+	@Override
+	public int getFactoryId() {
+		return RepositoryDataSerializableFactory.FACTORY_ID;
+	}
+	
+	@Override
+	public int getId() {
+		return RepositoryDataSerializableFactory.PROCESS_KEY;
+	}
+	
+	@Override
+	public void writeData(final ObjectDataOutput out) throws IOException {
+		out.writeBoolean(name == null);
+		if (name == null) {
+			out.writeLong(mostSignificantBits);
+			out.writeLong(leastSignificantBits);
+		} else {
+			out.writeUTF(name);
+		}
+	}
+	
+	@Override
+	public void readData(final ObjectDataInput in) throws IOException {
+		if (in.readBoolean()) {
+			mostSignificantBits = in.readLong();
+			leastSignificantBits = in.readLong();
+			name = null;
+		} else {
+			mostSignificantBits = 0;
+			leastSignificantBits = 0;
+			name = in.readUTF();
+		}
+	}
+	
+	@Override
+	public int hashCode() {
+		if (name != null) {
+			return name.hashCode();
+		}
+		
+		final long hash = mostSignificantBits ^ leastSignificantBits;
+		return (int)(hash >> 32) ^ (int)hash;
+	}
+	
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		} else if (!(obj instanceof ProcessKey)) {
+			return false;
+		}
+		
+		final ProcessKey other = (ProcessKey) obj;
+		return mostSignificantBits == other.mostSignificantBits && leastSignificantBits == other.leastSignificantBits
+				&& (name == null ? other.name == null : name.equals(other.name));
+	}
+	
+	@Override
+	public String toString() {
+		return getCorrelationId();
+	}
+	
+	private static boolean isCanonicalUuid(final String value) {
+		if (value.length() != UUID_LENGTH) {
+			return false;
+		}
+		
+		for (int index = 0; index < UUID_LENGTH; index++) {
+			final char c = value.charAt(index);
+			if (index == 8 || index == 13 || index == 18 || index == 23) {
+				if (c != '-') {
+					return false;
+				}
+			} else if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private static long hex(final String value, final int offset, final int count) {
+		long result = 0;
+		for (int index = offset; index < offset + count; index++) {
+			result = (result << 4) | Character.digit(value.charAt(index), 16);
+		}
+		return result;
+	}
+}
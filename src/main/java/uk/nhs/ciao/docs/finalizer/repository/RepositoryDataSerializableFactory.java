@@ -0,0 +1,45 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import uk.nhs.ciao.docs.finalizer.repository.HazelcastBatchIdempotentRepository.ClaimEntryProcessor;
+import uk.nhs.ciao.docs.finalizer.repository.HazelcastBatchIdempotentRepository.ExpireEntryProcessor;
+import uk.nhs.ciao.docs.finalizer.repository.HazelcastBatchIdempotentRepository.PurgeEntryProcessor;
+import uk.nhs.ciao.docs.finalizer.repository.HazelcastBatchIdempotentRepository.ReleaseEntryProcessor;
+
+import com.hazelcast.nio.serialization.DataSerializableFactory;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Creates the Hazelcast serializable types of the idempotent repository.
+ * <p>
+ * The factory must be registered (with {@link #FACTORY_ID}) in the serialization configuration of each cluster member.
+ */
+public class RepositoryDataSerializableFactory implements DataSerializableFactory {
+	public static final int FACTORY_ID = 8301;
+	
+	public static final int PROCESS_KEY = 1;
+	public static final int CLAIM_RECORD = 2;
+	public static final int CLAIM_PROCESSOR = 3;
+	public static final int RELEASE_PROCESSOR = 4;
+	public static final int EXPIRE_PROCESSOR = 5;
+	public static final int PURGE_PROCESSOR = 6;
+	
+	@Override
+	public IdentifiedDataSerializable create(final int typeId) {
+		switch (typeId) {
+		case PROCESS_KEY:
+			return new ProcessKey();
+		case CLAIM_RECORD:
+			return new ClaimRecord();
+		case CLAIM_PROCESSOR:
+			return new ClaimEntryProcessor();
+		case RELEASE_PROCESSOR:
+			return new ReleaseEntryProcessor();
+		case EXPIRE_PROCESSOR:
+			return new ExpireEntryProcessor();
+		case PURGE_PROCESSOR:
+			return new PurgeEntryProcessor();
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package uk.nhs.ciao.docs.finalizer.route;
+
+import org.apache.camel.Body;
+import org.apache.camel.Header;
+import org.apache.camel.builder.RouteBuilder;
+
+import uk.nhs.ciao.docs.finalizer.processor.EventSink;
+import uk.nhs.ciao.docs.finalizer.processor.EventSource;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.EventFileNameParser;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Configures a camel route which delivers events received from an endpoint (e.g. a <code>seda:</code>,
+ * <code>vm:</code> or JMS queue) into an {@link EventSink}.
+ * <p>
+ * Each message carries a single event: the correlation id of the process in the {@link #HEADER_CORRELATION_ID}
+ * header and the event file name (e.g. <code>20150903-153545804-bus-message-sent</code>) as the body. Producers
+ * should still store the event file - the in-progress folder remains the durable record of each process.
+ */
+public class EventSourceRoute extends RouteBuilder implements EventSource {
+	public static final String HEADER_CORRELATION_ID = "ciao.eventSource.correlationId";
+	
+	private String uri;
+	private EventSink eventSink;
+	
+	public void setUri(final String uri) {
+		this.uri = uri;
+	}
+	
+	@Override
+	public void setEventSink(final EventSink eventSink) {
+		this.eventSink = eventSink;
+	}
+	
+	@Override
+	public void configure() throws Exception {
+		Preconditions.checkState(eventSink != null, "eventSink has not been configured");
+		
+		from(uri)
+			.bean(new EventReceiver(eventSink))
+		.end();
+	}
+	
+	// bean methods - in separate class from the main route to prevent loops in the tracer
+	
+	public static class EventReceiver {
+		private final EventSink eventSink;
+		
+		public EventReceiver(final EventSink eventSink) {
+			this.eventSink = Preconditions.checkNotNull(eventSink);
+		}
+		
+		public void receive(@Header(HEADER_CORRELATION_ID) final String correlationId, @Body final String eventName) {
+			Preconditions.checkArgument(correlationId != null && !correlationId.isEmpty(), "Missing correlation id header");
+			Preconditions.checkArgument(eventName != null && EventFileNameParser.matches(eventName), "Invalid event name: %s", eventName);
+			
+			final long eventTime = EventFileNameParser.parseTimestamp(eventName);
+			Preconditions.checkArgument(eventTime != EventFileNameParser.INVALID_TIMESTAMP, "Invalid event timestamp: %s", eventName);
+			
+			final Event event = EventFileNameParser.parseEvent(eventName);
+			Preconditions.checkArgument(event != null, "Unknown event: %s", eventName);
+			
+			eventSink.registerEvent(correlationId, event, eventTime);
+		}
+	}
+}
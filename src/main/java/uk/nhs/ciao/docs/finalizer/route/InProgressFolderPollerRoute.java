@@ -1,15 +1,48 @@
 package uk.nhs.ciao.docs.finalizer.route;
 
+import java.io.File;
+import java.util.List;
+
+import org.apache.camel.CamelContext;
 import org.apache.camel.Exchange;
+import org.apache.camel.StartupListener;
 import org.apache.camel.builder.RouteBuilder;
 
+import uk.nhs.ciao.docs.finalizer.processor.AdaptivePollScheduler;
 import uk.nhs.ciao.docs.finalizer.processor.InProgressFolderPoller;
+import uk.nhs.ciao.docs.finalizer.processor.InProgressFolderWatcher;
+
+import com.google.common.collect.Lists;
 
+/**
+ * Configures the route(s) which detect changes to the in-progress folder.
+ * <p>
+ * Supported modes:
+ * <ul>
+ * <li><code>poll</code> - the full folder tree is polled every <code>period</code></li>
+ * <li><code>adaptive</code> - the full folder tree is polled at an interval chosen by an {@link AdaptivePollScheduler}
+ * (between its minimum and maximum periods), and timeouts are processed as soon as they trigger</li>
+ * <li><code>watch</code> - changes are pushed by an {@link InProgressFolderWatcher}, timeouts are checked
+ * every <code>period</code> and the full folder tree is re-scanned every <code>rescanPeriod</code></li>
+ * </ul>
+ * If the poller tracks multiple in-progress roots, each root is scanned on its own thread by the poller
+ * and (in <code>watch</code> mode) each root is watched by its own {@link InProgressFolderWatcher}.
+ * <p>
+ * In all modes, the tombstones of terminal processes are swept every <code>sweepPeriod</code>.
+ */
 public class InProgressFolderPollerRoute extends RouteBuilder {
+	public static final String MODE_POLL = "poll";
+	public static final String MODE_WATCH = "watch";
+	public static final String MODE_ADAPTIVE = "adaptive";
+	
 	private String timerName = "inProgressFolderPoller";
 	private String period = "5s";
+	private String mode = MODE_POLL;
+	private String rescanPeriod = "5m";
+	private String sweepPeriod = "5m";
 	private boolean daemon = false;
 	private InProgressFolderPoller inProgressFolderPoller;
+	private AdaptivePollScheduler adaptivePollScheduler;
 	
 	public void setTimerName(final String timerName) {
 		this.timerName = timerName;
@@ -19,18 +52,92 @@ public class InProgressFolderPollerRoute extends RouteBuilder {
 		this.period = period;
 	}
 	
+	public void setMode(final String mode) {
+		this.mode = mode;
+	}
+	
+	public void setRescanPeriod(final String rescanPeriod) {
+		this.rescanPeriod = rescanPeriod;
+	}
+	
+	public void setSweepPeriod(final String sweepPeriod) {
+		this.sweepPeriod = sweepPeriod;
+	}
+	
 	public void setInProgressFolderPoller(final InProgressFolderPoller inProgressFolderPoller) {
 		this.inProgressFolderPoller = inProgressFolderPoller;
 	}
 	
+	public void setAdaptivePollScheduler(final AdaptivePollScheduler adaptivePollScheduler) {
+		this.adaptivePollScheduler = adaptivePollScheduler;
+	}
+	
 	public void setDaemon(final boolean daemon) {
 		this.daemon = daemon;
 	}
 	
 	@Override
 	public void configure() throws Exception {
+		final String resolvedMode = getContext().resolvePropertyPlaceholders(mode);
+		
+		if (MODE_WATCH.equalsIgnoreCase(resolvedMode)) {
+			configureWatchMode();
+		} else if (MODE_POLL.equalsIgnoreCase(resolvedMode)) {
+			configurePollMode();
+		} else if (MODE_ADAPTIVE.equalsIgnoreCase(resolvedMode)) {
+			configureAdaptiveMode();
+		} else {
+			throw new IllegalArgumentException("Unsupported in-progress folder mode: " + resolvedMode);
+		}
+		
+		configureSweeper();
+	}
+	
+	private void configureSweeper() {
+		from("timer://" + timerName + "-sweeper?daemon=" + daemon + "&period=" + sweepPeriod)
+			.bean(inProgressFolderPoller, "sweepTombstones(${header." + Exchange.TIMER_FIRED_TIME + "})")
+		.end();
+	}
+	
+	private void configurePollMode() {
 		from("timer://" + timerName + "?daemon=" + daemon + "&period=" + period)
 			.bean(inProgressFolderPoller, "poll(${header." + Exchange.TIMER_FIRED_TIME + "})")
 		.end();
 	}
+	
+	private void configureAdaptiveMode() {
+		if (adaptivePollScheduler == null) {
+			throw new IllegalStateException("An adaptivePollScheduler is required for in-progress folder mode: " + MODE_ADAPTIVE);
+		}
+		
+		// The timer ticks at the minimum period - the scheduler decides whether each tick polls the folder
+		from("timer://" + timerName + "?daemon=" + daemon + "&period=" + adaptivePollScheduler.getMinPeriod())
+			.bean(adaptivePollScheduler, "onTimer(${header." + Exchange.TIMER_FIRED_TIME + "})")
+		.end();
+	}
+	
+	private void configureWatchMode() throws Exception {
+		final List<InProgressFolderWatcher> watchers = Lists.newArrayList();
+		for (final File rootFolder: inProgressFolderPoller.getInProgressFolders()) {
+			watchers.add(new InProgressFolderWatcher(inProgressFolderPoller, rootFolder));
+		}
+		
+		// Only start watching once camel has started (the transition listeners may depend on other routes)
+		getContext().addStartupListener(new StartupListener() {
+			@Override
+			public void onCamelContextStarted(final CamelContext context, final boolean alreadyStarted) throws Exception {
+				for (final InProgressFolderWatcher watcher: watchers) {
+					context.addService(watcher);
+				}
+			}
+		});
+
+		from("timer://" + timerName + "?daemon=" + daemon + "&period=" + period)
+			.bean(inProgressFolderPoller, "processTimeouts(${header." + Exchange.TIMER_FIRED_TIME + "})")
+		.end();
+		
+		from("timer://" + timerName + "-rescan?daemon=" + daemon + "&period=" + rescanPeriod)
+			.bean(inProgressFolderPoller, "poll(${header." + Exchange.TIMER_FIRED_TIME + "})")
+		.end();
+	}
 }
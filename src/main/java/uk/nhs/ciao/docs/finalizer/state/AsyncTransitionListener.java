@@ -0,0 +1,190 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.metrics.Gauge;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A listener which hands transition notifications to a pool of worker lanes - so that slow actions
+ * (e.g. moving folders across devices) do not hold the process lock or block the in-progress folder poller.
+ * <p>
+ * Each correlation id is mapped to a single lane, and each lane is served by a single thread - so
+ * notifications for a given process are delivered in the order they were raised. Each lane has a bounded
+ * queue: when a queue is full the caller blocks until space is available (back-pressure) rather than
+ * buffering an unlimited number of pending actions.
+ * <p>
+ * If the thread count is zero, notifications are delivered synchronously on the calling thread.
+ */
+public class AsyncTransitionListener implements TransitionListener, Closeable {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(AsyncTransitionListener.class);
+	
+	private final TransitionListener delegate;
+	private final LaneExecutor lanes;
+	
+	// metrics
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicInteger peakQueueDepth = new AtomicInteger();
+	private final AtomicLong submittedCount = new AtomicLong();
+	private volatile Counter completedCount = MetricRegistry.unregisteredCounter();
+	private volatile Counter blockedCount = MetricRegistry.unregisteredCounter();
+	
+	/**
+	 * Creates a new listener
+	 *
+	 * @param delegate The listener to notify
+	 * @param threadCount The number of worker lanes (zero for synchronous delivery)
+	 * @param queueCapacity The maximum number of pending notifications per lane
+	 */
+	public AsyncTransitionListener(final TransitionListener delegate, final int threadCount, final int queueCapacity) {
+		Preconditions.checkArgument(threadCount >= 0, "threadCount must not be negative");
+		Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+		
+		this.delegate = Preconditions.checkNotNull(delegate);
+		this.lanes = new LaneExecutor("transitionAction", threadCount, queueCapacity);
+	}
+	
+	@Override
+	public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+		if (lanes.getLaneCount() == 0) {
+			delegate.onTransition(process, transition);
+			return;
+		}
+		
+		execute(process.getCorrelationId(), new Runnable() {
+			@Override
+			public void run() {
+				deliver(process, transition);
+			}
+		});
+	}
+	
+	/**
+	 * Runs the task on the lane of the process - after any notifications already queued for the process
+	 * <p>
+	 * If the thread count is zero, the task is run on the calling thread.
+	 */
+	public void execute(final String correlationId, final Runnable task) {
+		if (lanes.getLaneCount() == 0) {
+			task.run();
+			return;
+		} else if (lanes.isClosed()) {
+			throw new IllegalStateException("AsyncTransitionListener has been closed");
+		}
+		
+		submittedCount.incrementAndGet();
+		updatePeakQueueDepth(queueDepth.incrementAndGet());
+		
+		final Runnable pending = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					queueDepth.decrementAndGet();
+					completedCount.increment();
+				}
+			}
+		};
+		if (!lanes.offer(correlationId, pending)) {
+			blockedCount.increment();
+			try {
+				lanes.put(correlationId, pending);
+			} catch (InterruptedException e) {
+				queueDepth.decrementAndGet();
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting to queue transition", e);
+			}
+		}
+	}
+	
+	/**
+	 * Stops accepting notifications and waits for the pending notifications to be delivered
+	 */
+	@Override
+	public void close() {
+		lanes.close();
+	}
+	
+	/**
+	 * Registers the queue metrics (depth, peak depth, completed and blocked counts) with the registry
+	 */
+	public final void setMetricRegistry(final MetricRegistry registry) {
+		registry.gauge("action_queue_depth", "Transition notifications waiting for an action worker", null, new Gauge.Source() {
+			@Override
+			public Map<String, Integer> getValues() {
+				return Collections.singletonMap(null, getQueueDepth());
+			}
+		});
+		registry.gauge("action_queue_peak_depth", "Highest observed number of waiting transition notifications", null, new Gauge.Source() {
+			@Override
+			public Map<String, Integer> getValues() {
+				return Collections.singletonMap(null, getPeakQueueDepth());
+			}
+		});
+		completedCount = registry.counter("action_queue_completed_total", "Transition notifications delivered by the action workers");
+		blockedCount = registry.counter("action_queue_blocked_total", "Transition notifications which waited for space in a full action queue");
+	}
+	
+	public int getThreadCount() {
+		return lanes.getLaneCount();
+	}
+	
+	/**
+	 * The number of notifications which have been queued but not yet delivered
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+	
+	/**
+	 * The highest observed queue depth
+	 */
+	public int getPeakQueueDepth() {
+		return peakQueueDepth.get();
+	}
+	
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+	
+	public long getCompletedCount() {
+		return completedCount.getValue();
+	}
+	
+	/**
+	 * The number of notifications whose caller was blocked waiting for space in a full queue
+	 */
+	public long getBlockedCount() {
+		return blockedCount.getValue();
+	}
+	
+	private void updatePeakQueueDepth(final int depth) {
+		int peak = peakQueueDepth.get();
+		while (depth > peak && !peakQueueDepth.compareAndSet(peak, depth)) {
+			peak = peakQueueDepth.get();
+		}
+	}
+	
+	private void deliver(final DocumentTransferProcess process, final Transition transition) {
+		try {
+			delegate.onTransition(process, transition);
+		} catch (RuntimeException e) {
+			LOGGER.error(logMsg("Unable to process transition")
+				.documentId(process.getCorrelationId())
+				.fromState(transition.getFromState())
+				.toState(transition.getToState())
+				.eventName(transition.getEvent().getFileSuffix() + "-failed"), e);
+		}
+	}
+}
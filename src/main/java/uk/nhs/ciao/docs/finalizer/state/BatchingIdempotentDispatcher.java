@@ -0,0 +1,309 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.metrics.Histogram;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.docs.finalizer.repository.BatchIdempotentRepository;
+import uk.nhs.ciao.docs.finalizer.repository.IdempotentKey;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Ensures delegate listeners are only executed once (across all nodes sharing the repository) by claiming
+ * the transitions in batches.
+ * <p>
+ * Each notification is queued and the calling thread waits while a single claim thread collects the pending
+ * notifications - up to <code>maxBatchSize</code> - and claims them from the {@link BatchIdempotentRepository}
+ * in one operation. Callers which won the claim then invoke their delegate on their own thread (so per-process
+ * ordering and the parallelism of the caller are preserved). If the delegate fails, the claim is released so
+ * that the action can be retried.
+ * <p>
+ * Because callers wait for their claim, the size of a batch is bounded by the number of concurrent callers
+ * (e.g. the number of action threads). The claim thread therefore only waits (at most <code>batchWindowMillis</code>)
+ * for the batch to fill while another caller is still running inside the dispatcher and could join it - a
+ * caller which cannot be batched (e.g. the only caller when actions are run on the calling thread) is
+ * claimed immediately rather than stalling for the window.
+ *
+ * @see IdempotentTransitionListener
+ */
+public class BatchingIdempotentDispatcher implements Closeable {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(BatchingIdempotentDispatcher.class);
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+	
+	private final BatchIdempotentRepository repository;
+	private final int maxBatchSize;
+	private final long batchWindowNanos;
+	private final BlockingQueue<PendingClaim> queue = new LinkedBlockingQueue<PendingClaim>();
+	private final AtomicInteger activeCallers = new AtomicInteger();
+	private final Thread claimThread;
+	private volatile boolean closed;
+	
+	// metrics
+	private final Histogram claimDuration;
+	private final Counter batches;
+	private final Counter claims;
+	private final Counter duplicates;
+	
+	public BatchingIdempotentDispatcher(final BatchIdempotentRepository repository, final int maxBatchSize,
+			final long batchWindowMillis) {
+		this(repository, maxBatchSize, batchWindowMillis, new MetricRegistry());
+	}
+	
+	/**
+	 * Creates a new dispatcher
+	 *
+	 * @param repository The repository used to claim transitions
+	 * @param maxBatchSize The maximum number of transitions to claim in one operation
+	 * @param batchWindowMillis The maximum time to wait for further transitions before claiming a batch (zero
+	 * 			to only claim the transitions which are already waiting)
+	 * @param registry The registry used to publish the claim metrics
+	 */
+	public BatchingIdempotentDispatcher(final BatchIdempotentRepository repository, final int maxBatchSize,
+			final long batchWindowMillis, final MetricRegistry registry) {
+		Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+		Preconditions.checkArgument(batchWindowMillis >= 0, "batchWindowMillis must not be negative");
+		
+		this.repository = Preconditions.checkNotNull(repository);
+		this.maxBatchSize = maxBatchSize;
+		this.batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+		
+		this.claimDuration = registry.histogram("idempotent_claim_duration_seconds",
+				"Duration of batched idempotent repository claims");
+		this.batches = registry.counter("idempotent_claim_batches_total",
+				"Batched claims made against the idempotent repository");
+		this.claims = registry.counter("idempotent_claims_total",
+				"Transition notifications claimed in batches against the idempotent repository");
+		this.duplicates = registry.counter("idempotent_transition_duplicates_total",
+				"Transition notifications suppressed as duplicates by the idempotent repository");
+		
+		this.claimThread = new ThreadFactoryBuilder()
+			.setNameFormat("idempotentClaim-%d")
+			.setDaemon(true)
+			.build()
+			.newThread(new ClaimLoop());
+		claimThread.start();
+	}
+	
+	/**
+	 * Returns a listener which notifies the delegate via this dispatcher
+	 */
+	public TransitionListener wrap(final TransitionListener delegate) {
+		Preconditions.checkNotNull(delegate);
+		
+		return new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				dispatch(process, transition, delegate);
+			}
+		};
+	}
+	
+	/**
+	 * Claims the transition and notifies the delegate if the claim was successful
+	 */
+	public void dispatch(final DocumentTransferProcess process, final Transition transition,
+			final TransitionListener delegate) {
+		if (closed) {
+			throw new IllegalStateException("BatchingIdempotentDispatcher has been closed");
+		}
+		
+		activeCallers.incrementAndGet();
+		try {
+			final PendingClaim claim = new PendingClaim(new IdempotentKey(process.getCorrelationId(), transition));
+			queue.add(claim);
+		
+			final boolean claimed;
+			try {
+				claimed = claim.await(claimThread);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting to claim transition", e);
+			} catch (RuntimeException e) {
+				logFailure(process, transition, e);
+				return;
+			}
+		
+			if (!claimed) {
+				duplicates.increment();
+				return;
+			}
+		
+			try {
+				delegate.onTransition(process, transition);
+			} catch (RuntimeException e) {
+				logFailure(process, transition, e);
+				repository.release(claim.key);
+			}
+		} finally {
+			activeCallers.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Stops accepting notifications and waits for the pending claims to be made
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		queue.add(PendingClaim.POISON);
+		try {
+			claimThread.join(SHUTDOWN_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void logFailure(final DocumentTransferProcess process, final Transition transition, final Exception e) {
+		LOGGER.error(logMsg("Unable to process transition")
+			.documentId(process.getCorrelationId())
+			.fromState(transition.getFromState())
+			.toState(transition.getToState())
+			.eventName("idempotent-" + transition.getEvent().getFileSuffix() + "-failed"), e);
+	}
+	
+	/**
+	 * Collects the pending claims into batches and claims them from the repository
+	 */
+	private class ClaimLoop implements Runnable {
+		private boolean poisoned;
+		
+		@Override
+		public void run() {
+			final List<PendingClaim> batch = Lists.newArrayListWithCapacity(maxBatchSize);
+			try {
+				while (!poisoned) {
+					add(batch, queue.take());
+					collect(batch);
+					if (!batch.isEmpty()) {
+						claim(batch);
+						batch.clear();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				final IllegalStateException failure = new IllegalStateException("BatchingIdempotentDispatcher has been closed");
+				for (final PendingClaim claim: batch) {
+					claim.fail(failure);
+				}
+				for (PendingClaim claim = queue.poll(); claim != null; claim = queue.poll()) {
+					claim.fail(failure);
+				}
+			}
+		}
+		
+		private void collect(final List<PendingClaim> batch) throws InterruptedException {
+			final long deadline = System.nanoTime() + batchWindowNanos;
+			while (!poisoned && batch.size() < maxBatchSize) {
+				PendingClaim claim = queue.poll();
+				if (claim == null) {
+					// only wait while another caller (e.g. one running its action) could still join the batch
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0 || activeCallers.get() <= batch.size()) {
+						break;
+					}
+					
+					claim = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (claim == null) {
+						break;
+					}
+				}
+				add(batch, claim);
+			}
+		}
+		
+		private void add(final List<PendingClaim> batch, final PendingClaim claim) {
+			if (claim == PendingClaim.POISON) {
+				poisoned = true;
+			} else {
+				batch.add(claim);
+			}
+		}
+		
+		private void claim(final List<PendingClaim> batch) {
+			final Set<IdempotentKey> keys = Sets.newLinkedHashSet();
+			for (final PendingClaim claim: batch) {
+				keys.add(claim.key);
+			}
+			
+			final long startTime = System.nanoTime();
+			final Set<IdempotentKey> claimed;
+			try {
+				claimed = repository.claim(keys);
+			} catch (RuntimeException e) {
+				LOGGER.warn(logMsg("Unable to claim transitions from the idempotent repository")
+					.set("BatchSize", batch.size()), e);
+				for (final PendingClaim claim: batch) {
+					claim.fail(e);
+				}
+				return;
+			}
+			
+			claimDuration.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+			batches.increment();
+			claims.increment(batch.size());
+			
+			// if the same key appears more than once in the batch, only the first claim wins
+			for (final PendingClaim claim: batch) {
+				claim.complete(claimed.remove(claim.key));
+			}
+		}
+	}
+	
+	private static class PendingClaim {
+		static final PendingClaim POISON = new PendingClaim(null);
+		
+		final IdempotentKey key;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile boolean claimed;
+		private volatile RuntimeException failure;
+		
+		public PendingClaim(final IdempotentKey key) {
+			this.key = key;
+		}
+		
+		public void complete(final boolean claimed) {
+			this.claimed = claimed;
+			latch.countDown();
+		}
+		
+		public void fail(final RuntimeException failure) {
+			this.failure = failure;
+			latch.countDown();
+		}
+		
+		/**
+		 * Waits for the claim to be made
+		 *
+		 * @return true if the transition was claimed, or false if it is a duplicate
+		 * @throws RuntimeException If the claim could not be made
+		 */
+		public boolean await(final Thread claimThread) throws InterruptedException {
+			while (!latch.await(1, TimeUnit.SECONDS)) {
+				if (!claimThread.isAlive() && latch.getCount() > 0) {
+					throw new IllegalStateException("BatchingIdempotentDispatcher has been closed");
+				}
+			}
+			
+			if (failure != null) {
+				throw failure;
+			}
+			return claimed;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import uk.nhs.ciao.docs.finalizer.metrics.LabelledCounter;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.Closeables;
+
+/**
+ * Caches the first line of control files.
+ * <p>
+ * Entries are keyed on the path of the file and validated against the last modified time and length
+ * of the file - so a control file is only read again if it has changed. Only the first line is read:
+ * bytes are read through a small (per-thread) direct buffer and reading stops at the first line terminator.
+ */
+public class ControlFileCache {
+	private static final int DEFAULT_MAXIMUM_SIZE = 10000;
+	private static final int BUFFER_SIZE = 256;
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+	
+	private final Cache<String, Entry> entries;
+	
+	// metrics
+	private LabelledCounter lookups = MetricRegistry.unregisteredCounter("result");
+	
+	public ControlFileCache() {
+		this(DEFAULT_MAXIMUM_SIZE);
+	}
+	
+	/**
+	 * Creates a new cache
+	 *
+	 * @param maximumSize The maximum number of control files to cache
+	 */
+	public ControlFileCache(final int maximumSize) {
+		Preconditions.checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+		
+		this.entries = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.build();
+	}
+	
+	/**
+	 * Registers the number of control file lookups by result (hit or read) with the registry
+	 */
+	public final void setMetricRegistry(final MetricRegistry registry) {
+		lookups = registry.counter("control_file_lookups_total", "Control file lookups by result", "result");
+	}
+	
+	/**
+	 * Returns the first line of the file (without the line terminator), or the empty
+	 * string if the file does not exist
+	 *
+	 * @throws IOException If the file could not be read
+	 */
+	public String readFirstLine(final File file) throws IOException {
+		if (file == null || !file.isFile()) {
+			return "";
+		}
+		
+		final String path = file.getPath();
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		
+		final Entry cached = entries.getIfPresent(path);
+		if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+			lookups.increment("hit");
+			return cached.firstLine;
+		}
+		
+		lookups.increment("read");
+		final String firstLine = read(file);
+		entries.put(path, new Entry(lastModified, length, firstLine));
+		
+		return firstLine;
+	}
+	
+	private static String read(final File file) throws IOException {
+		final ByteBuffer buffer = BUFFERS.get();
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(BUFFER_SIZE);
+		
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			final FileChannel channel = in.getChannel();
+			boolean terminated = false;
+			while (!terminated) {
+				buffer.clear();
+				if (channel.read(buffer) < 0) {
+					break;
+				}
+				
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					final byte value = buffer.get();
+					if (value == '\n' || value == '\r') {
+						terminated = true;
+						break;
+					}
+					line.write(value);
+				}
+			}
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		
+		return new String(line.toByteArray(), Charset.defaultCharset());
+	}
+	
+	private static class Entry {
+		private final long lastModified;
+		private final long length;
+		private final String firstLine;
+		
+		public Entry(final long lastModified, final long length, final String firstLine) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.firstLine = firstLine;
+		}
+	}
+}
@@ -3,59 +3,90 @@ package uk.nhs.ciao.docs.finalizer.state;
 import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.Reader;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import uk.nhs.ciao.logging.CiaoLogger;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
-import com.google.common.io.CharStreams;
-import com.google.common.io.Closeables;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.collect.Lists;
 
+/**
+ * The state of a single document transfer.
+ * <p>
+ * Many thousands of processes may be in flight at once, so the per-process footprint is kept small:
+ * the state and flags are packed into a single int, folder names are interned (all processes share the same few
+ * completed/error folders) and the root folder is derived from a shared parent folder when possible.
+ * <p>
+ * The completed/error folder control files are not read when they are registered - the folder names
+ * are resolved (through a {@link ControlFileCache}) when they are first requested, typically by the
+ * action which moves the process to its terminal folder.
+ * <p>
+ * If the process is bound to {@link ProcessLanes}, mutations are instead queued to the lane of the process
+ * and applied by a single thread without locking. Transition listeners are then notified on the lane once
+ * the mutation has been applied - rather than while the process is locked.
+ */
 public class DocumentTransferProcess {
 	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(DocumentTransferProcess.class);
 	
 	/**
-	 * Regular expression pattern matching event files (e.g. 20150903-153545804-bus-ack-received)
-	 * <p>
-	 * Group 1 contains the timestamp portion (20150903-153545804) - see {@link #EVENT_NAME_TIMESTAMP_FORMATTER}
-	 * <p>
-	 * Group 2 the file suffix (bus-ack-received) - see {@link #EVENTS_BY_FILE_SUFFIX}
+	 * Names of the control files understood by the process - other control files are ignored
 	 */
-	private static final Pattern EVENT_NAME_PATTERN = Pattern.compile("(\\d{8}-\\d{9})-(.+)");
+	public static final String COMPLETED_FOLDER_FILE = "completed-folder";
+	public static final String ERROR_FOLDER_FILE = "error-folder";
+	public static final String WANTS_INF_ACK_FILE = "wants-inf-ack";
+	public static final String WANTS_BUS_ACK_FILE = "wants-bus-ack";
 	
-	/**
-	 * Timestamp format used in event file-names
-	 */
-	private static final DateTimeFormatter EVENT_NAME_TIMESTAMP_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd-HHmmssSSS").withZoneUTC();
+	private static final State[] STATES = State.values();
+	private static final Event[] EVENTS = Event.values();
+	private static final int STATE_MASK = 0xff;
+	private static final int INF_ACK_WANTED = 1 << 8;
+	private static final int BUS_ACK_WANTED = 1 << 9;
+	private static final int LAST_EVENT_SHIFT = 16;
+	private static final int LAST_EVENT_MASK = 0xff << LAST_EVENT_SHIFT; // event ordinal + 1 (zero if unknown)
+	
+	private static final Interner<Object> INTERNER = Interners.newWeakInterner();
+	private static final ControlFileCache DEFAULT_CONTROL_FILE_CACHE = new ControlFileCache();
+	private static final AtomicReferenceFieldUpdater<DocumentTransferProcess, Object> COMPLETED_FOLDER =
+			AtomicReferenceFieldUpdater.newUpdater(DocumentTransferProcess.class, Object.class, "completedFolder");
+	private static final AtomicReferenceFieldUpdater<DocumentTransferProcess, Object> ERROR_FOLDER =
+			AtomicReferenceFieldUpdater.newUpdater(DocumentTransferProcess.class, Object.class, "errorFolder");
 	
 	private final String correlationId;
-	private final File rootFolder;
+	
+	/**
+	 * Either the root folder, or the (shared) parent of the root folder if the
+	 * root folder is named after the correlation id
+	 */
+	private final File folder;
+	private final boolean folderIsParent;
 	private final TransitionListener transitionListener;
+	private final ProcessLanes lanes; // null if mutations are synchronised by the internal lock
+	
+	/**
+	 * Internal lock used to synchronise state mutations (null if mutations are applied by the process lane)
+	 */
+	private final Object lock;
+	private final ControlFileCache controlFileCache;
 	
 	/**
-	 * Internal lock used to synchronise state mutations
+	 * Transitions waiting to be notified once the current lane mutation has been applied
+	 * (only accessed by the lane thread)
 	 */
-	private final Object lock;	
+	private List<Transition> pendingTransitions;
 	
 	/*
 	 * State properties
-	 * mutations are synchronised by the internal lock
+	 * mutations are synchronised by the internal lock (or applied by the process lane)
 	 * declared volatile to allow accessors to return without locking
 	 */
-	private volatile State state;
-	private volatile String completedFolder;
-	private volatile String errorFolder;
-	private volatile boolean infAckWanted;
-	private volatile boolean busAckWanted;
+	private volatile int status; // state ordinal | flags | last event
+	private volatile Object completedFolder; // folder name - or the (unread) control file
+	private volatile Object errorFolder; // folder name - or the (unread) control file
 	
 	private final Timeout documentPreparationTimeout;
 	private final Timeout documentSendTimeout;
@@ -63,16 +94,65 @@ public class DocumentTransferProcess {
 	private final Timeout busResponseTimeout;
 	
 	public DocumentTransferProcess(final String correlationId, final File rootFolder, final TransitionListener transitionListener) {
+		this(correlationId, rootFolder, transitionListener, null);
+	}
+	
+	/**
+	 * Creates a new process with timeouts registered with the specified scheduler
+	 * 
+	 * @param timeoutScheduler The (optional) scheduler to register timeouts with
+	 */
+	public DocumentTransferProcess(final String correlationId, final File rootFolder, final TransitionListener transitionListener,
+			final TimeoutScheduler timeoutScheduler) {
+		this(correlationId, rootFolder, transitionListener, timeoutScheduler, null);
+	}
+	
+	/**
+	 * Creates a new process with timeouts registered with the specified scheduler and
+	 * mutations applied by the specified lanes
+	 * 
+	 * @param timeoutScheduler The (optional) scheduler to register timeouts with
+	 * @param lanes The (optional) lanes used to apply mutations - if null, mutations are synchronised by an internal lock
+	 */
+	public DocumentTransferProcess(final String correlationId, final File rootFolder, final TransitionListener transitionListener,
+			final TimeoutScheduler timeoutScheduler, final ProcessLanes lanes) {
+		this(correlationId, rootFolder, transitionListener, timeoutScheduler, lanes, null);
+	}
+	
+	/**
+	 * Creates a new process with timeouts registered with the specified scheduler,
+	 * mutations applied by the specified lanes and control files read through the specified cache
+	 * 
+	 * @param timeoutScheduler The (optional) scheduler to register timeouts with
+	 * @param lanes The (optional) lanes used to apply mutations - if null, mutations are synchronised by an internal lock
+	 * @param controlFileCache The (optional) cache used to read control files - if null, a shared default cache is used
+	 */
+	public DocumentTransferProcess(final String correlationId, final File rootFolder, final TransitionListener transitionListener,
+			final TimeoutScheduler timeoutScheduler, final ProcessLanes lanes, final ControlFileCache controlFileCache) {
+		Preconditions.checkArgument(lanes == null || lanes.getLaneCount() > 0, "lanes must not be disabled");
+		
 		this.correlationId = Preconditions.checkNotNull(correlationId);
-		this.rootFolder = Preconditions.checkNotNull(rootFolder);
 		this.transitionListener = Preconditions.checkNotNull(transitionListener);
-		this.lock = new Object();
-		this.state = State.PARSING;
+		this.lanes = lanes;
+		this.lock = lanes == null ? new Object() : null;
+		this.controlFileCache = controlFileCache == null ? DEFAULT_CONTROL_FILE_CACHE : controlFileCache;
+		this.status = State.PARSING.ordinal();
+		
+		final File parentFolder = rootFolder.getParentFile();
+		this.folderIsParent = parentFolder != null && correlationId.equals(rootFolder.getName());
+		this.folder = folderIsParent ? intern(parentFolder) : rootFolder;
 		
 		documentPreparationTimeout = new Timeout();
 		documentSendTimeout = new Timeout();
 		infResponseTimeout = new Timeout();
 		busResponseTimeout = new Timeout();
+		
+		if (timeoutScheduler != null) {
+			documentPreparationTimeout.bind(timeoutScheduler, this);
+			documentSendTimeout.bind(timeoutScheduler, this);
+			infResponseTimeout.bind(timeoutScheduler, this);
+			busResponseTimeout.bind(timeoutScheduler, this);
+		}
 	}
 	
 	public String getCorrelationId() {
@@ -80,27 +160,71 @@ public class DocumentTransferProcess {
 	}
 	
 	public File getRootFolder() {
-		return rootFolder;
+		return folderIsParent ? new File(folder, correlationId) : folder;
 	}
 	
 	public State getState() {
-		return state;
+		return STATES[status & STATE_MASK];
+	}
+	
+	/**
+	 * Returns the event which triggered the transition into the current state
+	 * 
+	 * @return The event, or null if the process has not changed state (or the event was not restored)
+	 */
+	public Event getLastEvent() {
+		final int lastEvent = (status & LAST_EVENT_MASK) >>> LAST_EVENT_SHIFT;
+		return lastEvent == 0 ? null : EVENTS[lastEvent - 1];
 	}
 	
+	/**
+	 * Returns the completed folder name - reading the control file if it has not yet been read
+	 */
 	public String getCompletedFolder() {
-		return completedFolder;
+		return resolveFolder(COMPLETED_FOLDER);
 	}
 	
+	/**
+	 * Returns the error folder name - reading the control file if it has not yet been read
+	 */
 	public String getErrorFolder() {
-		return errorFolder;
+		return resolveFolder(ERROR_FOLDER);
+	}
+	
+	/**
+	 * Returns the completed folder name if it has already been resolved - the control file is not read
+	 */
+	public String getResolvedCompletedFolder() {
+		return getResolvedFolder(completedFolder);
+	}
+	
+	/**
+	 * Returns the completed folder control file if it has been registered but not yet read
+	 */
+	public File getUnreadCompletedFolderFile() {
+		return getUnreadFolderFile(completedFolder);
+	}
+	
+	/**
+	 * Returns the error folder name if it has already been resolved - the control file is not read
+	 */
+	public String getResolvedErrorFolder() {
+		return getResolvedFolder(errorFolder);
+	}
+	
+	/**
+	 * Returns the error folder control file if it has been registered but not yet read
+	 */
+	public File getUnreadErrorFolderFile() {
+		return getUnreadFolderFile(errorFolder);
 	}
 	
 	public boolean isInfAckWanted() {
-		return infAckWanted;
+		return (status & INF_ACK_WANTED) != 0;
 	}
 	
 	public boolean isBusAckWanted() {
-		return busAckWanted;
+		return (status & BUS_ACK_WANTED) != 0;
 	}
 	
 	public Timeout getDocumentPreparationTimeout() {
@@ -140,75 +264,221 @@ public class DocumentTransferProcess {
 	public String toString() {
 		return MoreObjects.toStringHelper(this)
 				.add("correlationId", correlationId)
-				.add("rootFolder", rootFolder)
-				.add("state", state)
+				.add("rootFolder", getRootFolder())
+				.add("state", getState())
 				.add("completedFolder", completedFolder)
 				.add("errorFolder", errorFolder)
-				.add("infAckWanted", infAckWanted)
-				.add("busAckWanted", busAckWanted)
+				.add("infAckWanted", isInfAckWanted())
+				.add("busAckWanted", isBusAckWanted())
 				.toString();
 	}
 	
-	// public mutation methods - synchronised by internal lock
+	// public mutation methods - synchronised by internal lock (or applied by the process lane)
 	
 	public void registerControlFile(final File file) {
-		synchronized (lock) {
-			final String name = file.getName();
-			if ("completed-folder".equals(name)) {
-				setCompletedFolder(file);
-			}  else if ("error-folder".equals(name)) {
-				setErrorFolder(file);
-			} else if ("wants-inf-ack".equals(name)) {
-				infAckWanted = true;
-			} else if ("wants-bus-ack".equals(name)) {
-				busAckWanted = true;
+		mutate(new Mutation() {
+			@Override
+			protected void apply() {
+				applyControlFile(file);
 			}
-		}
+		});
 	}
 	
 	public void registerEventsFile(final File file) {
-		synchronized (lock) {
-			final Matcher matcher = EVENT_NAME_PATTERN.matcher(file.getName());
-			if (!matcher.matches()) {
-				LOGGER.debug(logMsg("Unable to register event file - the name does not match expected pattern")
-						.documentId(getCorrelationId())
-						.state(state)
-						.eventName("event-file-registration-failed")
-						.fileName(file));
-				return;
+		mutate(new Mutation() {
+			@Override
+			protected void apply() {
+				applyEventsFile(file.getParentFile(), file.getName(), true);
 			}
-			
-			final long eventTime;
-			try {
-				eventTime = EVENT_NAME_TIMESTAMP_FORMATTER.parseMillis(matcher.group(1));
-			} catch (IllegalArgumentException e) {
-				LOGGER.debug(logMsg("Unable to register event file - the timestamp is not valid")
-					.documentId(getCorrelationId())
-					.state(state)
-					.eventName("event-file-registration-failed")
-					.fileName(file)
-					.set("Timestamp", matcher.group(1)));
+		});
+	}
+	
+	/**
+	 * Registers a run of event files (sorted by ascending time-stamp) as a single mutation - the
+	 * events are applied in one loop, rather than locking (or queueing to the lane) once per file
+	 */
+	public void registerEventsFiles(final File eventsFolder, final List<String> fileNames) {
+		if (fileNames.isEmpty()) {
+			return;
+		}
+		
+		mutate(new Mutation() {
+			@Override
+			protected void apply() {
+				for (int index = 0; index < fileNames.size(); index++) {
+					applyEventsFile(eventsFolder, fileNames.get(index), true);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Replays a run of event files (sorted by ascending time-stamp) as a single mutation - without
+	 * notifying the listener of the intermediate transitions (e.g. when rebuilding the state of an
+	 * existing in-progress folder). Only the final transition is notified, and only if the process
+	 * ends in a terminal state.
+	 */
+	public void replayEventsFiles(final File eventsFolder, final List<String> fileNames) {
+		if (fileNames.isEmpty()) {
+			return;
+		}
+		
+		mutate(new Mutation() {
+			@Override
+			protected void apply() {
+				Transition lastTransition = null;
+				for (int index = 0; index < fileNames.size(); index++) {
+					final Transition transition = applyEventsFile(eventsFolder, fileNames.get(index), false);
+					if (transition != null) {
+						lastTransition = transition;
+					}
+				}
 				
-				return;
+				if (lastTransition != null && getState().isTerminal()) {
+					LOGGER.info(logMsg("State transition")
+						.documentId(getCorrelationId())
+						.fromState(lastTransition.getFromState())
+						.toState(lastTransition.getToState())
+						.eventName(lastTransition.getEvent().getFileSuffix()));
+					notifyTransition(lastTransition);
+				}
 			}
-			
-			final Event event = Event.getByFileSuffix(matcher.group(2));
-			if (event != null) {
-				transition(eventTime, event);
+		});
+	}
+	
+	/**
+	 * Registers an event which was received directly (rather than as an event file)
+	 * 
+	 * @return true if the event was applied and moved the process into a new state, or false if the event
+	 * 			was ignored in the current state (or has been queued to the process lane)
+	 */
+	public boolean registerEvent(final Event event, final long eventTime) {
+		Preconditions.checkNotNull(event);
+		
+		final EventMutation mutation = new EventMutation(event, eventTime);
+		mutate(mutation);
+		return mutation.transitioned;
+	}
+	
+	public void processTimeouts(final long now) {
+		mutate(new Mutation() {
+			@Override
+			protected void apply() {
+				processTimeout(documentPreparationTimeout, Event.DOCUMENT_PREPARATION_TIMEOUT, now);
+				processTimeout(documentSendTimeout, Event.DOCUMENT_SEND_TIMEOUT, now);
+				processTimeout(infResponseTimeout, Event.INF_RESPONSE_TIMEOUT, now);
+				processTimeout(busResponseTimeout, Event.BUS_RESPONSE_TIMEOUT, now);
+			}
+		});
+	}
+	
+	/**
+	 * Restores previously checkpointed state properties.
+	 * <p>
+	 * Transition listeners are not notified - the restored state is assumed to have
+	 * been reached (and acted upon) before the checkpoint was taken.
+	 */
+	public void restore(final State state, final String completedFolder, final String errorFolder,
+			final boolean infAckWanted, final boolean busAckWanted) {
+		restore(state, completedFolder, errorFolder, infAckWanted, busAckWanted, null);
+	}
+	
+	/**
+	 * Restores previously checkpointed state properties - including the event which
+	 * triggered the transition into the restored state (if known)
+	 */
+	public void restore(final State state, final String completedFolder, final String errorFolder,
+			final boolean infAckWanted, final boolean busAckWanted, final Event lastEvent) {
+		Preconditions.checkNotNull(state);
+		
+		mutate(new Mutation() {
+			@Override
+			protected void apply() {
+				status = state.ordinal()
+						| (infAckWanted ? INF_ACK_WANTED : 0)
+						| (busAckWanted ? BUS_ACK_WANTED : 0)
+						| (lastEvent == null ? 0 : (lastEvent.ordinal() + 1) << LAST_EVENT_SHIFT);
+				DocumentTransferProcess.this.completedFolder = intern(completedFolder);
+				DocumentTransferProcess.this.errorFolder = intern(errorFolder);
+			}
+		});
+	}
+	
+	/**
+	 * Cancels all running timeouts (e.g. when the process is no longer being tracked)
+	 */
+	public void cancelTimeouts() {
+		mutate(new Mutation() {
+			@Override
+			protected void apply() {
+				cancelAllTimeouts();
 			}
+		});
+	}
+	
+	// private methods - synchronisation is handled by the public calling methods
+	
+	/**
+	 * Applies the mutation under the internal lock - or queues it to the process lane
+	 */
+	private void mutate(final Mutation mutation) {
+		if (lanes == null) {
+			synchronized (lock) {
+				mutation.apply();
+			}
+		} else {
+			lanes.execute(correlationId, mutation);
 		}
 	}
-
-	public void processTimeouts(final long now) {
-		synchronized (lock) {
-			processTimeout(documentPreparationTimeout, Event.DOCUMENT_PREPARATION_TIMEOUT, now);
-			processTimeout(documentSendTimeout, Event.DOCUMENT_SEND_TIMEOUT, now);
-			processTimeout(infResponseTimeout, Event.INF_RESPONSE_TIMEOUT, now);
-			processTimeout(busResponseTimeout, Event.BUS_RESPONSE_TIMEOUT, now);
+	
+	private void applyControlFile(final File file) {
+		final String name = file.getName();
+		if (COMPLETED_FOLDER_FILE.equals(name)) {
+			setCompletedFolder(file);
+		}  else if (ERROR_FOLDER_FILE.equals(name)) {
+			setErrorFolder(file);
+		} else if (WANTS_INF_ACK_FILE.equals(name)) {
+			status |= INF_ACK_WANTED;
+		} else if (WANTS_BUS_ACK_FILE.equals(name)) {
+			status |= BUS_ACK_WANTED;
 		}
 	}
 	
-	// private methods - synchronisation is handled by the public calling methods
+	/**
+	 * @return The resulting transition, or null if the state did not change
+	 */
+	private Transition applyEventsFile(final File eventsFolder, final String name, final boolean notify) {
+		if (!EventFileNameParser.matches(name)) {
+			LOGGER.debug(logMsg("Unable to register event file - the name does not match expected pattern")
+					.documentId(getCorrelationId())
+					.state(getState())
+					.eventName("event-file-registration-failed")
+					.fileName(new File(eventsFolder, name)));
+			return null;
+		}
+			
+		final long eventTime = EventFileNameParser.parseTimestamp(name);
+		if (eventTime == EventFileNameParser.INVALID_TIMESTAMP) {
+			LOGGER.debug(logMsg("Unable to register event file - the timestamp is not valid")
+				.documentId(getCorrelationId())
+				.state(getState())
+				.eventName("event-file-registration-failed")
+				.fileName(new File(eventsFolder, name))
+				.set("Timestamp", name.substring(0, EventFileNameParser.TIMESTAMP_LENGTH)));
+				
+			return null;
+		}
+			
+		final Event event = EventFileNameParser.parseEvent(name);
+		return event == null ? null : transition(eventTime, event, notify);
+	}
+
+	private void cancelAllTimeouts() {
+		documentPreparationTimeout.cancel();
+		documentSendTimeout.cancel();
+		infResponseTimeout.cancel();
+		busResponseTimeout.cancel();
+	}
 	
 	private void processTimeout(final Timeout timeout, final Event event, final long now) {
 		if (timeout.isTriggered(now)) {
@@ -221,12 +491,12 @@ public class DocumentTransferProcess {
 	}
 
 	private void storeTimestampEventFile(final Event event, final long eventTime) {
-		final File eventsFolder = new File(rootFolder, "events");
-		final File eventFile = new File(eventsFolder, EVENT_NAME_TIMESTAMP_FORMATTER.print(eventTime) + "-" + event.getFileSuffix());
+		final File eventsFolder = new File(getRootFolder(), "events");
+		final File eventFile = new File(eventsFolder, EventFileNameParser.format(eventTime, event));
 		
 		LOGGER.info(logMsg("Storing event file")
 			.documentId(getCorrelationId())
-			.state(state)
+			.state(getState())
 			.eventName("store-" + event.getFileSuffix())
 			.fileName(eventFile));
 		
@@ -236,69 +506,176 @@ public class DocumentTransferProcess {
 		} catch (IOException e) {
 			LOGGER.warn(logMsg("Unable to store event file")
 				.documentId(getCorrelationId())
-				.state(state)
+				.state(getState())
 				.eventName("store-" + event.getFileSuffix())
 				.fileName(eventFile));
 		}
 	}
 	
-	private void cancelTimeouts() {
-		documentPreparationTimeout.cancel();
-		documentSendTimeout.cancel();
-		infResponseTimeout.cancel();
-		busResponseTimeout.cancel();
-	}
-	
 	private void setCompletedFolder(final File file) {
-		completedFolder = readFirstLine(file).trim();
+		completedFolder = file;
 	}
 	
 	private void setErrorFolder(final File file) {
-		errorFolder = readFirstLine(file).trim();
+		errorFolder = file;
 	}
 	
-	private String readFirstLine(final File file) {
-		if (file == null || !file.isFile()) {
-			return "";
+	/**
+	 * Resolves the folder name from the control file held by the field (if any).
+	 * <p>
+	 * Resolution does not require the process lock: the name is only stored if the
+	 * same control file is still registered, and reading the file again is harmless.
+	 */
+	private String resolveFolder(final AtomicReferenceFieldUpdater<DocumentTransferProcess, Object> field) {
+		final Object value = field.get(this);
+		if (!(value instanceof File)) {
+			return (String)value;
 		}
 		
-		String firstLine = "";
-		Reader reader = null;
+		final String folder = intern(readFirstLine((File)value).trim());
+		field.compareAndSet(this, value, folder);
+		return folder;
+	}
+	
+	private static String getResolvedFolder(final Object value) {
+		return value instanceof String ? (String)value : null;
+	}
+	
+	private static File getUnreadFolderFile(final Object value) {
+		return value instanceof File ? (File)value : null;
+	}
+	
+	private void setState(final State state) {
+		status = (status & ~STATE_MASK) | state.ordinal();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T intern(final T value) {
+		return value == null ? null : (T)INTERNER.intern(value);
+	}
+	
+	private String readFirstLine(final File file) {
 		try {
-			reader = new FileReader(file);
-			final List<String> lines = CharStreams.readLines(reader);
-			if (!lines.isEmpty()) {
-				firstLine = lines.get(0);
-			}
+			return controlFileCache.readFirstLine(file);
 		} catch (IOException e) {
 			LOGGER.debug(logMsg("Unable to read first line from file")
 					.documentId(getCorrelationId())
-					.state(state)
+					.state(getState())
 					.fileName(file));
-		} finally {
-			Closeables.closeQuietly(reader);
+			return "";
 		}
-		
-		return firstLine;
 	}
 	
 	private void transition(final long eventTime, final Event event) {
-		final State from = this.state;
-		this.state = event.dispatch(from, this, eventTime);
-		if (from != state) {
+		transition(eventTime, event, true);
+	}
+	
+	/**
+	 * @param notify true if the listener should be notified of the transition (if any)
+	 * @return The resulting transition, or null if the state did not change
+	 */
+	private Transition transition(final long eventTime, final Event event, final boolean notify) {
+		final State from = getState();
+		setState(TransitionTable.apply(this, from, event, eventTime));
+		
+		final State state = getState();
+		if (from == state) {
+			return null;
+		}
+		
+		status = (status & ~LAST_EVENT_MASK) | ((event.ordinal() + 1) << LAST_EVENT_SHIFT);
+		if (notify) {
 			LOGGER.info(logMsg("State transition")
 				.documentId(getCorrelationId())
 				.fromState(from)
 				.toState(state)
 				.eventName(event.getFileSuffix()));
+		} else if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug(logMsg("Replayed state transition")
+				.documentId(getCorrelationId())
+				.fromState(from)
+				.toState(state)
+				.eventName(event.getFileSuffix()));
+		}
 			
-			if (state.isTerminal()) {
-				cancelTimeouts();
-			}
+		if (state.isTerminal()) {
+			cancelAllTimeouts();
+		}
 			
-			final Transition transition = new Transition(from, state, event, eventTime);
+		final Transition transition = new Transition(from, state, event, eventTime);
+		if (notify) {
+			notifyTransition(transition);
+		}
+		return transition;
+	}
+	
+	private void notifyTransition(final Transition transition) {
+		if (lanes == null) {
 			transitionListener.onTransition(this, transition);
+		} else {
+			if (pendingTransitions == null) {
+				pendingTransitions = Lists.newArrayListWithCapacity(2);
+			}
+			pendingTransitions.add(transition);
+		}
+	}
+
+	/**
+	 * Notifies the listener of the transitions made by the lane mutation which has just been applied
+	 */
+	private void notifyPendingTransitions() {
+		final List<Transition> transitions = pendingTransitions;
+		if (transitions == null) {
+			return;
+		}
+		
+		pendingTransitions = null;
+		for (final Transition transition: transitions) {
+			try {
+				transitionListener.onTransition(this, transition);
+			} catch (RuntimeException e) {
+				LOGGER.error(logMsg("Unable to process transition")
+					.documentId(getCorrelationId())
+					.fromState(transition.getFromState())
+					.toState(transition.getToState())
+					.eventName(transition.getEvent().getFileSuffix() + "-failed"), e);
+			}
+		}
+	}
+	
+	/**
+	 * A mutation of the process state - when run by a lane, any resulting transitions are
+	 * notified after the mutation has been applied
+	 */
+	private abstract class Mutation implements Runnable {
+		protected abstract void apply();
+		
+		@Override
+		public final void run() {
+			try {
+				apply();
+			} finally {
+				notifyPendingTransitions();
+			}
+		}
+	}
+	
+	/**
+	 * Applies a single event - recording whether the event caused a transition
+	 */
+	private class EventMutation extends Mutation {
+		private final Event event;
+		private final long eventTime;
+		volatile boolean transitioned;
+		
+		public EventMutation(final Event event, final long eventTime) {
+			this.event = event;
+			this.eventTime = eventTime;
+		}
+
+		@Override
+		protected void apply() {
+			transitioned = transition(eventTime, event, true) != null;
 		}
 	}
 }
- 
\ No newline at end of file
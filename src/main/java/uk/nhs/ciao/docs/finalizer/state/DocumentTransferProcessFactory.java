@@ -10,6 +10,9 @@ public class DocumentTransferProcessFactory {
 	private long documentSendTimeout;
 	private long infResponseTimeout;
 	private long busResponseTimeout;
+	private TimeoutScheduler timeoutScheduler;
+	private ProcessLanes processLanes;
+	private ControlFileCache controlFileCache;
 	
 	public DocumentTransferProcessFactory(final TransitionListener transitionListener) {
 		this.transitionListener = Preconditions.checkNotNull(transitionListener);
@@ -35,8 +38,43 @@ public class DocumentTransferProcessFactory {
 		this.busResponseTimeout = busResponseTimeout;
 	}
 	
+	/**
+	 * Sets the (optional) scheduler to register process timeouts with
+	 */
+	public void setTimeoutScheduler(final TimeoutScheduler timeoutScheduler) {
+		this.timeoutScheduler = timeoutScheduler;
+	}
+	
+	public TimeoutScheduler getTimeoutScheduler() {
+		return timeoutScheduler;
+	}
+	
+	/**
+	 * Sets the (optional) lanes used to apply process mutations - if the lanes are disabled
+	 * (zero lanes) mutations are synchronised on each process
+	 */
+	public void setProcessLanes(final ProcessLanes processLanes) {
+		this.processLanes = processLanes == null || processLanes.getLaneCount() == 0 ? null : processLanes;
+	}
+	
+	/**
+	 * Returns the lanes used to apply process mutations, or null if lanes are not enabled
+	 */
+	public ProcessLanes getProcessLanes() {
+		return processLanes;
+	}
+	
+	/**
+	 * Sets the (optional) cache used to read control files - if not specified a shared
+	 * default cache is used
+	 */
+	public void setControlFileCache(final ControlFileCache controlFileCache) {
+		this.controlFileCache = controlFileCache;
+	}
+	
 	public DocumentTransferProcess createDocumentTransferProcess(final String correlationId, final File rootFolder) {
-		final DocumentTransferProcess process = new DocumentTransferProcess(correlationId, rootFolder, transitionListener);
+		final DocumentTransferProcess process = new DocumentTransferProcess(correlationId, rootFolder, transitionListener,
+				timeoutScheduler, processLanes, controlFileCache);
 		
 		process.getDocumentPreparationTimeout().setThreshold(documentPreparationTimeout);
 		process.getDocumentSendTimeout().setThreshold(documentSendTimeout);
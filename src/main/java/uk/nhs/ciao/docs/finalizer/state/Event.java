@@ -1,5 +1,6 @@
 package uk.nhs.ciao.docs.finalizer.state;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import com.google.common.collect.Maps;
@@ -104,10 +105,52 @@ public enum Event {
 		EVENTS_BY_FILE_SUFFIX = map;
 	}
 	
+	/**
+	 * Events indexed by the length of their file suffix - each bucket only contains a few
+	 * candidates, so a suffix can be resolved without extracting it from the file name
+	 */
+	private static final Event[][] EVENTS_BY_FILE_SUFFIX_LENGTH;
+	static {
+		int maxLength = 0;
+		for (final String fileSuffix: EVENTS_BY_FILE_SUFFIX.keySet()) {
+			maxLength = Math.max(maxLength, fileSuffix.length());
+		}
+		
+		final Event[][] table = new Event[maxLength + 1][];
+		for (final Event event: EVENTS_BY_FILE_SUFFIX.values()) {
+			final int length = event.fileSuffix.length();
+			final Event[] bucket = table[length] == null ? new Event[1] : Arrays.copyOf(table[length], table[length].length + 1);
+			bucket[bucket.length - 1] = event;
+			table[length] = bucket;
+		}
+		EVENTS_BY_FILE_SUFFIX_LENGTH = table;
+	}
+	
 	public static Event getByFileSuffix(final String fileSuffix) {
 		return EVENTS_BY_FILE_SUFFIX.get(fileSuffix);
 	}
 	
+	/**
+	 * Returns the event whose file suffix matches the remainder of the file name (starting at offset)
+	 * - without allocating a substring
+	 * 
+	 * @return The matching event, or null if the suffix is not known
+	 */
+	public static Event getByFileSuffix(final String fileName, final int offset) {
+		final int length = fileName.length() - offset;
+		if (length < 0 || length >= EVENTS_BY_FILE_SUFFIX_LENGTH.length || EVENTS_BY_FILE_SUFFIX_LENGTH[length] == null) {
+			return null;
+		}
+		
+		for (final Event event: EVENTS_BY_FILE_SUFFIX_LENGTH[length]) {
+			if (fileName.regionMatches(offset, event.fileSuffix, 0, length)) {
+				return event;
+			}
+		}
+		
+		return null;
+	}
+	
 	private final String fileSuffix;
 	
 	private Event(final String fileSuffix) {
@@ -118,5 +161,11 @@ public enum Event {
 		return fileSuffix;
 	}
 	
+	/**
+	 * Dispatches the event to the matching handler of the state
+	 * <p>
+	 * {@link DocumentTransferProcess} applies events through the equivalent {@link TransitionTable} - the
+	 * handlers of {@link State} remain as the public description of each transition.
+	 */
 	public abstract State dispatch(final State state, final DocumentTransferProcess process, final long eventTime);
 }
\ No newline at end of file
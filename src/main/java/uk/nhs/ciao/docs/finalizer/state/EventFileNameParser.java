@@ -0,0 +1,169 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Parses event file names (e.g. <code>20150903-153545804-bus-ack-received</code>) without allocating.
+ * <p>
+ * The names have a fixed layout: a <code>yyyyMMdd-HHmmssSSS</code> UTC timestamp, a dash and then the
+ * event file suffix. Rather than matching a regular expression, extracting groups and parsing the timestamp
+ * with a formatter, the characters are inspected in place: the timestamp is converted to epoch millis
+ * arithmetically (proleptic Gregorian calendar) and the event is resolved via {@link Event#getByFileSuffix(String, int)}.
+ * <p>
+ * Names are accepted / rejected exactly as the previous <code>(\d{8}-\d{9})-(.+)</code> pattern and
+ * <code>yyyyMMdd-HHmmssSSS</code> formatter did.
+ */
+public final class EventFileNameParser {
+	/**
+	 * Returned by {@link #parseTimestamp(String)} if the timestamp is not a valid date/time
+	 */
+	public static final long INVALID_TIMESTAMP = Long.MIN_VALUE;
+	
+	/**
+	 * Length of the <code>yyyyMMdd-HHmmssSSS</code> timestamp
+	 */
+	public static final int TIMESTAMP_LENGTH = 18;
+	
+	/**
+	 * Offset of the event file suffix
+	 */
+	public static final int SUFFIX_OFFSET = TIMESTAMP_LENGTH + 1;
+	
+	/**
+	 * Timestamp format used by {@link #format(long, Event)}
+	 */
+	private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd-HHmmssSSS").withZoneUTC();
+	
+	private static final long MILLIS_PER_SECOND = 1000L;
+	private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+	private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+	private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+	
+	/**
+	 * Days between 0000-03-01 and 1970-01-01
+	 */
+	private static final long DAYS_TO_EPOCH = 719468L;
+	
+	private EventFileNameParser() {
+		// Suppress default constructor
+	}
+	
+	/**
+	 * Tests if the name has the layout of an event file name: <code>{8 digits}-{9 digits}-{suffix}</code>
+	 * where the suffix is at least one character (excluding line terminators)
+	 */
+	public static boolean matches(final String name) {
+		final int length = name.length();
+		if (length <= SUFFIX_OFFSET) {
+			return false;
+		}
+		
+		for (int index = 0; index < TIMESTAMP_LENGTH; index++) {
+			final char c = name.charAt(index);
+			if (index == 8) {
+				if (c != '-') {
+					return false;
+				}
+			} else if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		
+		if (name.charAt(TIMESTAMP_LENGTH) != '-') {
+			return false;
+		}
+		
+		// the '.' of the original pattern does not match line terminators
+		for (int index = SUFFIX_OFFSET; index < length; index++) {
+			if (isLineTerminator(name.charAt(index))) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Parses the timestamp of a name accepted by {@link #matches(String)}
+	 *
+	 * @return The UTC time in millis, or {@link #INVALID_TIMESTAMP} if the timestamp is not a valid date/time
+	 */
+	public static long parseTimestamp(final String name) {
+		final int year = digits(name, 0, 4);
+		final int month = digits(name, 4, 2);
+		final int day = digits(name, 6, 2);
+		final int hour = digits(name, 9, 2);
+		final int minute = digits(name, 11, 2);
+		final int second = digits(name, 13, 2);
+		final int millis = digits(name, 15, 3);
+		
+		if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+				|| hour > 23 || minute > 59 || second > 59) {
+			return INVALID_TIMESTAMP;
+		}
+		
+		return daysSinceEpoch(year, month, day) * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR
+				+ minute * MILLIS_PER_MINUTE + second * MILLIS_PER_SECOND + millis;
+	}
+	
+	/**
+	 * Resolves the event of a name accepted by {@link #matches(String)}
+	 *
+	 * @return The event, or null if the suffix is not a known event
+	 */
+	public static Event parseEvent(final String name) {
+		return Event.getByFileSuffix(name, SUFFIX_OFFSET);
+	}
+	
+	/**
+	 * Formats the name of the event file representing the event - the inverse of
+	 * {@link #parseTimestamp(String)} and {@link #parseEvent(String)}
+	 */
+	public static String format(final long eventTime, final Event event) {
+		return TIMESTAMP_FORMATTER.print(eventTime) + "-" + event.getFileSuffix();
+	}
+	
+	private static int digits(final String name, final int offset, final int count) {
+		int value = 0;
+		for (int index = offset; index < offset + count; index++) {
+			value = (value * 10) + (name.charAt(index) - '0');
+		}
+		return value;
+	}
+	
+	private static int daysInMonth(final int year, final int month) {
+		switch (month) {
+		case 2:
+			return isLeapYear(year) ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+	
+	private static boolean isLeapYear(final int year) {
+		return (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+	}
+	
+	/**
+	 * Converts a civil date to days since 1970-01-01 (treating years as starting in March
+	 * so that leap days fall at the end of the year)
+	 */
+	private static long daysSinceEpoch(final int year, final int month, final int day) {
+		final long y = month <= 2 ? year - 1 : year;
+		final long era = (y >= 0 ? y : y - 399) / 400;
+		final long yearOfEra = y - era * 400;
+		final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - DAYS_TO_EPOCH;
+	}
+	
+	private static boolean isLineTerminator(final char c) {
+		return c == '\n' || c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029;
+	}
+}
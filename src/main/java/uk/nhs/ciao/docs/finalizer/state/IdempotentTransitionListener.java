@@ -2,12 +2,17 @@ package uk.nhs.ciao.docs.finalizer.state;
 
 import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.impl.DefaultExchange;
 import org.apache.camel.spi.IdempotentRepository;
 
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.metrics.Histogram;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
 import uk.nhs.ciao.logging.CiaoLogger;
 
 import com.google.common.base.Preconditions;
@@ -26,12 +31,27 @@ public class IdempotentTransitionListener implements TransitionListener {
 	private final String targetUri;
 	private final ProducerTemplate producerTemplate;
 	private final TransitionListener delegate;
+	private final Histogram duration;
+	private final Counter duplicates;
 	
 	public IdempotentTransitionListener(final String targetUri, final ProducerTemplate producerTemplate,
 			final TransitionListener delegate) {
+		this(targetUri, producerTemplate, delegate, new MetricRegistry());
+	}
+	
+	/**
+	 * Creates a new listener - recording the time taken by each notification (including the idempotent check) and the
+	 * number of duplicate notifications suppressed by the repository
+	 */
+	public IdempotentTransitionListener(final String targetUri, final ProducerTemplate producerTemplate,
+			final TransitionListener delegate, final MetricRegistry registry) {
 		this.targetUri = Preconditions.checkNotNull(targetUri);
 		this.producerTemplate = Preconditions.checkNotNull(producerTemplate);
 		this.delegate = Preconditions.checkNotNull(delegate);
+		this.duration = registry.histogram("idempotent_transition_duration_seconds",
+				"Duration of idempotent transition notifications (including the repository check)");
+		this.duplicates = registry.counter("idempotent_transition_duplicates_total",
+				"Transition notifications suppressed as duplicates by the idempotent repository");
 	}
 	
 	@Override
@@ -46,7 +66,14 @@ public class IdempotentTransitionListener implements TransitionListener {
 		in.setHeader(HEADER_TRANSITION, transition);
 		in.setBody(delegate);
 		
+		final long startTime = System.nanoTime();
 		producerTemplate.send(targetUri, exchange);
+		duration.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+		
+		if (Boolean.TRUE.equals(exchange.getProperty(Exchange.DUPLICATE_MESSAGE))) {
+			duplicates.increment();
+		}
+		
 		if (exchange.getException() != null) {
 			LOGGER.error(logMsg("Unable to process transition")
 				.documentId(process.getCorrelationId())
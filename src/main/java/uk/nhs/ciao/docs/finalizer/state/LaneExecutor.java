@@ -0,0 +1,186 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A fixed set of lanes, each served by a single thread.
+ * <p>
+ * Each key (correlation id) is pinned to one lane - so the tasks submitted for a key are run in order
+ * by the same thread. Shared by {@link ProcessLanes} (unbounded queues) and {@link AsyncTransitionListener}
+ * (bounded queues).
+ */
+final class LaneExecutor implements Closeable {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(LaneExecutor.class);
+	private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+	private static final Runnable POISON = new Runnable() {
+		@Override
+		public void run() {
+			// NOOP
+		}
+	};
+	
+	private final String name;
+	private final Lane[] lanes;
+	private final ThreadLocal<Lane> currentLane = new ThreadLocal<Lane>();
+	private volatile boolean closed;
+	
+	/**
+	 * Creates and starts the lanes
+	 *
+	 * @param name The name of the lanes - used to name the lane threads
+	 * @param laneCount The number of lanes
+	 * @param queueCapacity The maximum number of pending tasks per lane (zero for an unbounded queue)
+	 */
+	public LaneExecutor(final String name, final int laneCount, final int queueCapacity) {
+		Preconditions.checkArgument(laneCount >= 0, "laneCount must not be negative");
+		Preconditions.checkArgument(queueCapacity >= 0, "queueCapacity must not be negative");
+		
+		this.name = Preconditions.checkNotNull(name);
+		this.lanes = new Lane[laneCount];
+		
+		final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+			.setNameFormat(name + "-%d")
+			.setDaemon(true)
+			.build();
+		for (int index = 0; index < laneCount; index++) {
+			lanes[index] = new Lane(queueCapacity == 0 ? new LinkedBlockingQueue<Runnable>()
+					: new ArrayBlockingQueue<Runnable>(queueCapacity));
+			threadFactory.newThread(lanes[index]).start();
+		}
+	}
+	
+	public int getLaneCount() {
+		return lanes.length;
+	}
+	
+	/**
+	 * The number of tasks waiting in the specified lane
+	 */
+	public int getQueueDepth(final int laneIndex) {
+		return lanes[laneIndex].queue.size();
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	/**
+	 * Tests if the calling thread is the thread of the lane for the specified key
+	 */
+	public boolean isCurrentLane(final String key) {
+		return currentLane.get() == getLane(key);
+	}
+	
+	/**
+	 * Queues the task to the lane for the specified key - without waiting for space
+	 *
+	 * @return true if the task was queued, or false if the lane is full
+	 */
+	public boolean offer(final String key, final Runnable task) {
+		return getLane(key).queue.offer(task);
+	}
+	
+	/**
+	 * Queues the task to the lane for the specified key - waiting for space if the lane is full
+	 */
+	public void put(final String key, final Runnable task) throws InterruptedException {
+		getLane(key).queue.put(task);
+	}
+	
+	/**
+	 * Stops the lanes once the pending tasks have been run - waiting for the tasks to complete
+	 * <p>
+	 * Callers should stop submitting tasks before the lanes are closed - tasks submitted
+	 * after the lanes have stopped are not run.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		final long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+		try {
+			for (final Lane lane: lanes) {
+				lane.queue.put(POISON);
+			}
+			
+			for (final Lane lane: lanes) {
+				if (!lane.awaitTermination(deadline - System.currentTimeMillis())) {
+					LOGGER.warn(logMsg("Timed out waiting for pending lane tasks to complete")
+						.set("Lanes", name)
+						.set("Pending", lane.queue.size()));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private Lane getLane(final String key) {
+		Preconditions.checkState(lanes.length > 0, "No lanes are configured");
+		return lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length];
+	}
+	
+	/**
+	 * A queue of tasks served by a single thread
+	 */
+	private class Lane implements Runnable {
+		private final BlockingQueue<Runnable> queue;
+		private final Object terminationLock = new Object();
+		private boolean terminated;
+		
+		public Lane(final BlockingQueue<Runnable> queue) {
+			this.queue = queue;
+		}
+		
+		@Override
+		public void run() {
+			currentLane.set(this);
+			try {
+				while (true) {
+					final Runnable task = queue.take();
+					if (task == POISON) {
+						break;
+					}
+					
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						LOGGER.error(logMsg("Unable to run lane task")
+							.set("Lanes", name), e);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				synchronized (terminationLock) {
+					terminated = true;
+					terminationLock.notifyAll();
+				}
+			}
+		}
+		
+		public boolean awaitTermination(final long timeoutMillis) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + timeoutMillis;
+			synchronized (terminationLock) {
+				while (!terminated) {
+					final long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						return false;
+					}
+					terminationLock.wait(remaining);
+				}
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.Closeable;
+import java.util.Map;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Gauge;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Single-writer execution lanes for document transfer process mutations.
+ * <p>
+ * Each correlation id is pinned to one lane, and each lane is served by a single thread - so all
+ * mutations of a process are applied in order by the same thread and no process locks are required.
+ * Watcher, poller and timeout threads enqueue their mutations rather than contending for a process.
+ * <p>
+ * Tasks submitted from the lane which owns the correlation id run immediately on the calling thread -
+ * so a lane task can make several mutations of its process (e.g. a scan of the events folder) as a
+ * single unit.
+ * <p>
+ * If the lane count is zero, lanes are disabled and processes synchronise their own mutations.
+ *
+ * @see DocumentTransferProcessFactory#setProcessLanes(ProcessLanes)
+ */
+public class ProcessLanes implements Closeable {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(ProcessLanes.class);
+	
+	/**
+	 * Lanes with unbounded queues - submitting a mutation must never block the poller, watcher or
+	 * timeout threads (or another lane) waiting for space
+	 */
+	private final LaneExecutor lanes;
+	
+	/**
+	 * Creates a new set of lanes
+	 *
+	 * @param laneCount The number of lanes (zero to disable lanes)
+	 */
+	public ProcessLanes(final int laneCount) {
+		Preconditions.checkArgument(laneCount >= 0, "laneCount must not be negative");
+		
+		this.lanes = new LaneExecutor("processLane", laneCount, 0);
+	}
+	
+	public int getLaneCount() {
+		return lanes.getLaneCount();
+	}
+	
+	/**
+	 * Registers the number of pending tasks in each lane with the registry
+	 */
+	public void setMetricRegistry(final MetricRegistry registry) {
+		registry.gauge("process_lane_queue_depth", "Process mutations waiting for a process lane", "lane", new Gauge.Source() {
+			@Override
+			public Map<String, Integer> getValues() {
+				final Map<String, Integer> values = Maps.newLinkedHashMap();
+				for (int index = 0; index < lanes.getLaneCount(); index++) {
+					values.put(Integer.toString(index), lanes.getQueueDepth(index));
+				}
+				return values;
+			}
+		});
+	}
+	
+	/**
+	 * Runs the task on the lane of the specified process - immediately if the caller is already
+	 * running on that lane, otherwise after the tasks previously submitted to the lane.
+	 * <p>
+	 * Tasks submitted after the lanes have been closed are discarded.
+	 * 
+	 * @return true if the task was run or queued, or false if it was discarded
+	 */
+	public boolean execute(final String correlationId, final Runnable task) {
+		Preconditions.checkState(lanes.getLaneCount() > 0, "Process lanes are disabled");
+		
+		if (lanes.isCurrentLane(correlationId)) {
+			task.run();
+			return true;
+		} else if (lanes.isClosed()) {
+			LOGGER.debug(logMsg("Discarding process mutation - the process lanes have been closed")
+				.documentId(correlationId));
+			return false;
+		} else {
+			return lanes.offer(correlationId, task);
+		}
+	}
+	
+	/**
+	 * Stops accepting tasks and waits for the pending tasks to complete
+	 */
+	@Override
+	public void close() {
+		lanes.close();
+	}
+}
@@ -1,11 +1,20 @@
 package uk.nhs.ciao.docs.finalizer.state;
 
+import uk.nhs.ciao.docs.finalizer.state.TimeoutScheduler.ScheduledTimeout;
+
 import com.google.common.base.MoreObjects;
 
 public final class Timeout {
 	private volatile long start;
 	private volatile long threshold;
 	
+	/*
+	 * Optional scheduler registration - see bind()
+	 */
+	private TimeoutScheduler scheduler;
+	private DocumentTransferProcess process;
+	private volatile ScheduledTimeout scheduled;
+	
 	public Timeout() {
 		// NOOP
 	}
@@ -14,6 +23,15 @@ public final class Timeout {
 		this.threshold = threshold;
 	}
 	
+	/**
+	 * Binds this timeout to a scheduler - subsequent starts/cancels will be registered
+	 * with the scheduler on behalf of the owning process
+	 */
+	void bind(final TimeoutScheduler scheduler, final DocumentTransferProcess process) {
+		this.scheduler = scheduler;
+		this.process = process;
+	}
+	
 	public long getStart() {
 		return start;
 	}
@@ -24,14 +42,17 @@ public final class Timeout {
 	
 	public void start(final long now) {
 		this.start = now;
+		reschedule();
 	}
 	
 	public void cancel() {
 		this.start = 0;
+		reschedule();
 	}
 	
 	public void setThreshold(final long threshold) {
 		this.threshold = threshold;
+		reschedule();
 	}
 	
 	public boolean isStarted() {
@@ -46,6 +67,24 @@ public final class Timeout {
 		return isStarted() && (getTrigger() <= now);
 	}
 	
+	ScheduledTimeout getScheduled() {
+		return scheduled;
+	}
+	
+	void setScheduled(final ScheduledTimeout scheduled) {
+		this.scheduled = scheduled;
+	}
+	
+	private void reschedule() {
+		if (scheduler == null) {
+			return;
+		} else if (isStarted()) {
+			scheduler.schedule(this, process);
+		} else {
+			scheduler.unschedule(this);
+		}
+	}
+	
 	@Override
 	public String toString() {
 		return MoreObjects.toStringHelper(this)
@@ -0,0 +1,114 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Longs;
+
+/**
+ * Central scheduler for the {@link Timeout}s of all document transfer processes.
+ * <p>
+ * Started timeouts are registered in a queue ordered by trigger time - allowing
+ * {@link #processTimeouts(long)} to visit only the timeouts which are actually due,
+ * rather than scanning every in-flight process. The cost of each check is therefore
+ * proportional to the number of expirations rather than the number of in-flight processes.
+ * <p>
+ * Timeouts are registered/unregistered automatically by {@link Timeout#start(long)} and
+ * {@link Timeout#cancel()} when the owning process has been bound to a scheduler.
+ */
+public class TimeoutScheduler {
+	private static final Comparator<ScheduledTimeout> TRIGGER_ORDER = new Comparator<ScheduledTimeout>() {
+		@Override
+		public int compare(final ScheduledTimeout o1, final ScheduledTimeout o2) {
+			final int result = Longs.compare(o1.trigger, o2.trigger);
+			return result != 0 ? result : Longs.compare(o1.sequence, o2.sequence);
+		}
+	};
+	
+	private final NavigableSet<ScheduledTimeout> queue = new ConcurrentSkipListSet<ScheduledTimeout>(TRIGGER_ORDER);
+	private final AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * Returns the number of currently scheduled timeouts
+	 */
+	public int size() {
+		return queue.size();
+	}
+	
+	/**
+	 * Returns the trigger time of the next scheduled timeout, or {@link Long#MAX_VALUE} if no timeouts are scheduled
+	 */
+	public long getNextTrigger() {
+		final ScheduledTimeout first = peek();
+		return first == null ? Long.MAX_VALUE : first.trigger;
+	}
+	
+	/**
+	 * Processes all timeouts which have triggered at the specified time
+	 *
+	 * @return The number of processes which were checked for triggered timeouts
+	 */
+	public int processTimeouts(final long now) {
+		int count = 0;
+		
+		for (ScheduledTimeout next = peek(); next != null && next.trigger <= now; next = peek()) {
+			// Only process the entry if it has not concurrently been unscheduled
+			if (queue.remove(next)) {
+				// The process checks (and cancels) its own timeouts under the process lock (or on its lane)
+				next.process.processTimeouts(now);
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	private ScheduledTimeout peek() {
+		final Iterator<ScheduledTimeout> iterator = queue.iterator();
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+	
+	/**
+	 * Registers a started timeout - replacing any previous registration
+	 */
+	void schedule(final Timeout timeout, final DocumentTransferProcess process) {
+		unschedule(timeout);
+		
+		if (timeout.isStarted()) {
+			final ScheduledTimeout scheduled = new ScheduledTimeout(timeout.getTrigger(),
+					sequence.incrementAndGet(), process);
+			timeout.setScheduled(scheduled);
+			queue.add(scheduled);
+		}
+	}
+	
+	/**
+	 * Removes any registration of the specified timeout
+	 */
+	void unschedule(final Timeout timeout) {
+		final ScheduledTimeout scheduled = timeout.getScheduled();
+		if (scheduled != null) {
+			timeout.setScheduled(null);
+			queue.remove(scheduled);
+		}
+	}
+	
+	/**
+	 * Queue entry for a scheduled timeout
+	 */
+	static final class ScheduledTimeout {
+		final long trigger;
+		final long sequence;
+		final DocumentTransferProcess process;
+		
+		public ScheduledTimeout(final long trigger, final long sequence, final DocumentTransferProcess process) {
+			this.trigger = trigger;
+			this.sequence = sequence;
+			this.process = Preconditions.checkNotNull(process);
+		}
+	}
+}
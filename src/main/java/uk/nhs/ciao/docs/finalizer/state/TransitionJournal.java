@@ -0,0 +1,648 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static uk.nhs.ciao.logging.CiaoLogMessage.logMsg;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.metrics.Histogram;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.logging.CiaoLogger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+/**
+ * Local append-only journal of transition actions - allowing actions interrupted by a crash to be resumed
+ * on restart.
+ * <p>
+ * An intent record is written (and forced to disk) before each action is run and a completion record
+ * is written once the action returns. The intent is written before the idempotent claim is made (see
+ * {@link #wrap(String, TransitionListener, TransitionListener)}) - so a crash between the claim and the action
+ * cannot lose the action. When the journal is opened, actions with an intent but no completion are collected
+ * and {@link #resumeIncompleteActions(AsyncTransitionListener)} runs them again - without another idempotent claim,
+ * which may already have been taken by the interrupted attempt.
+ * <p>
+ * Writes are group-committed: records are appended to an in-memory batch and the first caller waiting for its
+ * intent to be durable writes and forces the whole batch - so concurrent actions share a single sync. Completion
+ * records do not wait for a sync (they are written by the next commit, or when the journal is closed). If a
+ * completion record is lost the action is resumed again after a crash - so actions should tolerate being repeated.
+ * <p>
+ * Each record is stored with its length and checksum, so a record torn by a crash is detected and ignored.
+ * When the journal grows beyond <code>maxFileSize</code> it is compacted to the intents which are still outstanding.
+ * If a write fails, the journal is compacted by the next append or commit - discarding any partly written batch -
+ * and is unavailable only until a compaction succeeds.
+ * <p>
+ * An empty file path disables the journal - {@link #wrap(String, TransitionListener)} then returns the action unchanged.
+ */
+public class TransitionJournal implements Closeable {
+	private static final CiaoLogger LOGGER = CiaoLogger.getLogger(TransitionJournal.class);
+	
+	private static final byte INTENT = 1;
+	private static final byte COMPLETION = 2;
+	private static final int HEADER_LENGTH = 8; // length + checksum
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+	private static final TransitionListener NOOP_LISTENER = new TransitionListener() {
+		@Override
+		public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+			// NOOP
+		}
+	};
+	
+	private final File file;
+	private long maxFileSize = 8 * 1024 * 1024;
+	private final Map<String, TransitionListener> actions = Maps.newConcurrentMap();
+	
+	/*
+	 * Journal state - guarded by this
+	 */
+	private FileChannel channel;
+	private long nextId = 1;
+	private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	private long appendedSequence; // records appended to the batch
+	private long committedSequence; // records written and forced to disk
+	private boolean committing;
+	private IOException failure;
+	private final Map<Long, byte[]> outstandingIntents = Maps.newLinkedHashMap();
+	private List<Intent> incompleteIntents = Lists.newArrayList();
+	
+	// metrics
+	private Histogram commitDuration = MetricRegistry.unregisteredHistogram();
+	private Counter commits = MetricRegistry.unregisteredCounter();
+	private Counter records = MetricRegistry.unregisteredCounter();
+	
+	/**
+	 * Creates a new journal
+	 *
+	 * @param file The path of the journal file (an empty path disables the journal)
+	 */
+	public TransitionJournal(final String file) {
+		this.file = Strings.isNullOrEmpty(file) ? null : new File(file);
+	}
+	
+	/**
+	 * Sets the size in bytes above which the journal is compacted
+	 */
+	public void setMaxFileSize(final long maxFileSize) {
+		Preconditions.checkArgument(maxFileSize > 0, "maxFileSize must be positive");
+		this.maxFileSize = maxFileSize;
+	}
+	
+	/**
+	 * Registers the commit duration, commits and records written with the registry
+	 * <p>
+	 * The ratio of records to commits shows how many records share each sync.
+	 */
+	public final void setMetricRegistry(final MetricRegistry registry) {
+		commitDuration = registry.histogram("journal_commit_duration_seconds", "Duration of transition journal group commits");
+		commits = registry.counter("journal_commits_total", "Group commits (syncs) of the transition journal");
+		records = registry.counter("journal_records_total", "Records appended to the transition journal");
+	}
+	
+	public boolean isEnabled() {
+		return file != null;
+	}
+	
+	/**
+	 * Reads the existing journal (collecting any incomplete actions), compacts it and opens it for writing
+	 */
+	public synchronized void open() throws IOException {
+		if (!isEnabled() || channel != null) {
+			return;
+		}
+		
+		final File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.exists()) {
+			parent.mkdirs();
+		}
+		
+		readJournal();
+		compact();
+		
+		if (!incompleteIntents.isEmpty()) {
+			LOGGER.info(logMsg("Found incomplete actions in transition journal")
+				.fileName(file)
+				.set("ActionCount", incompleteIntents.size()));
+		}
+	}
+	
+	/**
+	 * Returns a listener which records the intent and completion of the action in the journal
+	 *
+	 * @param actionName The name used to find the action when resuming it after a restart
+	 */
+	public TransitionListener wrap(final String actionName, final TransitionListener action) {
+		return wrap(actionName, action, action);
+	}
+	
+	/**
+	 * Returns a listener which records the intent of the action in the journal before notifying the guarded
+	 * listener - and records the completion once it returns
+	 * <p>
+	 * The guarded listener is normally the action behind an idempotent check: the intent is durable before the
+	 * check is claimed, and a resumed intent runs the action directly (the claim may already have been taken).
+	 *
+	 * @param actionName The name used to find the action when resuming it after a restart
+	 * @param action The action to run when resuming it after a restart
+	 * @param guarded The listener to notify (which should run the action)
+	 */
+	public TransitionListener wrap(final String actionName, final TransitionListener action,
+			final TransitionListener guarded) {
+		Preconditions.checkNotNull(actionName);
+		Preconditions.checkNotNull(action);
+		Preconditions.checkNotNull(guarded);
+		if (!isEnabled()) {
+			return guarded;
+		}
+		
+		actions.put(actionName, action);
+		return new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				run(new Intent(actionName, process, transition), guarded);
+			}
+		};
+	}
+	
+	/**
+	 * Runs the actions which were started but not completed before the journal was last closed - on the calling thread
+	 * <p>
+	 * This should be called once all actions have been registered via {@link #wrap(String, TransitionListener)}.
+	 */
+	public void resumeIncompleteActions() {
+		for (final Intent intent: takeIncompleteIntents()) {
+			resume(intent);
+		}
+	}
+		
+	/**
+	 * Queues the actions which were started but not completed before the journal was last closed to the
+	 * action lane of each process - so resumed actions are ordered with any new actions of the same process
+	 * (and do not hold up the calling thread)
+	 * <p>
+	 * This should be called once the application has started.
+	 */
+	public void resumeIncompleteActions(final AsyncTransitionListener actionLanes) {
+		for (final Intent intent: takeIncompleteIntents()) {
+			actionLanes.execute(intent.correlationId, new Runnable() {
+				@Override
+				public void run() {
+					resume(intent);
+				}
+			});
+		}
+	}
+	
+	private synchronized List<Intent> takeIncompleteIntents() {
+		final List<Intent> intents = incompleteIntents;
+		incompleteIntents = Lists.newArrayList();
+		return intents;
+	}
+	
+	private void resume(final Intent intent) {
+		final TransitionListener action = actions.get(intent.actionName);
+		if (action == null) {
+			LOGGER.warn(logMsg("Unable to resume incomplete action - the action is no longer configured")
+				.documentId(intent.correlationId)
+				.toState(intent.toState)
+				.set("Action", intent.actionName));
+			complete(intent.id);
+			return;
+		}
+			
+		LOGGER.info(logMsg("Resuming incomplete action")
+			.documentId(intent.correlationId)
+			.toState(intent.toState)
+			.set("Action", intent.actionName));
+			
+		try {
+			action.onTransition(intent.createProcess(), intent.createTransition());
+		} catch (RuntimeException e) {
+			LOGGER.error(logMsg("Unable to resume incomplete action")
+				.documentId(intent.correlationId)
+				.toState(intent.toState)
+				.set("Action", intent.actionName), e);
+		} finally {
+			complete(intent.id);
+		}
+	}
+	
+	/**
+	 * Writes any pending records and closes the journal
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (channel == null) {
+				failure = null;
+				return;
+			}
+		}
+		
+		try {
+			commit(Long.MAX_VALUE);
+		} catch (IOException e) {
+			LOGGER.warn(logMsg("Unable to write pending transition journal records")
+				.fileName(file), e);
+		}
+		
+		synchronized (this) {
+			closeChannel();
+			failure = null;
+		}
+	}
+	
+	/**
+	 * Records the intent, notifies the guarded listener and then records the completion
+	 */
+	private void run(final Intent intent, final TransitionListener guarded) {
+		try {
+			final long sequence = appendIntent(intent);
+			commit(sequence);
+		} catch (IOException e) {
+			// the action is still run - but will not be resumed if interrupted
+			LOGGER.error(logMsg("Unable to write action intent to transition journal")
+				.documentId(intent.correlationId)
+				.toState(intent.toState)
+				.set("Action", intent.actionName)
+				.fileName(file), e);
+		}
+		
+		try {
+			guarded.onTransition(intent.process, intent.transition);
+		} finally {
+			complete(intent.id);
+		}
+	}
+	
+	private synchronized long appendIntent(final Intent intent) throws IOException {
+		checkOpen();
+		
+		intent.id = nextId++;
+		final byte[] record = encode(intent);
+		outstandingIntents.put(intent.id, record);
+		return append(record);
+	}
+	
+	private synchronized void complete(final long id) {
+		if (channel == null || outstandingIntents.remove(id) == null) {
+			return;
+		}
+		
+		try {
+			append(encodeCompletion(id));
+		} catch (IOException e) {
+			LOGGER.warn(logMsg("Unable to write action completion to transition journal")
+				.fileName(file), e);
+		}
+	}
+	
+	/**
+	 * Appends the record to the current batch
+	 *
+	 * @return The sequence number of the record
+	 */
+	private long append(final byte[] record) throws IOException {
+		batch.write(record);
+		records.increment();
+		return ++appendedSequence;
+	}
+	
+	/**
+	 * Waits until the specified record has been written and forced to disk - writing the current batch
+	 * if no other thread is already doing so
+	 */
+	private void commit(final long sequence) throws IOException {
+		final byte[] bytes;
+		final long batchSequence;
+		final FileChannel batchChannel;
+		synchronized (this) {
+			while (committing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for transition journal commit", e);
+				}
+			}
+			
+			checkOpen();
+			if (committedSequence >= Math.min(sequence, appendedSequence)) {
+				return;
+			}
+			
+			committing = true;
+			bytes = batch.toByteArray();
+			batch.reset();
+			batchSequence = appendedSequence;
+			batchChannel = channel;
+		}
+		
+		IOException error = null;
+		final long startTime = System.nanoTime();
+		try {
+			write(batchChannel, ByteBuffer.wrap(bytes));
+			batchChannel.force(false);
+			
+			commits.increment();
+			commitDuration.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+			
+			if (batchChannel.size() > maxFileSize) {
+				synchronized (this) {
+					compact();
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			synchronized (this) {
+				committing = false;
+				if (error == null) {
+					committedSequence = batchSequence;
+				} else {
+					failure = error;
+				}
+				notifyAll();
+			}
+		}
+		
+		if (error != null) {
+			throw error;
+		}
+	}
+	
+	/**
+	 * Writes the buffer to the channel
+	 * <p>
+	 * Overridable by tests to simulate failed writes.
+	 */
+	void write(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	private void checkOpen() throws IOException {
+		if (failure != null) {
+			recover();
+		} else if (channel == null) {
+			throw new IOException("Transition journal is not open");
+		}
+	}
+	
+	/**
+	 * Rewrites the journal after a failed write - the file may end with a partly written batch, which would
+	 * hide any records appended after it
+	 * <p>
+	 * The outstanding intents include every intent of the failed and pending batches - so once compacted all
+	 * appended records are durable.
+	 */
+	private void recover() throws IOException {
+		try {
+			compact();
+		} catch (IOException e) {
+			throw new IOException("Transition journal is unavailable after an earlier failure", failure);
+		}
+		
+		LOGGER.info(logMsg("Recovered transition journal after an earlier failure")
+			.fileName(file));
+		failure = null;
+		batch.reset();
+		committedSequence = appendedSequence;
+	}
+	
+	/**
+	 * Reads the records of the existing journal - stopping at the first torn or corrupt record
+	 */
+	private void readJournal() throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		
+		final Map<Long, Intent> intents = Maps.newLinkedHashMap();
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			final CRC32 crc = new CRC32();
+			while (true) {
+				final int length;
+				final int checksum;
+				final byte[] payload;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length <= 0 || length > MAX_RECORD_LENGTH) {
+						LOGGER.warn(logMsg("Ignoring corrupt transition journal record").fileName(file));
+						break;
+					}
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+				
+				crc.reset();
+				crc.update(payload, 0, payload.length);
+				if ((int)crc.getValue() != checksum) {
+					LOGGER.warn(logMsg("Ignoring corrupt transition journal record").fileName(file));
+					break;
+				}
+				
+				final DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				final byte type = record.readByte();
+				final long id = record.readLong();
+				nextId = Math.max(nextId, id + 1);
+				if (type == INTENT) {
+					final Intent intent = decode(id, record);
+					intent.record = frame(payload);
+					intents.put(id, intent);
+				} else if (type == COMPLETION) {
+					intents.remove(id);
+				}
+			}
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		
+		for (final Intent intent: intents.values()) {
+			outstandingIntents.put(intent.id, intent.record);
+			incompleteIntents.add(intent);
+		}
+	}
+	
+	/**
+	 * Rewrites the journal with only the outstanding intents and re-opens it for appending
+	 */
+	private void compact() throws IOException {
+		final File tempFile = new File(file.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tempFile);
+		boolean threw = true;
+		try {
+			for (final byte[] record: outstandingIntents.values()) {
+				out.write(record);
+			}
+			out.getChannel().force(false);
+			threw = false;
+		} finally {
+			Closeables.close(out, threw);
+		}
+		
+		closeChannel();
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+	
+	private void closeChannel() {
+		if (channel == null) {
+			return;
+		}
+		
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.debug(logMsg("Unable to close transition journal")
+				.fileName(file), e);
+		}
+		channel = null;
+	}
+	
+	private static byte[] encode(final Intent intent) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(INTENT);
+		out.writeLong(intent.id);
+		out.writeUTF(intent.actionName);
+		out.writeUTF(intent.correlationId);
+		out.writeUTF(intent.rootFolder);
+		writeNullableUTF(out, intent.completedFolder);
+		writeNullableUTF(out, intent.errorFolder);
+		out.writeUTF(intent.fromState.name());
+		out.writeUTF(intent.toState.name());
+		out.writeUTF(intent.event.name());
+		out.writeLong(intent.eventTime);
+		return frame(bytes.toByteArray());
+	}
+	
+	private static byte[] encodeCompletion(final long id) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(COMPLETION);
+		out.writeLong(id);
+		return frame(bytes.toByteArray());
+	}
+	
+	private static Intent decode(final long id, final DataInputStream in) throws IOException {
+		final Intent intent = new Intent(in.readUTF());
+		intent.id = id;
+		intent.correlationId = in.readUTF();
+		intent.rootFolder = in.readUTF();
+		intent.completedFolder = readNullableUTF(in);
+		intent.errorFolder = readNullableUTF(in);
+		intent.fromState = State.valueOf(in.readUTF());
+		intent.toState = State.valueOf(in.readUTF());
+		intent.event = Event.valueOf(in.readUTF());
+		intent.eventTime = in.readLong();
+		return intent;
+	}
+	
+	/**
+	 * Prefixes the record payload with its length and checksum
+	 */
+	private static byte[] frame(final byte[] payload) {
+		final CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		
+		final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt((int)crc.getValue());
+		buffer.put(payload);
+		return buffer.array();
+	}
+	
+	private static void writeNullableUTF(final DataOutputStream out, final String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+	
+	private static String readNullableUTF(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+	
+	/**
+	 * The details required to run an action again after a restart
+	 */
+	private static class Intent {
+		final String actionName;
+		long id;
+		String correlationId;
+		String rootFolder;
+		String completedFolder;
+		String errorFolder;
+		State fromState;
+		State toState;
+		Event event;
+		long eventTime;
+		
+		// only available before a restart
+		DocumentTransferProcess process;
+		Transition transition;
+		
+		// framed intent record - only available after a restart
+		byte[] record;
+		
+		public Intent(final String actionName) {
+			this.actionName = actionName;
+		}
+		
+		public Intent(final String actionName, final DocumentTransferProcess process, final Transition transition) {
+			this(actionName);
+			this.process = process;
+			this.transition = transition;
+			this.correlationId = process.getCorrelationId();
+			this.rootFolder = process.getRootFolder().getPath();
+			this.completedFolder = process.getCompletedFolder();
+			this.errorFolder = process.getErrorFolder();
+			this.fromState = transition.getFromState();
+			this.toState = transition.getToState();
+			this.event = transition.getEvent();
+			this.eventTime = transition.getTime();
+		}
+		
+		/**
+		 * Re-creates the process as it was when the action was started
+		 */
+		public DocumentTransferProcess createProcess() {
+			final DocumentTransferProcess process = new DocumentTransferProcess(correlationId, new File(rootFolder), NOOP_LISTENER);
+			process.restore(toState, completedFolder, errorFolder, false, false);
+			return process;
+		}
+		
+		public Transition createTransition() {
+			return new Transition(fromState, toState, event, eventTime);
+		}
+	}
+}
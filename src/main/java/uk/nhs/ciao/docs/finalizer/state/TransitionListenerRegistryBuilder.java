@@ -11,6 +11,10 @@ import joptsimple.internal.Strings;
 import org.apache.camel.ProducerTemplate;
 import org.springframework.beans.factory.FactoryBean;
 
+import uk.nhs.ciao.docs.finalizer.metrics.LabelledHistogram;
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+import uk.nhs.ciao.docs.finalizer.metrics.TimedTransitionListener;
+
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -27,6 +31,15 @@ import com.google.common.collect.Maps;
  * <p>
  * The <code>defaultPackage</code> property is used to determine the full class name to load if no package
  * has been specified. Action classes should provide a no-argument, default constructor.
+ * <p>
+ * If a {@link MetricRegistry} is configured, the duration of each action is recorded (labelled by the action class name).
+ * <p>
+ * If a {@link BatchingIdempotentDispatcher} is configured, idempotent checks are claimed in batches via the dispatcher -
+ * otherwise each check is sent to the <code>idempotentTargetUri</code> Camel route.
+ * <p>
+ * If a {@link TransitionJournal} is configured, the actions of each state are recorded in the journal before the
+ * idempotent check is claimed - actions interrupted before the last shutdown are resumed by
+ * {@link TransitionJournal#resumeIncompleteActions(AsyncTransitionListener)} once the application has started.
  */
 public class TransitionListenerRegistryBuilder implements FactoryBean<TransitionListenerRegistry> {
 	private static final Pattern NEW_LINE_PATTERN = Pattern.compile("[\\r\\n]+", Pattern.MULTILINE);
@@ -37,6 +50,9 @@ public class TransitionListenerRegistryBuilder implements FactoryBean<Transition
 	private String idempotentTargetUri;
 	private ProducerTemplate producerTemplate;
 	private String defaultPackage = "uk.nhs.ciao.docs.finalizer.action";
+	private MetricRegistry metricRegistry;
+	private BatchingIdempotentDispatcher idempotentDispatcher;
+	private TransitionJournal transitionJournal;
 	
 	@Override
 	public boolean isSingleton() {
@@ -60,10 +76,22 @@ public class TransitionListenerRegistryBuilder implements FactoryBean<Transition
 		this.producerTemplate = producerTemplate;
 	}
 	
+	public void setIdempotentDispatcher(final BatchingIdempotentDispatcher idempotentDispatcher) {
+		this.idempotentDispatcher = idempotentDispatcher;
+	}
+	
+	public void setTransitionJournal(final TransitionJournal transitionJournal) {
+		this.transitionJournal = transitionJournal;
+	}
+	
 	public void setDefaultPackage(final String defaultPackage) {
 		this.defaultPackage = Preconditions.checkNotNull(defaultPackage);
 	}
 	
+	public void setMetricRegistry(final MetricRegistry metricRegistry) {
+		this.metricRegistry = metricRegistry;
+	}
+	
 	public void addToStateListener(final State state, final TransitionListener listener) {
 		Preconditions.checkNotNull(state);
 		Preconditions.checkNotNull(listener);
@@ -109,12 +137,26 @@ public class TransitionListenerRegistryBuilder implements FactoryBean<Transition
 
 			final Class<?> clazz = Class.forName(className);
 			final TransitionListener listener = (TransitionListener)clazz.newInstance();
-			addToStateListener(state, listener);
+			addToStateListener(state, makeTimed(listener, clazz.getSimpleName()));
 		}
 	}
 	
 	@Override
 	public TransitionListenerRegistry getObject() throws Exception {
+		return createRegistry(true);
+	}
+	
+	/**
+	 * Creates a registry which notifies the actions directly - without the idempotent check or the journal.
+	 * <p>
+	 * This is used to retry the actions of terminal processes whose folder was not moved (the idempotent
+	 * check would otherwise reject the retry as a duplicate).
+	 */
+	public TransitionListenerRegistry createRetryRegistry() {
+		return createRegistry(false);
+	}
+	
+	private TransitionListenerRegistry createRegistry(final boolean checkIdempotent) {
 		final TransitionListenerRegistry registry = new TransitionListenerRegistry();
 		
 		for (final Entry<State, List<TransitionListener>> entry: toStateListeners.entrySet()) {
@@ -126,7 +168,10 @@ public class TransitionListenerRegistryBuilder implements FactoryBean<Transition
 				listener = new TransitionListenerSet(entry.getValue());
 			}			
 
-			registry.addToStateListener(entry.getKey(), makeIdempotent(listener));
+			if (checkIdempotent) {
+				listener = makeJournalled(listener, makeIdempotent(listener), "to=" + entry.getKey().name());
+			}
+			registry.addToStateListener(entry.getKey(), listener);
 		}
 
 		return registry;
@@ -143,7 +188,31 @@ public class TransitionListenerRegistryBuilder implements FactoryBean<Transition
 	}
 
 	private TransitionListener makeIdempotent(final TransitionListener listener) {
-		return idempotent ? listener : new IdempotentTransitionListener(
-				idempotentTargetUri, producerTemplate, listener);
+		if (!idempotent) {
+			return listener;
+		} else if (idempotentDispatcher != null) {
+			return idempotentDispatcher.wrap(listener);
+		}
+		
+		return metricRegistry == null ? new IdempotentTransitionListener(idempotentTargetUri, producerTemplate, listener)
+				: new IdempotentTransitionListener(idempotentTargetUri, producerTemplate, listener, metricRegistry);
+	}
+	
+	/**
+	 * Records the intent in the journal before the guarded (idempotent) listener is notified
+	 */
+	private TransitionListener makeJournalled(final TransitionListener listener, final TransitionListener guarded,
+			final String actionName) {
+		return transitionJournal == null ? guarded : transitionJournal.wrap(actionName, listener, guarded);
+	}
+	
+	private TransitionListener makeTimed(final TransitionListener listener, final String actionName) {
+		if (metricRegistry == null) {
+			return listener;
+		}
+		
+		final LabelledHistogram durations = metricRegistry.histogram("action_duration_seconds",
+				"Duration of state transition actions", "action");
+		return new TimedTransitionListener(listener, durations.get(actionName));
 	}
 }
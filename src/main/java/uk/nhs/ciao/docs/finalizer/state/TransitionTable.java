@@ -0,0 +1,139 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+/**
+ * Precomputed <code>[state x event]</code> transition table used to apply events to a {@link DocumentTransferProcess}.
+ * <p>
+ * Each entry is a single int holding the ordinal of the next state and the timeout operations of the
+ * transition - so an event is applied with one array lookup, rather than the two virtual calls of
+ * {@link Event#dispatch(State, DocumentTransferProcess, long)}. The table has exactly the same semantics
+ * as the dispatch methods of {@link State}, which remain as the public description of each transition.
+ */
+final class TransitionTable {
+	private static final State[] STATES = State.values();
+	private static final int EVENT_COUNT = Event.values().length;
+	
+	private static final int NEXT_STATE_MASK = 0xff;
+	
+	// timeout operations - applied in declaration order
+	private static final int CANCEL_PREPARATION = 1 << 8;
+	private static final int START_PREPARATION = 1 << 9;
+	private static final int CANCEL_SEND = 1 << 10;
+	private static final int START_SEND = 1 << 11;
+	private static final int CANCEL_INF_RESPONSE = 1 << 12;
+	private static final int START_INF_RESPONSE_IF_WANTED = 1 << 13;
+	private static final int CANCEL_BUS_RESPONSE = 1 << 14;
+	private static final int START_BUS_RESPONSE_IF_WANTED = 1 << 15;
+	private static final int TIMEOUT_OPS = 0xff << 8;
+	
+	/**
+	 * The next state depends on the acknowledgements wanted by the process - see {@link #ACK_STATES}
+	 */
+	private static final int ACK_DEPENDENT = 1 << 16;
+	
+	/**
+	 * Next state of an ack dependent transition - indexed by (infAckWanted ? 2 : 0) | (busAckWanted ? 1 : 0)
+	 */
+	private static final State[] ACK_STATES = {
+		State.SUCCEEDED,
+		State.WAITING_BUS_RESPONSE,
+		State.WAITING_INF_RESPONSE,
+		State.WAITING_INF_AND_BUS_RESPONSE
+	};
+	
+	private static final int[] TRANSITIONS = new int[STATES.length * EVENT_COUNT];
+	static {
+		// By default an event leaves the state unchanged
+		for (final State state: STATES) {
+			for (final Event event: Event.values()) {
+				TRANSITIONS[index(state, event)] = state.ordinal();
+			}
+		}
+		
+		put(State.PARSING, Event.DOCUMENT_PARSED, State.PREPARING, START_PREPARATION);
+		
+		put(State.PREPARING, Event.DOCUMENT_PREPARATION_TIMEOUT, State.FAILED, CANCEL_PREPARATION);
+		put(State.PREPARING, Event.DOCUMENT_PREPARATION_FAILED, State.FAILED, CANCEL_PREPARATION);
+		put(State.PREPARING, Event.DOCUMENT_PREPARED, State.SENDING, CANCEL_PREPARATION | START_SEND);
+		
+		put(State.SENDING, Event.DOCUMENT_SEND_TIMEOUT, State.FAILED, CANCEL_SEND);
+		put(State.SENDING, Event.DOCUMENT_SEND_FAILED, State.FAILED, 0);
+		put(State.SENDING, Event.DOCUMENT_SENT, State.SUCCEEDED,
+				ACK_DEPENDENT | CANCEL_SEND | START_INF_RESPONSE_IF_WANTED | START_BUS_RESPONSE_IF_WANTED);
+		
+		put(State.WAITING_INF_AND_BUS_RESPONSE, Event.DOCUMENT_SEND_FAILED, State.FAILED, CANCEL_INF_RESPONSE);
+		put(State.WAITING_INF_AND_BUS_RESPONSE, Event.INF_ACK_RECEIVED, State.WAITING_BUS_RESPONSE, CANCEL_INF_RESPONSE);
+		put(State.WAITING_INF_AND_BUS_RESPONSE, Event.INF_NACK_RECEIVED, State.FAILED, 0);
+		put(State.WAITING_INF_AND_BUS_RESPONSE, Event.INF_RESPONSE_TIMEOUT, State.FAILED, CANCEL_INF_RESPONSE);
+		put(State.WAITING_INF_AND_BUS_RESPONSE, Event.BUS_ACK_RECEIVED, State.WAITING_INF_RESPONSE, CANCEL_BUS_RESPONSE);
+		put(State.WAITING_INF_AND_BUS_RESPONSE, Event.BUS_NACK_RECEIVED, State.FAILED, 0);
+		put(State.WAITING_INF_AND_BUS_RESPONSE, Event.BUS_RESPONSE_TIMEOUT, State.FAILED, CANCEL_BUS_RESPONSE);
+		
+		put(State.WAITING_INF_RESPONSE, Event.DOCUMENT_SEND_FAILED, State.FAILED, CANCEL_INF_RESPONSE);
+		put(State.WAITING_INF_RESPONSE, Event.INF_ACK_RECEIVED, State.SUCCEEDED, CANCEL_INF_RESPONSE);
+		put(State.WAITING_INF_RESPONSE, Event.INF_NACK_RECEIVED, State.FAILED, 0);
+		put(State.WAITING_INF_RESPONSE, Event.INF_RESPONSE_TIMEOUT, State.FAILED, CANCEL_INF_RESPONSE);
+		
+		put(State.WAITING_BUS_RESPONSE, Event.DOCUMENT_SEND_FAILED, State.FAILED, CANCEL_BUS_RESPONSE);
+		put(State.WAITING_BUS_RESPONSE, Event.BUS_ACK_RECEIVED, State.SUCCEEDED, CANCEL_BUS_RESPONSE);
+		put(State.WAITING_BUS_RESPONSE, Event.BUS_NACK_RECEIVED, State.FAILED, 0);
+		put(State.WAITING_BUS_RESPONSE, Event.BUS_RESPONSE_TIMEOUT, State.FAILED, CANCEL_BUS_RESPONSE);
+	}
+	
+	private TransitionTable() {
+		// Suppress default constructor
+	}
+	
+	/**
+	 * Applies the event to the process - running any timeout operations of the transition
+	 * <p>
+	 * The caller is responsible for synchronising access to the process.
+	 *
+	 * @return The next state of the process (the caller is responsible for storing the state)
+	 */
+	static State apply(final DocumentTransferProcess process, final State state, final Event event, final long eventTime) {
+		final int entry = TRANSITIONS[index(state, event)];
+		if ((entry & TIMEOUT_OPS) != 0) {
+			applyTimeoutOps(process, entry, eventTime);
+		}
+		
+		if ((entry & ACK_DEPENDENT) != 0) {
+			return ACK_STATES[(process.isInfAckWanted() ? 2 : 0) | (process.isBusAckWanted() ? 1 : 0)];
+		}
+		return STATES[entry & NEXT_STATE_MASK];
+	}
+	
+	private static void applyTimeoutOps(final DocumentTransferProcess process, final int entry, final long eventTime) {
+		if ((entry & CANCEL_PREPARATION) != 0) {
+			process.getDocumentPreparationTimeout().cancel();
+		}
+		if ((entry & START_PREPARATION) != 0) {
+			process.getDocumentPreparationTimeout().start(eventTime);
+		}
+		if ((entry & CANCEL_SEND) != 0) {
+			process.getDocumentSendTimeout().cancel();
+		}
+		if ((entry & START_SEND) != 0) {
+			process.getDocumentSendTimeout().start(eventTime);
+		}
+		if ((entry & CANCEL_INF_RESPONSE) != 0) {
+			process.getInfResponseTimeout().cancel();
+		}
+		if ((entry & START_INF_RESPONSE_IF_WANTED) != 0 && process.isInfAckWanted()) {
+			process.getInfResponseTimeout().start(eventTime);
+		}
+		if ((entry & CANCEL_BUS_RESPONSE) != 0) {
+			process.getBusResponseTimeout().cancel();
+		}
+		if ((entry & START_BUS_RESPONSE_IF_WANTED) != 0 && process.isBusAckWanted()) {
+			process.getBusResponseTimeout().start(eventTime);
+		}
+	}
+	
+	private static void put(final State state, final Event event, final State nextState, final int ops) {
+		TRANSITIONS[index(state, event)] = nextState.ordinal() | ops;
+	}
+	
+	private static int index(final State state, final Event event) {
+		return state.ordinal() * EVENT_COUNT + event.ordinal();
+	}
+}
@@ -0,0 +1,243 @@
+package uk.nhs.ciao.docs.finalizer.action;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.docs.finalizer.action.FolderMover.MoveResult;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link FolderMover}
+ */
+public class FolderMoverTest {
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private File source;
+	private File target;
+	private File partial;
+	
+	@Before
+	public void setup() throws Exception {
+		source = temporaryFolder.newFolder("in-progress", "process");
+		target = new File(temporaryFolder.newFolder("completed"), "process");
+		partial = new File(target.getParentFile(), "process.partial");
+		
+		new File(source, "control").mkdir();
+		new File(source, "events").mkdir();
+		Files.write("completed", new File(source, "control/completed-folder"), CHARSET);
+		Files.write("parsed", new File(source, "events/20150903-153545804-document-parsed"), CHARSET);
+		Files.write("sent", new File(source, "events/20150903-153545904-document-sent"), CHARSET);
+	}
+	
+	@Test
+	public void testRenamesOnSameDevice() throws Exception {
+		final MoveResult result = new FolderMover(2).move(source, target);
+		
+		assertTrue(result.isRenamed());
+		assertMoved();
+	}
+	
+	@Test
+	public void testCopiesWhenRenameIsNotSupported() throws Exception {
+		final MoveResult result = new CrossDeviceMover().move(source, target);
+		
+		assertFalse(result.isRenamed());
+		assertEquals(19L, result.getBytes());
+		assertMoved();
+		assertFalse(partial.exists());
+	}
+	
+	@Test
+	public void testSizeMismatchLeavesSourceInPlace() throws Exception {
+		final FolderMover mover = new CrossDeviceMover() {
+			@Override
+			void copyFile(final File source, final File target, final AtomicBoolean aborted) throws IOException {
+				// every source file is longer than one byte
+				Files.write("x", target, CHARSET);
+			}
+		};
+		
+		try {
+			mover.move(source, target);
+			fail("Expected the size mismatch to fail the move");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Size of copied file does not match source"));
+		}
+		assertNotMoved();
+	}
+	
+	@Test
+	public void testFailurePartwayThroughCopyLeavesSourceInPlace() throws Exception {
+		final FolderMover mover = new CrossDeviceMover() {
+			@Override
+			void copyFile(final File source, final File target, final AtomicBoolean aborted) throws IOException {
+				if (source.getName().endsWith("document-sent")) {
+					throw new IOException("Simulated copy failure");
+				}
+				super.copyFile(source, target, aborted);
+			}
+		};
+		
+		try {
+			mover.move(source, target);
+			fail("Expected the copy failure to fail the move");
+		} catch (IOException e) {
+			assertEquals("Simulated copy failure", e.getMessage());
+		}
+		assertNotMoved();
+	}
+	
+	@Test
+	public void testInterruptedCopyWaitsForPendingCopiesBeforeRemovingPartialCopy() throws Exception {
+		final CountDownLatch copyStarted = new CountDownLatch(1);
+		final AtomicBoolean partialExistedWhenStopped = new AtomicBoolean();
+		final FolderMover mover = new CrossDeviceMover() {
+			@Override
+			void copyFile(final File source, final File target, final AtomicBoolean aborted) throws IOException {
+				if (source.getName().endsWith("document-sent")) {
+					copyStarted.countDown();
+					while (!aborted.get()) {
+						Thread.yield();
+					}
+					partialExistedWhenStopped.set(target.getParentFile().isDirectory());
+				}
+				super.copyFile(source, target, aborted);
+			}
+		};
+		
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					mover.move(source, target);
+				} catch (IOException e) {
+					failure.set(e);
+				}
+			}
+		};
+		thread.start();
+		
+		assertTrue(copyStarted.await(5, TimeUnit.SECONDS));
+		thread.interrupt();
+		thread.join(5000);
+		
+		assertTrue(failure.get() instanceof InterruptedIOException);
+		assertTrue(partialExistedWhenStopped.get());
+		assertNotMoved();
+	}
+	
+	@Test
+	public void testExistingTargetIsRejected() throws Exception {
+		target.mkdir();
+		Files.write("other", new File(target, "other-file"), CHARSET);
+		
+		try {
+			new FolderMover(2).move(source, target);
+			fail("Expected the existing target to fail the move");
+		} catch (FileAlreadyExistsException e) {
+			// expected
+		}
+		assertTrue(source.isDirectory());
+		assertTrue(new File(target, "other-file").isFile());
+	}
+	
+	@Test
+	public void testPartialCopyFromEarlierAttemptIsReplaced() throws Exception {
+		new File(partial, "events").mkdirs();
+		Files.write("par", new File(partial, "events/20150903-153545804-document-parsed"), CHARSET);
+		
+		new CrossDeviceMover().move(source, target);
+		
+		assertMoved();
+		assertFalse(partial.exists());
+	}
+	
+	@Test
+	public void testCompletedCopyFromEarlierAttemptDeletesSource() throws Exception {
+		copyTree(source, target);
+		Files.write(source.getAbsolutePath(), new File(target, FolderMover.COPY_MARKER_FILE), CHARSET);
+		
+		final MoveResult result = new FolderMover(2).move(source, target);
+		
+		assertFalse(result.isRenamed());
+		assertMoved();
+		assertFalse(new File(target, FolderMover.COPY_MARKER_FILE).exists());
+	}
+	
+	@Test
+	public void testMatchingTargetWithoutMarkerIsRejected() throws Exception {
+		copyTree(source, target);
+		
+		try {
+			new FolderMover(2).move(source, target);
+			fail("Expected the existing target to fail the move");
+		} catch (FileAlreadyExistsException e) {
+			// expected
+		}
+		assertTrue(new File(source, "events/20150903-153545904-document-sent").isFile());
+	}
+	
+	private void assertMoved() throws IOException {
+		assertFalse(source.exists());
+		assertEquals("completed", Files.toString(new File(target, "control/completed-folder"), CHARSET));
+		assertEquals("parsed", Files.toString(new File(target, "events/20150903-153545804-document-parsed"), CHARSET));
+		assertEquals("sent", Files.toString(new File(target, "events/20150903-153545904-document-sent"), CHARSET));
+	}
+	
+	private void assertNotMoved() {
+		assertTrue(new File(source, "control/completed-folder").isFile());
+		assertTrue(new File(source, "events/20150903-153545804-document-parsed").isFile());
+		assertTrue(new File(source, "events/20150903-153545904-document-sent").isFile());
+		assertFalse(target.exists());
+		assertFalse(partial.exists());
+	}
+	
+	private static void copyTree(final File source, final File target) throws IOException {
+		target.mkdirs();
+		for (final File file: source.listFiles()) {
+			if (file.isDirectory()) {
+				copyTree(file, new File(target, file.getName()));
+			} else {
+				Files.copy(file, new File(target, file.getName()));
+			}
+		}
+	}
+	
+	/**
+	 * Simulates a target folder on a different device
+	 */
+	private static class CrossDeviceMover extends FolderMover {
+		public CrossDeviceMover() {
+			super(2);
+		}
+		
+		@Override
+		void rename(final Path source, final Path target) throws IOException {
+			throw new AtomicMoveNotSupportedException(source.toString(), target.toString(), "cross-device");
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link MetricRegistry}
+ */
+public class MetricRegistryTest {
+	private MetricRegistry registry;
+	
+	@Before
+	public void setup() {
+		registry = new MetricRegistry();
+	}
+	
+	@Test
+	public void testExistingMetricIsReturned() {
+		assertSame(registry.counter("polls_total", "Polls"), registry.counter("polls_total", "Polls"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testMetricTypeMustMatch() {
+		registry.counter("polls_total", "Polls");
+		registry.histogram("polls_total", "Polls");
+	}
+	
+	@Test
+	public void testPrometheusFormat() throws Exception {
+		registry.counter("transitions_total", "Transitions", "event").increment("document-parsed");
+		registry.gauge("queue_depth", "Depth", null, new Gauge.Source() {
+			@Override
+			public Map<String, Integer> getValues() {
+				return Collections.singletonMap(null, 3);
+			}
+		});
+		
+		final Histogram histogram = registry.histogram("poll_duration_seconds", "Poll duration", 10, 100);
+		histogram.record(5);
+		histogram.record(50);
+		histogram.record(500);
+		
+		final StringBuilder out = new StringBuilder();
+		registry.writePrometheus(out);
+		
+		assertEquals(
+			"# HELP ciao_docs_finalizer_transitions_total Transitions\n" +
+			"# TYPE ciao_docs_finalizer_transitions_total counter\n" +
+			"ciao_docs_finalizer_transitions_total{event=\"document-parsed\"} 1\n" +
+			"# HELP ciao_docs_finalizer_queue_depth Depth\n" +
+			"# TYPE ciao_docs_finalizer_queue_depth gauge\n" +
+			"ciao_docs_finalizer_queue_depth 3\n" +
+			"# HELP ciao_docs_finalizer_poll_duration_seconds Poll duration\n" +
+			"# TYPE ciao_docs_finalizer_poll_duration_seconds histogram\n" +
+			"ciao_docs_finalizer_poll_duration_seconds_bucket{le=\"0.01\"} 1\n" +
+			"ciao_docs_finalizer_poll_duration_seconds_bucket{le=\"0.1\"} 2\n" +
+			"ciao_docs_finalizer_poll_duration_seconds_bucket{le=\"+Inf\"} 3\n" +
+			"ciao_docs_finalizer_poll_duration_seconds_sum 0.555\n" +
+			"ciao_docs_finalizer_poll_duration_seconds_count 3\n",
+			out.toString());
+	}
+	
+	@Test
+	public void testSnapshot() {
+		registry.counter("transitions_total", "Transitions", "event").increment("document-parsed");
+		registry.histogram("poll_duration_seconds", "Poll duration").record(20);
+		
+		final Map<String, Number> snapshot = registry.snapshot();
+		assertEquals(1L, snapshot.get("ciao_docs_finalizer_transitions_total.document-parsed"));
+		assertEquals(1L, snapshot.get("ciao_docs_finalizer_poll_duration_seconds.count"));
+		assertEquals(20L, snapshot.get("ciao_docs_finalizer_poll_duration_seconds.sumMillis"));
+		assertTrue(new MetricRegistryMBean(registry).getMBeanInfo().getAttributes().length == 3);
+	}
+}
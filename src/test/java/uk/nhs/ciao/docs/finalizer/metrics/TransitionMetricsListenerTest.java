@@ -0,0 +1,43 @@
+package uk.nhs.ciao.docs.finalizer.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+/**
+ * Tests for {@link TransitionMetricsListener}
+ */
+public class TransitionMetricsListenerTest {
+	private TransitionListener noop;
+	private TransitionMetricsListener listener;
+	
+	@Before
+	public void setup() {
+		noop = new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		};
+		listener = new TransitionMetricsListener(noop, new MetricRegistry());
+	}
+	
+	@Test
+	public void testUntrackedProcessIsNoLongerTimed() {
+		final DocumentTransferProcess process = new DocumentTransferProcess("process", new File("process"), noop);
+		listener.onTransition(process, new Transition(State.PARSING, State.PREPARING, Event.DOCUMENT_PARSED, 1000));
+		assertEquals(1, listener.getTimedProcessCount());
+		
+		listener.untrack("process");
+		assertEquals(0, listener.getTimedProcessCount());
+	}
+}
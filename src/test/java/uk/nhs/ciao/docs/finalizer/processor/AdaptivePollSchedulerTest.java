@@ -0,0 +1,94 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcessFactory;
+import uk.nhs.ciao.docs.finalizer.state.TimeoutScheduler;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+/**
+ * Tests for {@link AdaptivePollScheduler}
+ */
+public class AdaptivePollSchedulerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private File inProgressFolder;
+	private TimeoutScheduler timeoutScheduler;
+	private AdaptivePollScheduler scheduler;
+	
+	@Before
+	public void setup() throws Exception {
+		inProgressFolder = temporaryFolder.newFolder("in-progress");
+		timeoutScheduler = new TimeoutScheduler();
+		
+		final DocumentTransferProcessFactory factory = new DocumentTransferProcessFactory(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		});
+		factory.setTimeoutScheduler(timeoutScheduler);
+		factory.setDocumentPreparationTimeout(1000);
+		
+		scheduler = new AdaptivePollScheduler(new InProgressFolderPoller(factory, inProgressFolder));
+		scheduler.setMinPeriod(100);
+		scheduler.setMaxPeriod(800);
+		scheduler.setTimeoutScheduler(timeoutScheduler);
+	}
+	
+	@Test
+	public void testIntervalBacksOffWhileIdle() {
+		assertEquals(AdaptivePollScheduler.REASON_INTERVAL, scheduler.onTimer(0));
+		assertEquals(200, scheduler.getInterval());
+		
+		assertNull(scheduler.onTimer(100));
+		assertEquals(AdaptivePollScheduler.REASON_INTERVAL, scheduler.onTimer(200));
+		assertEquals(400, scheduler.getInterval());
+		
+		scheduler.onTimer(600);
+		scheduler.onTimer(1400);
+		assertEquals(800, scheduler.getInterval());
+	}
+	
+	@Test
+	public void testIntervalShrinksWhileEventsArrive() throws Exception {
+		scheduler.onTimer(0);
+		scheduler.onTimer(200);
+		assertEquals(400, scheduler.getInterval());
+		
+		addEventFile("process", "20150903-153545804-document-parsed");
+		assertEquals(AdaptivePollScheduler.REASON_INTERVAL, scheduler.onTimer(600));
+		assertEquals(200, scheduler.getInterval());
+	}
+	
+	@Test
+	public void testWakesEarlyForTriggeredTimeouts() throws Exception {
+		addEventFile("process", "19700101-000000050-document-parsed");
+		scheduler.onTimer(0);
+		scheduler.onTimer(100);
+		scheduler.onTimer(300);
+		scheduler.onTimer(700);
+		
+		// the preparation timeout started at 50 triggers at 1050 - before the next poll at 1500
+		assertNull(scheduler.onTimer(1000));
+		assertEquals(AdaptivePollScheduler.REASON_TIMEOUT, scheduler.onTimer(1050));
+		assertEquals(0, timeoutScheduler.size());
+	}
+	
+	private void addEventFile(final String correlationId, final String name) throws Exception {
+		final File eventsFolder = new File(new File(inProgressFolder, correlationId), "events");
+		eventsFolder.mkdirs();
+		new File(eventsFolder, name).createNewFile();
+	}
+}
@@ -0,0 +1,91 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.docs.finalizer.metrics.Counter;
+import uk.nhs.ciao.docs.finalizer.processor.DirectoryScanner.ProcessFolderListing;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link DirectoryScanner}
+ */
+public class DirectoryScannerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private File inProgressFolder;
+	private Counter directoriesListed;
+	private DirectoryScanner scanner;
+	
+	@Before
+	public void setup() throws Exception {
+		inProgressFolder = temporaryFolder.newFolder("in-progress");
+		directoriesListed = new Counter("directories", "");
+		scanner = new DirectoryScanner(directoriesListed, new Counter("entries", ""));
+	}
+	
+	@Test
+	public void testListsOnlyDirectories() throws Exception {
+		new File(inProgressFolder, "process-1").mkdir();
+		new File(inProgressFolder, "process-2").mkdir();
+		new File(inProgressFolder, "README.txt").createNewFile();
+		
+		final List<String> names = Lists.newArrayList(scanner.listDirectories(inProgressFolder));
+		Collections.sort(names);
+		assertEquals(Arrays.asList("process-1", "process-2"), names);
+		assertNull(scanner.listDirectories(new File(inProgressFolder, "missing")));
+	}
+	
+	@Test
+	public void testScansControlAndEventsFoldersOnly() throws Exception {
+		final File processFolder = new File(inProgressFolder, "process");
+		new File(processFolder, "control").mkdirs();
+		new File(processFolder, "events").mkdirs();
+		new File(processFolder, "input/nested").mkdirs();
+		Files.write("completed", new File(processFolder, "control/completed-folder"), Charset.defaultCharset());
+		new File(processFolder, "events/20150903-153545804-document-parsed").createNewFile();
+		new File(processFolder, "input/document.xml").createNewFile();
+		
+		final ProcessFolderListing listing = scanner.scanProcessFolder(processFolder);
+		assertEquals(Collections.singletonMap("completed-folder", 9L), listing.getControlFileLengths());
+		assertArrayEquals(new String[] { "20150903-153545804-document-parsed" }, listing.getEventFileNames());
+		
+		// only the control and events folders - not the process or input folders
+		assertEquals(2L, directoriesListed.getValue());
+	}
+	
+	@Test
+	public void testSkipsUnknownControlFiles() throws Exception {
+		final File processFolder = new File(inProgressFolder, "process");
+		new File(processFolder, "control/nested").mkdirs();
+		new File(processFolder, "control/unknown-file").createNewFile();
+		
+		final ProcessFolderListing listing = scanner.scanProcessFolder(processFolder);
+		assertEquals(Collections.emptyMap(), listing.getControlFileLengths());
+		assertArrayEquals(new String[0], listing.getEventFileNames());
+	}
+	
+	@Test
+	public void testScansProcessFolderWithoutControlOrEventsFolders() throws Exception {
+		final File processFolder = new File(inProgressFolder, "process");
+		processFolder.mkdir();
+		
+		assertArrayEquals(new String[0], scanner.scanProcessFolder(processFolder).getEventFileNames());
+		assertNull(scanner.scanProcessFolder(new File(inProgressFolder, "missing")));
+	}
+}
@@ -0,0 +1,108 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link EventFileTracker}
+ */
+public class EventFileTrackerTest {
+	private EventFileTracker tracker;
+	
+	@Before
+	public void setup() {
+		tracker = new EventFileTracker();
+	}
+	
+	@Test
+	public void testNewNamesAreReturnedInTimeOrder() {
+		assertEquals(Arrays.asList(
+				"20150903-153545804-document-parsed",
+				"20150903-153545805-bus-message-sending",
+				"20150903-153545806-bus-message-sent"),
+			tracker.selectNewFileNames(new String[] {
+				"20150903-153545806-bus-message-sent",
+				"20150903-153545804-document-parsed",
+				"20150903-153545805-bus-message-sending"}));
+		
+		assertEquals("20150903-153545806", tracker.getHighWaterMark());
+	}
+	
+	@Test
+	public void testProcessedNamesAreSkipped() {
+		final String[] fileNames = {"20150903-153545804-document-parsed", "20150903-153545805-bus-message-sending"};
+		tracker.selectNewFileNames(fileNames);
+		
+		assertEquals(Collections.emptyList(), tracker.selectNewFileNames(fileNames));
+		assertEquals(Arrays.asList("20150903-153545806-bus-message-sent"), tracker.selectNewFileNames(new String[] {
+				"20150903-153545804-document-parsed",
+				"20150903-153545805-bus-message-sending",
+				"20150903-153545806-bus-message-sent"}));
+	}
+	
+	@Test
+	public void testNamesSharingTheLatestTimestampAreTracked() {
+		assertTrue(tracker.markProcessed("20150903-153545804-bus-message-sent"));
+		assertTrue(tracker.markProcessed("20150903-153545804-bus-ack-received"));
+		assertFalse(tracker.markProcessed("20150903-153545804-bus-message-sent"));
+		assertFalse(tracker.markProcessed("20150903-153545804-bus-ack-received"));
+	}
+	
+	@Test
+	public void testLateNamesBeforeTheHighWaterMarkAreTracked() {
+		assertTrue(tracker.markProcessed("20150903-153545805-bus-ack-received"));
+		assertTrue(tracker.markProcessed("20150903-153545804-inf-ack-received"));
+		assertFalse(tracker.markProcessed("20150903-153545804-inf-ack-received"));
+		assertEquals("20150903-153545805", tracker.getHighWaterMark());
+	}
+	
+	@Test
+	public void testNamesAtOrBelowTheFloorAreIgnored() {
+		for (int index = 0; index <= EventFileTracker.MAX_TRACKED_NAMES; index++) {
+			assertTrue(tracker.markProcessed(String.format("20150903-1535458%02d-event", index)));
+		}
+		
+		// the oldest name has been dropped into the floor
+		assertEquals("20150903-153545800", tracker.getFloor());
+		assertEquals(EventFileTracker.MAX_TRACKED_NAMES, tracker.getProcessedNames().size());
+		assertFalse(tracker.markProcessed("20150903-153545800-event"));
+		assertFalse(tracker.markProcessed("20150903-153545799-late-event"));
+		assertTrue(tracker.markProcessed("20150903-153545801-late-event"));
+	}
+	
+	@Test
+	public void testMalformedNamesAreIgnored() {
+		assertEquals(Collections.emptyList(), tracker.selectNewFileNames(new String[] {
+				"zzz",
+				"20150903-153545804",
+				"20150903-153545804-",
+				"2015090x-153545804-document-parsed",
+				"20150903_153545804-document-parsed"}));
+		assertNull(tracker.getHighWaterMark());
+	}
+	
+	@Test
+	public void testProcessedNamesCanBeRestored() {
+		tracker.markProcessed("20150903-053545804-bus-message-sent");
+		tracker.markProcessed("20150903-053545804-bus-ack-received");
+		assertEquals("20150903-053545804", tracker.getHighWaterMark());
+		
+		final EventFileTracker restored = new EventFileTracker();
+		restored.restore("20150903-053545802", tracker.getProcessedNames());
+		
+		assertEquals("20150903-053545804", restored.getHighWaterMark());
+		assertEquals("20150903-053545802", restored.getFloor());
+		assertFalse(restored.markProcessed("20150903-053545804-bus-message-sent"));
+		assertTrue(restored.markProcessed("20150903-053545804-inf-ack-received"));
+		assertTrue(restored.markProcessed("20150903-053545803-document-parsed"));
+		assertFalse(restored.markProcessed("20150903-053545802-document-parsed"));
+	}
+}
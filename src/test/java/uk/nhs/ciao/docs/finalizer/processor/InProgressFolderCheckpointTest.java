@@ -0,0 +1,137 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.docs.finalizer.processor.InProgressFolderCheckpoint.ProcessEntry;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+
+/**
+ * Tests for {@link InProgressFolderCheckpoint}
+ */
+public class InProgressFolderCheckpointTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private InProgressFolderCheckpoint checkpoint;
+	
+	@Before
+	public void setup() {
+		checkpoint = new InProgressFolderCheckpoint(new File(temporaryFolder.getRoot(), "in-progress.checkpoint"));
+	}
+	
+	@Test
+	public void testEntriesAreReadBackAsWritten() throws Exception {
+		final ProcessEntry entry = new ProcessEntry("process");
+		entry.state = State.WAITING_INF_RESPONSE;
+		entry.infAckWanted = true;
+		entry.completedFolder = "completed";
+		entry.lastEvent = Event.DOCUMENT_SENT;
+		entry.timeoutStarts[2] = 1000;
+		entry.timeoutThresholds[2] = 300000;
+		entry.eventsFloor = "20150903-153545803";
+		entry.processedEvents.add("20150903-153545804-document-sent");
+		entry.controlFileLengths.put("wants-inf-ack", 4L);
+		
+		final ProcessEntry minimal = new ProcessEntry("minimal");
+		minimal.state = State.PARSING;
+		
+		checkpoint.write(Arrays.asList(entry, minimal));
+		assertFalse(new File(checkpoint.getFile().getPath() + ".tmp").exists());
+		
+		final List<ProcessEntry> entries = checkpoint.read();
+		assertEquals(2, entries.size());
+		
+		final ProcessEntry restored = entries.get(0);
+		assertEquals("process", restored.correlationId);
+		assertEquals(State.WAITING_INF_RESPONSE, restored.state);
+		assertTrue(restored.infAckWanted);
+		assertFalse(restored.busAckWanted);
+		assertEquals("completed", restored.completedFolder);
+		assertNull(restored.errorFolder);
+		assertEquals(Event.DOCUMENT_SENT, restored.lastEvent);
+		assertArrayEquals(new long[] { 0, 0, 1000, 0 }, restored.timeoutStarts);
+		assertArrayEquals(new long[] { 0, 0, 300000, 0 }, restored.timeoutThresholds);
+		assertEquals("20150903-153545803", restored.eventsFloor);
+		assertEquals(Arrays.asList("20150903-153545804-document-sent"), restored.processedEvents);
+		assertEquals(Collections.singletonMap("wants-inf-ack", 4L), restored.controlFileLengths);
+		
+		assertEquals("minimal", entries.get(1).correlationId);
+		assertNull(entries.get(1).lastEvent);
+		assertNull(entries.get(1).eventsFloor);
+	}
+	
+	@Test
+	public void testUnreadControlFilesAreNotReadByTheCheckpoint() throws Exception {
+		final File rootFolder = temporaryFolder.newFolder("process");
+		final File controlFile = new File(new File(rootFolder, "control"), DocumentTransferProcess.COMPLETED_FOLDER_FILE);
+		final DocumentTransferProcess process = createProcess(rootFolder);
+		process.registerControlFile(controlFile);
+		
+		final ProcessEntry entry = new ProcessEntry("process");
+		entry.capture(process);
+		checkpoint.write(Arrays.asList(entry));
+		assertNull(process.getResolvedCompletedFolder());
+		
+		// the control file is only read once the restored process requests the folder
+		controlFile.getParentFile().mkdirs();
+		Files.write("completed", controlFile, Charsets.UTF_8);
+		final DocumentTransferProcess restored = createProcess(rootFolder);
+		checkpoint.read().get(0).restore(restored);
+		
+		assertEquals(controlFile, restored.getUnreadCompletedFolderFile());
+		assertEquals("completed", restored.getCompletedFolder());
+	}
+	
+	@Test
+	public void testCorruptEntryCountIsIgnored() throws Exception {
+		checkpoint.write(Collections.<ProcessEntry>emptyList());
+		
+		// overwrite the entry count (after the magic and version) with a value the file could not hold
+		final RandomAccessFile file = new RandomAccessFile(checkpoint.getFile(), "rw");
+		try {
+			file.seek(8);
+			file.writeInt(Integer.MAX_VALUE);
+		} finally {
+			file.close();
+		}
+		
+		assertTrue(checkpoint.read().isEmpty());
+	}
+	
+	@Test
+	public void testMissingCheckpointIsEmpty() {
+		assertTrue(checkpoint.read().isEmpty());
+	}
+	
+	private DocumentTransferProcess createProcess(final File rootFolder) {
+		return new DocumentTransferProcess("process", rootFolder, new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		});
+	}
+}
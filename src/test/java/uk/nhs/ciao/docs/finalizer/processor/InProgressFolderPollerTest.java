@@ -0,0 +1,442 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.docs.finalizer.processor.InProgressFolderCheckpoint.ProcessEntry;
+import uk.nhs.ciao.docs.finalizer.state.AsyncTransitionListener;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcessFactory;
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.EventFileNameParser;
+import uk.nhs.ciao.docs.finalizer.state.ProcessLanes;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests for {@link InProgressFolderPoller}
+ */
+public class InProgressFolderPollerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private File firstRoot;
+	private File secondRoot;
+	private InProgressFolderPoller poller;
+	
+	@Before
+	public void setup() throws Exception {
+		firstRoot = temporaryFolder.newFolder("disk-1");
+		secondRoot = temporaryFolder.newFolder("disk-2");
+		
+		poller = new InProgressFolderPoller(new DocumentTransferProcessFactory(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		}), firstRoot, secondRoot);
+	}
+	
+	@After
+	public void tearDown() {
+		poller.close();
+	}
+	
+	@Test
+	public void testParseFolders() {
+		assertArrayEquals(new File[] { new File("disk-1"), new File("disk-2") },
+				InProgressFolderPoller.parseFolders(" disk-1, ,disk-2 "));
+	}
+	
+	@Test
+	public void testCorrelationIdsAreUniqueAcrossRoots() throws Exception {
+		new File(firstRoot, "process-1").mkdir();
+		new File(firstRoot, "shared").mkdir();
+		new File(secondRoot, "process-2").mkdir();
+		new File(secondRoot, "shared").mkdir();
+		
+		// each root is polled on its own thread
+		for (int attempt = 0; attempt < 50 && poller.getProcessCount() < 3; attempt++) {
+			poller.poll(System.currentTimeMillis());
+			Thread.sleep(100);
+		}
+		
+		assertEquals(3, poller.getProcessCount());
+	}
+	
+	@Test
+	public void testProcessesArePartitionedAcrossShards() throws Exception {
+		final InProgressFolderPoller shardedPoller = createRecordingPoller(Lists.<Transition>newCopyOnWriteArrayList());
+		try {
+			shardedPoller.setWorkerCount(4);
+			for (int index = 0; index < 20; index++) {
+				createEvents(firstRoot, "process-" + index, "20150903-153545804-document-parsed");
+			}
+			
+			shardedPoller.poll(System.currentTimeMillis());
+			assertEquals(20, shardedPoller.getProcessCount());
+			assertEquals(Integer.valueOf(20), shardedPoller.getProcessCountByState().get(State.PREPARING.name()));
+			
+			// removed folders are dropped by the shard which tracks them
+			deleteTree(new File(firstRoot, "process-7"));
+			shardedPoller.poll(System.currentTimeMillis());
+			assertEquals(19, shardedPoller.getProcessCount());
+		} finally {
+			shardedPoller.close();
+		}
+	}
+	
+	@Test
+	public void testOnlyLocallyOwnedProcessesAreTracked() throws Exception {
+		final Set<String> owned = Sets.newConcurrentHashSet(Arrays.asList("process-1", "process-2"));
+		final InProgressFolderPoller ownedPoller = createRecordingPoller(Lists.<Transition>newArrayList());
+		try {
+			ownedPoller.setOwnership(new ProcessOwnership() {
+				@Override
+				public boolean isLocallyOwned(final String correlationId) {
+					return owned.contains(correlationId);
+				}
+			});
+			for (int index = 1; index <= 3; index++) {
+				createEvents(firstRoot, "process-" + index, "20150903-153545804-document-parsed");
+			}
+			
+			ownedPoller.poll(System.currentTimeMillis());
+			assertEquals(2, ownedPoller.getProcessCount());
+			
+			// process-2 moves to another node and process-3 moves to this node
+			owned.remove("process-2");
+			owned.add("process-3");
+			ownedPoller.poll(System.currentTimeMillis());
+			assertEquals(2, ownedPoller.getProcessCount());
+			assertEquals(Integer.valueOf(2), ownedPoller.getProcessCountByState().get(State.PREPARING.name()));
+			
+			owned.clear();
+			ownedPoller.poll(System.currentTimeMillis());
+			assertEquals(0, ownedPoller.getProcessCount());
+		} finally {
+			ownedPoller.close();
+		}
+	}
+	
+	@Test
+	public void testPushedEventDoesNotHideAnEarlierEventFile() throws Exception {
+		final List<Transition> transitions = Lists.newArrayList();
+		final InProgressFolderPoller singleRootPoller = createRecordingPoller(transitions);
+		try {
+			createEvents(firstRoot, "process", "20150903-153545804-document-parsed");
+			
+			// the pushed event arrives before the earlier event file has been polled
+			final String pushedFileName = "20150903-153545805-bus-message-sending";
+			singleRootPoller.registerEvent("process", Event.DOCUMENT_PREPARED,
+					EventFileNameParser.parseTimestamp(pushedFileName));
+			createEvents(firstRoot, "process", pushedFileName);
+			singleRootPoller.poll(System.currentTimeMillis());
+			
+			// the ignored pushed event is applied again from its file - after the earlier file
+			assertEquals(Integer.valueOf(1), singleRootPoller.getProcessCountByState().get(State.SENDING.name()));
+			assertEquals(2, singleRootPoller.getEventFileCount());
+			assertEquals(2, transitions.size());
+			assertEquals(Event.DOCUMENT_PARSED, transitions.get(0).getEvent());
+			assertEquals(Event.DOCUMENT_PREPARED, transitions.get(1).getEvent());
+		} finally {
+			singleRootPoller.close();
+		}
+	}
+	
+	@Test
+	public void testLateEventFileWithAnEarlierTimestampIsApplied() throws Exception {
+		final InProgressFolderPoller singleRootPoller = createRecordingPoller(Lists.<Transition>newArrayList());
+		try {
+			final File controlFolder = new File(new File(firstRoot, "process"), "control");
+			controlFolder.mkdirs();
+			new File(controlFolder, DocumentTransferProcess.WANTS_INF_ACK_FILE).createNewFile();
+			new File(controlFolder, DocumentTransferProcess.WANTS_BUS_ACK_FILE).createNewFile();
+			createEvents(firstRoot, "process", "20150903-153545804-document-parsed",
+					"20150903-153545805-bus-message-sending", "20150903-153545806-bus-message-sent");
+			singleRootPoller.poll(System.currentTimeMillis());
+			assertEquals(Integer.valueOf(1), singleRootPoller.getProcessCountByState().get(
+					State.WAITING_INF_AND_BUS_RESPONSE.name()));
+			
+			createEvents(firstRoot, "process", "20150903-153545808-bus-ack-received");
+			singleRootPoller.poll(System.currentTimeMillis());
+			assertEquals(Integer.valueOf(1), singleRootPoller.getProcessCountByState().get(State.WAITING_INF_RESPONSE.name()));
+			
+			// the INF ack is written after the BUS ack has been polled - but carries an earlier timestamp
+			createEvents(firstRoot, "process", "20150903-153545807-inf-ack-received");
+			singleRootPoller.poll(System.currentTimeMillis());
+			assertEquals(5, singleRootPoller.getEventFileCount());
+			assertEquals(Integer.valueOf(1), singleRootPoller.getProcessCountByState().get(State.SUCCEEDED.name()));
+		} finally {
+			singleRootPoller.close();
+		}
+	}
+	
+	@Test
+	public void testTerminalProcessIsRetiredAndRetriedBySweeper() throws Exception {
+		final List<Transition> retries = Lists.newArrayList();
+		final InProgressFolderPoller singleRootPoller = new InProgressFolderPoller(new DocumentTransferProcessFactory(
+				new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP - the folder is not moved
+			}
+		}), firstRoot);
+		singleRootPoller.setRetryListener(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				retries.add(transition);
+			}
+		});
+
+		final File eventsFolder = new File(new File(firstRoot, "process"), "events");
+		eventsFolder.mkdirs();
+		new File(eventsFolder, "20150903-153545804-document-parsed").createNewFile();
+		new File(eventsFolder, "20150903-153546804-document-preparation-failed").createNewFile();
+		
+		singleRootPoller.poll(System.currentTimeMillis());
+		assertEquals(0, singleRootPoller.getProcessCount());
+		assertEquals(1, singleRootPoller.getTombstoneCount());
+		
+		singleRootPoller.sweepTombstones(Long.MAX_VALUE);
+		assertEquals(1, retries.size());
+		assertEquals(State.FAILED, retries.get(0).getToState());
+		assertEquals(Event.DOCUMENT_PREPARATION_FAILED, retries.get(0).getEvent());
+		
+		// once the folder has been removed the tombstone is dropped
+		for (final File eventFile: eventsFolder.listFiles()) {
+			eventFile.delete();
+		}
+		eventsFolder.delete();
+		eventsFolder.getParentFile().delete();
+		singleRootPoller.sweepTombstones(Long.MAX_VALUE);
+		assertEquals(0, singleRootPoller.getTombstoneCount());
+	}
+	
+	@Test
+	public void testTerminalProcessIsNotRetriedWhileItsActionIsRunning() throws Exception {
+		final CountDownLatch actionReleased = new CountDownLatch(1);
+		final AsyncTransitionListener actionLanes = new AsyncTransitionListener(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				try {
+					actionReleased.await(); // a slow move of the folder
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 1, 10);
+		final List<String> retryThreads = Lists.newCopyOnWriteArrayList();
+		final InProgressFolderPoller singleRootPoller = new InProgressFolderPoller(
+				new DocumentTransferProcessFactory(actionLanes), firstRoot);
+		try {
+			singleRootPoller.setActionLanes(actionLanes);
+			singleRootPoller.setRetryListener(new TransitionListener() {
+				@Override
+				public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+					retryThreads.add(Thread.currentThread().getName());
+				}
+			});
+			createEvents(firstRoot, "process", "20150903-153545804-document-parsed",
+					"20150903-153546804-document-preparation-failed");
+			
+			singleRootPoller.poll(System.currentTimeMillis());
+			assertEquals(1, singleRootPoller.getTombstoneCount());
+			
+			singleRootPoller.sweepTombstones(Long.MAX_VALUE);
+			actionReleased.countDown();
+			for (int attempt = 0; attempt < 50 && actionLanes.getQueueDepth() > 0; attempt++) {
+				Thread.sleep(100);
+			}
+			assertEquals(0, retryThreads.size());
+			
+			// once the action has completed the retry is run on the lane of the process
+			singleRootPoller.sweepTombstones(Long.MAX_VALUE);
+			actionLanes.close();
+			assertEquals(Arrays.asList("transitionAction-0"), retryThreads);
+		} finally {
+			actionReleased.countDown();
+			singleRootPoller.close();
+			actionLanes.close();
+		}
+	}
+	
+	@Test
+	public void testBackfillOnlyNotifiesTerminalAndOverdueProcesses() throws Exception {
+		final List<Transition> transitions = Lists.newCopyOnWriteArrayList();
+		final DocumentTransferProcessFactory factory = new DocumentTransferProcessFactory(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				transitions.add(transition);
+			}
+		});
+		factory.setDocumentPreparationTimeout(60000);
+		factory.setDocumentSendTimeout(60000);
+		
+		final InProgressFolderPoller backfillPoller = new InProgressFolderPoller(factory, firstRoot, secondRoot);
+		try {
+			final long now = EventFileNameParser.parseTimestamp("20150903-153545804-document-parsed") + 30000;
+			createEvents(firstRoot, "succeeded", "20150903-153545804-document-parsed",
+					"20150903-153545805-bus-message-sending", "20150903-153545806-bus-message-sent");
+			createEvents(secondRoot, "sending", "20150903-153545804-document-parsed",
+					"20150903-153545805-bus-message-sending");
+			createEvents(secondRoot, "overdue", "20150903-152545804-document-parsed");
+			
+			final BackfillResult result = backfillPoller.backfill(now, 2);
+			assertEquals(3, result.getFolderCount());
+			assertEquals(6, result.getEventCount());
+			
+			assertEquals(1, backfillPoller.getProcessCount());
+			assertEquals(2, backfillPoller.getTombstoneCount());
+			
+			// only the final transition of the terminal process and the overdue timeout are notified
+			assertEquals(2, transitions.size());
+			for (final Transition transition: transitions) {
+				if (transition.getEvent() == Event.DOCUMENT_SENT) {
+					assertEquals(State.SENDING, transition.getFromState());
+					assertEquals(State.SUCCEEDED, transition.getToState());
+				} else {
+					assertEquals(Event.DOCUMENT_PREPARATION_TIMEOUT, transition.getEvent());
+				}
+			}
+		} finally {
+			backfillPoller.close();
+		}
+	}
+	
+	@Test
+	public void testBackfillOnProcessLanesIsAppliedBeforeTheFirstCheckpoint() throws Exception {
+		final File checkpointFile = new File(temporaryFolder.getRoot(), "in-progress.checkpoint");
+		final ProcessLanes lanes = new ProcessLanes(1);
+		final DocumentTransferProcessFactory factory = new DocumentTransferProcessFactory(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP - the folder is not moved
+			}
+		});
+		factory.setProcessLanes(lanes);
+		
+		final CountDownLatch laneReleased = new CountDownLatch(1);
+		final InProgressFolderPoller backfillPoller = new InProgressFolderPoller(factory, firstRoot);
+		try {
+			backfillPoller.setBackfillThreads(2);
+			backfillPoller.setCheckpointFile(checkpointFile.getPath());
+			createEvents(firstRoot, "succeeded", "20150903-153545804-document-parsed",
+					"20150903-153545805-bus-message-sending", "20150903-153545806-bus-message-sent");
+			createEvents(firstRoot, "sending", "20150903-153545804-document-parsed",
+					"20150903-153545805-bus-message-sending");
+			
+			// hold the (single) lane so the replays are queued behind other work
+			lanes.execute("busy", new Runnable() {
+				@Override
+				public void run() {
+					try {
+						laneReleased.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			final Thread pollThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					backfillPoller.poll(System.currentTimeMillis());
+				}
+			});
+			pollThread.start();
+			pollThread.join(500);
+			assertFalse(checkpointFile.exists());
+			
+			laneReleased.countDown();
+			pollThread.join();
+			assertEquals(1, backfillPoller.getProcessCount());
+			assertEquals(1, backfillPoller.getTombstoneCount());
+			
+			// the first checkpoint holds the replayed state rather than the initial state
+			final Map<String, State> checkpointedStates = Maps.newHashMap();
+			for (final ProcessEntry entry: new InProgressFolderCheckpoint(checkpointFile).read()) {
+				checkpointedStates.put(entry.correlationId, entry.state);
+			}
+			assertEquals(State.SENDING, checkpointedStates.get("sending"));
+			assertEquals(State.SUCCEEDED, checkpointedStates.get("succeeded"));
+		} finally {
+			laneReleased.countDown();
+			backfillPoller.close();
+			lanes.close();
+		}
+	}
+
+	@Test
+	public void testTrackedStateIsRestoredFromCheckpointAfterRestart() throws Exception {
+		final String checkpointFile = new File(temporaryFolder.getRoot(), "in-progress.checkpoint").getPath();
+		createEvents(firstRoot, "sending", "20150903-153545804-document-parsed",
+				"20150903-153545805-bus-message-sending");
+		
+		final InProgressFolderPoller firstPoller = createRecordingPoller(Lists.<Transition>newArrayList());
+		firstPoller.setCheckpointFile(checkpointFile);
+		firstPoller.poll(System.currentTimeMillis());
+		assertEquals(Integer.valueOf(1), firstPoller.getProcessCountByState().get(State.SENDING.name()));
+		firstPoller.close();
+		
+		// only the events created since the checkpoint are replayed after the restart
+		createEvents(firstRoot, "sending", "20150903-153545806-bus-message-sent");
+		final List<Transition> transitions = Lists.newArrayList();
+		final InProgressFolderPoller restartedPoller = createRecordingPoller(transitions);
+		try {
+			restartedPoller.setCheckpointFile(checkpointFile);
+			restartedPoller.poll(System.currentTimeMillis());
+			
+			assertEquals(1, transitions.size());
+			assertEquals(State.SENDING, transitions.get(0).getFromState());
+			assertEquals(State.SUCCEEDED, transitions.get(0).getToState());
+		} finally {
+			restartedPoller.close();
+		}
+	}
+	
+	private InProgressFolderPoller createRecordingPoller(final List<Transition> transitions) {
+		return new InProgressFolderPoller(new DocumentTransferProcessFactory(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				transitions.add(transition);
+			}
+		}), firstRoot);
+	}
+	
+	private void deleteTree(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child: children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+	
+	private void createEvents(final File root, final String correlationId, final String... fileNames) throws Exception {
+		final File eventsFolder = new File(new File(root, correlationId), "events");
+		eventsFolder.mkdirs();
+		for (final String fileName: fileNames) {
+			new File(eventsFolder, fileName).createNewFile();
+		}
+	}
+}
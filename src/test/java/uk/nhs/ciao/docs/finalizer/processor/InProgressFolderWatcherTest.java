@@ -0,0 +1,93 @@
+package uk.nhs.ciao.docs.finalizer.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcessFactory;
+import uk.nhs.ciao.docs.finalizer.state.State;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link InProgressFolderWatcher}
+ */
+public class InProgressFolderWatcherTest {
+	private static final long TIMEOUT_MILLIS = 10000;
+	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private File root;
+	private List<Transition> transitions;
+	private InProgressFolderPoller poller;
+	private InProgressFolderWatcher watcher;
+	
+	@Before
+	public void setup() throws Exception {
+		root = temporaryFolder.newFolder("in-progress");
+		transitions = Lists.newCopyOnWriteArrayList();
+		poller = new InProgressFolderPoller(new DocumentTransferProcessFactory(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				transitions.add(transition);
+			}
+		}), root);
+		watcher = new InProgressFolderWatcher(poller);
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		watcher.stop();
+		poller.close();
+	}
+	
+	@Test
+	public void testExistingFilesArePickedUpOnStart() throws Exception {
+		createEvent("existing", "20150903-153545804-document-parsed");
+		
+		watcher.start();
+		
+		awaitTransitionCount(1);
+		assertEquals(State.PREPARING, transitions.get(0).getToState());
+		assertEquals(1, poller.getProcessCount());
+	}
+	
+	@Test
+	public void testNewFilesArePushedWithoutPolling() throws Exception {
+		watcher.start();
+		
+		// a new process folder - and then a new event in the watched events folder
+		createEvent("process", "20150903-153545804-document-parsed");
+		awaitTransitionCount(1);
+		
+		createEvent("process", "20150903-153545904-bus-message-sending");
+		awaitTransitionCount(2);
+		assertEquals(State.SENDING, transitions.get(1).getToState());
+	}
+	
+	private void createEvent(final String correlationId, final String fileName) throws Exception {
+		final File eventsFolder = new File(new File(root, correlationId), "events");
+		eventsFolder.mkdirs();
+		new File(eventsFolder, fileName).createNewFile();
+	}
+	
+	private void awaitTransitionCount(final int count) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (transitions.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertTrue("Expected " + count + " transitions but was " + transitions, transitions.size() >= count);
+	}
+}
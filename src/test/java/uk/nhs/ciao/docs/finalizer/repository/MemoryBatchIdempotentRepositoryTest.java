@@ -0,0 +1,108 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.docs.finalizer.state.Event;
+import uk.nhs.ciao.docs.finalizer.state.State;
+
+/**
+ * Tests for {@link MemoryBatchIdempotentRepository}
+ */
+public class MemoryBatchIdempotentRepositoryTest {
+	private MemoryBatchIdempotentRepository repository;
+	
+	@Before
+	public void setup() {
+		repository = new MemoryBatchIdempotentRepository(3);
+		repository.setPurgePeriod(1);
+	}
+	
+	@Test
+	public void testKeysAreOnlyClaimedOnce() {
+		final IdempotentKey parsed = parsed("a");
+		final IdempotentKey prepared = prepared("a");
+		
+		assertEquals(Collections.singleton(parsed), repository.claim(Arrays.asList(parsed)));
+		assertEquals(Collections.singleton(prepared), repository.claim(Arrays.asList(parsed, prepared)));
+		assertTrue(repository.claim(Arrays.asList(parsed, prepared)).isEmpty());
+		
+		repository.release(prepared);
+		assertEquals(Collections.singleton(prepared), repository.claim(Arrays.asList(prepared)));
+	}
+	
+	@Test
+	public void testActiveProcessesDoNotExpire() throws Exception {
+		repository.setExpiryPeriod(0);
+		repository.claim(Arrays.asList(parsed("a")));
+		Thread.sleep(5);
+		
+		assertTrue(repository.claim(Arrays.asList(parsed("a"))).isEmpty());
+		assertEquals(0, repository.getExpiredCount());
+	}
+	
+	@Test
+	public void testTerminalProcessesExpire() throws Exception {
+		repository.setExpiryPeriod(0);
+		repository.claim(Arrays.asList(parsed("a"), failed("a")));
+		Thread.sleep(5);
+		
+		repository.claim(Arrays.asList(parsed("b")));
+		assertEquals(1, repository.getExpiredCount());
+		assertEquals(1, repository.getProcessCount());
+	}
+	
+	@Test
+	public void testRemovedProcessesExpire() throws Exception {
+		repository.setExpiryPeriod(0);
+		repository.claim(Arrays.asList(parsed("a"), parsed("b")));
+		repository.expire(Arrays.asList("a"));
+		Thread.sleep(5);
+		
+		repository.claim(Arrays.asList(parsed("c")));
+		assertEquals(1, repository.getExpiredCount());
+		assertEquals(2, repository.getProcessCount());
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedTerminalProcessesAreEvicted() {
+		repository.claim(Arrays.asList(parsed("a"), failed("a"), parsed("b"), failed("b"), parsed("c")));
+		repository.claim(Arrays.asList(prepared("c")));
+		repository.claim(Arrays.asList(parsed("d")));
+		
+		assertEquals(1, repository.getEvictedCount());
+		assertEquals(0, repository.getOverflowCount());
+		assertEquals(3, repository.getProcessCount());
+		assertEquals(Collections.singleton(parsed("a")), repository.claim(Arrays.asList(parsed("a"))));
+		assertTrue(repository.claim(Arrays.asList(parsed("c"))).isEmpty());
+	}
+	
+	@Test
+	public void testActiveProcessesAreNotEvicted() {
+		repository.claim(Arrays.asList(parsed("a"), parsed("b"), parsed("c")));
+		repository.claim(Arrays.asList(parsed("d")));
+		
+		assertEquals(0, repository.getEvictedCount());
+		assertEquals(1, repository.getOverflowCount());
+		assertEquals(4, repository.getProcessCount());
+		assertTrue(repository.claim(Arrays.asList(parsed("a"))).isEmpty());
+	}
+	
+	private IdempotentKey parsed(final String correlationId) {
+		return new IdempotentKey(correlationId, Event.DOCUMENT_PARSED, State.PARSING, State.PREPARING);
+	}
+	
+	private IdempotentKey prepared(final String correlationId) {
+		return new IdempotentKey(correlationId, Event.DOCUMENT_PREPARED, State.PREPARING, State.SENDING);
+	}
+	
+	private IdempotentKey failed(final String correlationId) {
+		return new IdempotentKey(correlationId, Event.DOCUMENT_PREPARATION_FAILED, State.PREPARING, State.FAILED);
+	}
+}
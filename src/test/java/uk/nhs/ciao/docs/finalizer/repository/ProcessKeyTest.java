@@ -0,0 +1,33 @@
+package uk.nhs.ciao.docs.finalizer.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ProcessKey}
+ */
+public class ProcessKeyTest {
+	@Test
+	public void testCanonicalUuidRoundTrips() {
+		for (int index = 0; index < 100; index++) {
+			final String correlationId = UUID.randomUUID().toString();
+			
+			assertEquals(correlationId, ProcessKey.valueOf(correlationId).getCorrelationId());
+			assertEquals(ProcessKey.valueOf(correlationId), ProcessKey.valueOf(correlationId));
+		}
+	}
+	
+	@Test
+	public void testOtherNamesAreKeptAsStrings() {
+		final String upperCase = "0F8FAD5B-D9CB-469F-A165-70867728950E";
+		final String lowerCase = upperCase.toLowerCase();
+		
+		assertEquals(upperCase, ProcessKey.valueOf(upperCase).getCorrelationId());
+		assertEquals("document-1", ProcessKey.valueOf("document-1").getCorrelationId());
+		assertFalse(ProcessKey.valueOf(upperCase).equals(ProcessKey.valueOf(lowerCase)));
+	}
+}
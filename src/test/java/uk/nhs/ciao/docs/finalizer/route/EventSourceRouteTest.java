@@ -0,0 +1,82 @@
+package uk.nhs.ciao.docs.finalizer.route;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.docs.finalizer.processor.InProgressFolderPoller;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcess;
+import uk.nhs.ciao.docs.finalizer.state.DocumentTransferProcessFactory;
+import uk.nhs.ciao.docs.finalizer.state.Transition;
+import uk.nhs.ciao.docs.finalizer.state.TransitionListener;
+
+/**
+ * Tests for {@link EventSourceRoute}
+ */
+public class EventSourceRouteTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private File inProgressFolder;
+	private InProgressFolderPoller poller;
+	private CamelContext context;
+	private List<Transition> transitions;
+	private CountDownLatch latch;
+	
+	@Before
+	public void setup() throws Exception {
+		inProgressFolder = temporaryFolder.newFolder("in-progress");
+		transitions = new CopyOnWriteArrayList<Transition>();
+		latch = new CountDownLatch(1);
+		
+		poller = new InProgressFolderPoller(new DocumentTransferProcessFactory(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				transitions.add(transition);
+				latch.countDown();
+			}
+		}), inProgressFolder);
+		
+		final EventSourceRoute route = new EventSourceRoute();
+		route.setUri("seda:events");
+		route.setEventSink(poller);
+		
+		context = new DefaultCamelContext();
+		context.addRoutes(route);
+		context.start();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		context.stop();
+	}
+	
+	@Test
+	public void testPushedEventIsOnlyAppliedOnce() throws Exception {
+		final File eventsFolder = new File(new File(inProgressFolder, "process"), "events");
+		eventsFolder.mkdirs();
+		
+		context.createProducerTemplate().sendBodyAndHeader("seda:events", "20150903-153545804-document-parsed",
+				EventSourceRoute.HEADER_CORRELATION_ID, "process");
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		
+		// the durable copy of the event is written later
+		new File(eventsFolder, "20150903-153545804-document-parsed").createNewFile();
+		poller.poll(System.currentTimeMillis());
+		
+		assertEquals(1, transitions.size());
+	}
+}
@@ -0,0 +1,124 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests for {@link AsyncTransitionListener}
+ */
+public class AsyncTransitionListenerTest {
+	@Test
+	public void testTransitionsAreDeliveredInOrderPerProcess() {
+		final Map<String, List<Long>> timesByCorrelationId = Collections.synchronizedMap(Maps.<String, List<Long>>newHashMap());
+		final AsyncTransitionListener listener = new AsyncTransitionListener(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				List<Long> times = timesByCorrelationId.get(process.getCorrelationId());
+				if (times == null) {
+					times = Lists.newArrayList();
+					timesByCorrelationId.put(process.getCorrelationId(), times);
+				}
+				times.add(transition.getTime());
+			}
+		}, 4, 2);
+		
+		final List<DocumentTransferProcess> processes = Lists.newArrayList();
+		for (int index = 0; index < 10; index++) {
+			processes.add(createProcess("process-" + index, listener));
+		}
+		
+		for (long time = 1; time <= 50; time++) {
+			for (final DocumentTransferProcess process: processes) {
+				listener.onTransition(process, createTransition(time));
+			}
+		}
+		listener.close();
+		
+		assertEquals(500, listener.getCompletedCount());
+		assertEquals(0, listener.getQueueDepth());
+		assertTrue(listener.getPeakQueueDepth() > 0);
+		for (final DocumentTransferProcess process: processes) {
+			final List<Long> times = timesByCorrelationId.get(process.getCorrelationId());
+			assertEquals(50, times.size());
+			for (int index = 0; index < times.size(); index++) {
+				assertEquals(index + 1, times.get(index).longValue());
+			}
+		}
+	}
+	
+	@Test
+	public void testCallerIsBlockedWhenQueueIsFull() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AsyncTransitionListener listener = new AsyncTransitionListener(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 1, 1);
+		
+		final DocumentTransferProcess process = createProcess("blocked", listener);
+		listener.onTransition(process, createTransition(1)); // being delivered
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		listener.onTransition(process, createTransition(2)); // queued
+		
+		final Thread producer = new Thread() {
+			@Override
+			public void run() {
+				listener.onTransition(process, createTransition(3)); // blocked
+			}
+		};
+		producer.start();
+		producer.join(200);
+		assertTrue(producer.isAlive());
+		
+		release.countDown();
+		producer.join(5000);
+		listener.close();
+		
+		assertEquals(1, listener.getBlockedCount());
+		assertEquals(3, listener.getCompletedCount());
+	}
+	
+	@Test
+	public void testZeroThreadsDeliversSynchronously() {
+		final List<Thread> threads = Lists.newArrayList();
+		final AsyncTransitionListener listener = new AsyncTransitionListener(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				threads.add(Thread.currentThread());
+			}
+		}, 0, 1);
+		
+		listener.onTransition(createProcess("sync", listener), createTransition(1));
+		
+		assertEquals(1, threads.size());
+		assertSame(Thread.currentThread(), threads.get(0));
+	}
+	
+	private DocumentTransferProcess createProcess(final String correlationId, final TransitionListener listener) {
+		return new DocumentTransferProcess(correlationId, new File("target/in-progress", correlationId), listener);
+	}
+	
+	private Transition createTransition(final long time) {
+		return new Transition(State.PARSING, State.PREPARING, Event.DOCUMENT_PARSED, time);
+	}
+}
@@ -0,0 +1,161 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.docs.finalizer.repository.BatchIdempotentRepository;
+import uk.nhs.ciao.docs.finalizer.repository.IdempotentKey;
+import uk.nhs.ciao.docs.finalizer.repository.MemoryBatchIdempotentRepository;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link BatchingIdempotentDispatcher}
+ */
+public class BatchingIdempotentDispatcherTest {
+	private CountingRepository repository;
+	private BatchingIdempotentDispatcher dispatcher;
+	
+	@Before
+	public void setup() {
+		repository = new CountingRepository(new MemoryBatchIdempotentRepository(1000));
+		dispatcher = new BatchingIdempotentDispatcher(repository, 100, 50);
+	}
+	
+	@After
+	public void tearDown() {
+		dispatcher.close();
+	}
+	
+	@Test
+	public void testConcurrentCallersAreClaimedInBatches() throws Exception {
+		final AtomicInteger invocations = new AtomicInteger();
+		final TransitionListener listener = dispatcher.wrap(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				invocations.incrementAndGet();
+			}
+		});
+		
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = Lists.newArrayList();
+		for (int index = 0; index < 20; index++) {
+			// each process is notified by two callers (e.g. two cluster members)
+			final DocumentTransferProcess process = createProcess("process-" + (index / 2));
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					listener.onTransition(process, createTransition());
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		
+		start.countDown();
+		for (final Thread thread: threads) {
+			thread.join(5000);
+		}
+		
+		assertEquals(10, invocations.get());
+		assertTrue("Expected fewer claims than callers: " + repository.calls.get(), repository.calls.get() < 20);
+	}
+	
+	@Test
+	public void testSingleCallerIsNotHeldForTheBatchWindow() {
+		dispatcher.close();
+		dispatcher = new BatchingIdempotentDispatcher(repository, 100, 60000);
+		
+		final AtomicInteger invocations = new AtomicInteger();
+		final TransitionListener listener = dispatcher.wrap(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				invocations.incrementAndGet();
+			}
+		});
+		
+		final long startTime = System.currentTimeMillis();
+		listener.onTransition(createProcess("first"), createTransition());
+		listener.onTransition(createProcess("second"), createTransition());
+		
+		assertEquals(2, invocations.get());
+		assertEquals(2, repository.calls.get());
+		assertTrue("Expected the claims not to wait for the batch window",
+				System.currentTimeMillis() - startTime < 10000);
+	}
+	
+	@Test
+	public void testClaimIsReleasedWhenListenerFails() {
+		final AtomicInteger invocations = new AtomicInteger();
+		final TransitionListener listener = dispatcher.wrap(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				if (invocations.incrementAndGet() == 1) {
+					throw new IllegalStateException("Action failed");
+				}
+			}
+		});
+		
+		final DocumentTransferProcess process = createProcess("retried");
+		listener.onTransition(process, createTransition());
+		listener.onTransition(process, createTransition());
+		listener.onTransition(process, createTransition());
+		
+		assertEquals(2, invocations.get());
+	}
+	
+	private DocumentTransferProcess createProcess(final String correlationId) {
+		final TransitionListener listener = dispatcher.wrap(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		});
+		return new DocumentTransferProcess(correlationId, new File("target/in-progress", correlationId), listener);
+	}
+	
+	private Transition createTransition() {
+		return new Transition(State.PARSING, State.PREPARING, Event.DOCUMENT_PARSED, 1);
+	}
+	
+	private static class CountingRepository implements BatchIdempotentRepository {
+		private final BatchIdempotentRepository delegate;
+		private final AtomicInteger calls = new AtomicInteger();
+		
+		public CountingRepository(final BatchIdempotentRepository delegate) {
+			this.delegate = delegate;
+		}
+		
+		@Override
+		public Set<IdempotentKey> claim(final Collection<IdempotentKey> keys) {
+			calls.incrementAndGet();
+			return delegate.claim(keys);
+		}
+		
+		@Override
+		public void release(final IdempotentKey key) {
+			delegate.release(key);
+		}
+		
+		@Override
+		public void expire(final Collection<String> correlationIds) {
+			delegate.expire(correlationIds);
+		}
+	}
+}
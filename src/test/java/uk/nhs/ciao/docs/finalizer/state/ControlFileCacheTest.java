@@ -0,0 +1,59 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import uk.nhs.ciao.docs.finalizer.metrics.MetricRegistry;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link ControlFileCache}
+ */
+public class ControlFileCacheTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private MetricRegistry registry;
+	private ControlFileCache cache;
+	
+	@Before
+	public void setup() {
+		registry = new MetricRegistry();
+		cache = new ControlFileCache(10);
+		cache.setMetricRegistry(registry);
+	}
+	
+	@Test
+	public void testReadsOnlyTheFirstLine() throws Exception {
+		final File file = temporaryFolder.newFile("completed-folder");
+		final String longLine = Strings.repeat("completed/", 100);
+		Files.write(longLine + "\r\nignored\r\n", file, Charset.defaultCharset());
+		
+		assertEquals(longLine, cache.readFirstLine(file));
+		assertEquals("", cache.readFirstLine(new File(temporaryFolder.getRoot(), "error-folder")));
+	}
+	
+	@Test
+	public void testFileIsOnlyReadAgainWhenChanged() throws Exception {
+		final File file = temporaryFolder.newFile("completed-folder");
+		Files.write("completed", file, Charset.defaultCharset());
+		
+		assertEquals("completed", cache.readFirstLine(file));
+		assertEquals("completed", cache.readFirstLine(file));
+		assertEquals(1L, registry.snapshot().get("ciao_docs_finalizer_control_file_lookups_total.read"));
+		assertEquals(1L, registry.snapshot().get("ciao_docs_finalizer_control_file_lookups_total.hit"));
+		
+		Files.write("completed-2", file, Charset.defaultCharset());
+		assertEquals("completed-2", cache.readFirstLine(file));
+		assertEquals(2L, registry.snapshot().get("ciao_docs_finalizer_control_file_lookups_total.read"));
+	}
+}
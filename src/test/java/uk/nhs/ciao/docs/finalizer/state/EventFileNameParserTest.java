@@ -0,0 +1,136 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Test;
+
+/**
+ * Differential tests comparing {@link EventFileNameParser} against the original regular expression
+ * and Joda formatter based parsing
+ */
+public class EventFileNameParserTest {
+	private static final Pattern EVENT_NAME_PATTERN = Pattern.compile("(\\d{8}-\\d{9})-(.+)");
+	private static final DateTimeFormatter EVENT_NAME_TIMESTAMP_FORMATTER = DateTimeFormat.forPattern("yyyyMMdd-HHmmssSSS").withZoneUTC();
+	
+	private static final String[] YEARS = {"0000", "0001", "0004", "0100", "0400", "1582", "1600", "1899", "1900", "1969",
+		"1970", "1971", "2000", "2015", "2016", "2038", "2100", "2400", "9999"};
+	
+	@Test
+	public void testEventSuffixes() {
+		for (final Event event: Event.values()) {
+			assertSameResult("20150903-153545804-" + event.getFileSuffix());
+			assertSameResult("20150903-153545804-" + event.getFileSuffix() + "x");
+			assertSameResult("20150903-153545804-x" + event.getFileSuffix());
+			assertSameResult("20150903-153545804-" + event.getFileSuffix().toUpperCase());
+		}
+	}
+	
+	@Test
+	public void testMalformedNames() {
+		final String[] names = {
+			"",
+			"document-parsed",
+			"20150903-153545804",
+			"20150903-153545804-",
+			"20150903-153545804document-parsed",
+			"20150903153545804-document-parsed",
+			"2015090-3153545804-document-parsed",
+			"2015090x-153545804-document-parsed",
+			"20150903-15354580x-document-parsed",
+			"20150903-1535458041-document-parsed",
+			"\uff120150903-153545804-document-parsed",
+			"20150903-153545804-document\nparsed",
+			"20150903-153545804-document-parsed\r",
+			"20150903-153545804-\u0085",
+			"20150903-153545804-\u2028",
+			"20150903-153545804-\u2029",
+			"20150903-153545804-\t",
+			"20150903-153545804- ",
+			"20150903-153545804--"
+		};
+		
+		for (final String name: names) {
+			assertSameResult(name);
+		}
+	}
+	
+	@Test
+	public void testAllMonthsAndDays() {
+		for (final String year: YEARS) {
+			for (int month = 0; month <= 13; month++) {
+				for (int day = 0; day <= 32; day++) {
+					assertSameResult(String.format("%s%02d%02d-000000000-document-parsed", year, month, day));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testTimeFields() {
+		for (int hour = 0; hour <= 25; hour++) {
+			for (int minute = 0; minute <= 61; minute++) {
+				assertSameResult(String.format("20160229-%02d%02d59999-bus-message-sent", hour, minute));
+				assertSameResult(String.format("20160229-%02d%02d60000-bus-message-sent", hour, minute));
+			}
+		}
+		
+		assertSameResult("20151231-235959999-bus-message-sent");
+		assertSameResult("20160101-000000000-bus-message-sent");
+		assertSameResult("99999999-999999999-bus-message-sent");
+	}
+	
+	@Test
+	public void testRandomNames() {
+		final Random random = new Random(20150903);
+		final Event[] events = Event.values();
+		for (int count = 0; count < 200000; count++) {
+			final String suffix = random.nextInt(10) == 0 ? "unknown" : events[random.nextInt(events.length)].getFileSuffix();
+			final String name = String.format("%04d%02d%02d-%02d%02d%02d%03d-%s", random.nextInt(10000),
+				random.nextInt(14), random.nextInt(33), random.nextInt(25), random.nextInt(61), random.nextInt(61),
+				random.nextInt(1000), suffix);
+			assertSameResult(name);
+		}
+	}
+	
+	private void assertSameResult(final String name) {
+		assertEquals(name, parseWithRegex(name), parseWithParser(name));
+	}
+	
+	/**
+	 * Parses the name using the original regex / Joda implementation
+	 */
+	private String parseWithRegex(final String name) {
+		final Matcher matcher = EVENT_NAME_PATTERN.matcher(name);
+		if (!matcher.matches()) {
+			return "no-match";
+		}
+		
+		final long eventTime;
+		try {
+			eventTime = EVENT_NAME_TIMESTAMP_FORMATTER.parseMillis(matcher.group(1));
+		} catch (IllegalArgumentException e) {
+			return "invalid-timestamp";
+		}
+		
+		return eventTime + ":" + Event.getByFileSuffix(matcher.group(2));
+	}
+	
+	private String parseWithParser(final String name) {
+		if (!EventFileNameParser.matches(name)) {
+			return "no-match";
+		}
+		
+		final long eventTime = EventFileNameParser.parseTimestamp(name);
+		if (eventTime == EventFileNameParser.INVALID_TIMESTAMP) {
+			return "invalid-timestamp";
+		}
+		
+		return eventTime + ":" + EventFileNameParser.parseEvent(name);
+	}
+}
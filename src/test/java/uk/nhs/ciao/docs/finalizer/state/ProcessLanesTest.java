@@ -0,0 +1,85 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ProcessLanes}
+ */
+public class ProcessLanesTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private ProcessLanes lanes;
+	
+	@Before
+	public void setup() {
+		lanes = new ProcessLanes(2);
+	}
+	
+	@After
+	public void tearDown() {
+		lanes.close();
+	}
+	
+	@Test
+	public void testTasksOfAProcessRunInOrderOnOneThread() throws Exception {
+		final List<Integer> values = new CopyOnWriteArrayList<Integer>();
+		final List<String> threadNames = new CopyOnWriteArrayList<String>();
+		final CountDownLatch latch = new CountDownLatch(100);
+		
+		for (int index = 0; index < 100; index++) {
+			final int value = index;
+			lanes.execute("process", new Runnable() {
+				@Override
+				public void run() {
+					values.add(value);
+					threadNames.add(Thread.currentThread().getName());
+					latch.countDown();
+				}
+			});
+		}
+		
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		for (int index = 0; index < 100; index++) {
+			assertEquals(index, values.get(index).intValue());
+			assertEquals(threadNames.get(0), threadNames.get(index));
+		}
+	}
+	
+	@Test
+	public void testListenersAreNotifiedOnTheLaneAfterTheMutation() throws Exception {
+		final File rootFolder = temporaryFolder.newFolder("process");
+		final File eventsFolder = new File(rootFolder, "events");
+		eventsFolder.mkdirs();
+		final File eventFile = new File(eventsFolder, "20150903-153545804-document-parsed");
+		eventFile.createNewFile();
+		
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<State> notifiedStates = new CopyOnWriteArrayList<State>();
+		final DocumentTransferProcess process = new DocumentTransferProcess("process", rootFolder, new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				notifiedStates.add(process.getState());
+				latch.countDown();
+			}
+		}, null, lanes);
+		
+		process.registerEventsFile(eventFile);
+		
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(State.PREPARING, notifiedStates.get(0));
+	}
+}
@@ -0,0 +1,105 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link TimeoutScheduler}
+ */
+public class TimeoutSchedulerTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private TimeoutScheduler scheduler;
+	private List<Transition> transitions;
+	private DocumentTransferProcessFactory factory;
+	
+	@Before
+	public void setup() {
+		scheduler = new TimeoutScheduler();
+		transitions = Lists.newArrayList();
+		
+		factory = new DocumentTransferProcessFactory(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				transitions.add(transition);
+			}
+		});
+		factory.setTimeoutScheduler(scheduler);
+		factory.setDocumentPreparationTimeout(100);
+		factory.setDocumentSendTimeout(200);
+	}
+	
+	@Test
+	public void testOnlyDueTimeoutsAreProcessed() {
+		final DocumentTransferProcess early = createProcess("early");
+		final DocumentTransferProcess late = createProcess("late");
+		
+		early.getDocumentPreparationTimeout().start(1000);
+		late.getDocumentPreparationTimeout().start(5000);
+		assertEquals(2, scheduler.size());
+		assertEquals(1100, scheduler.getNextTrigger());
+		
+		assertEquals(0, scheduler.processTimeouts(1099));
+		assertEquals(1, scheduler.processTimeouts(1100));
+		assertEquals(1, scheduler.size());
+		assertEquals(5100, scheduler.getNextTrigger());
+	}
+	
+	@Test
+	public void testCancelledTimeoutsAreUnscheduled() {
+		final DocumentTransferProcess process = createProcess("cancelled");
+		
+		process.getDocumentPreparationTimeout().start(1000);
+		process.getDocumentPreparationTimeout().cancel();
+		
+		assertEquals(0, scheduler.size());
+		assertEquals(Long.MAX_VALUE, scheduler.getNextTrigger());
+		assertEquals(0, scheduler.processTimeouts(Long.MAX_VALUE));
+	}
+	
+	@Test
+	public void testRestartedTimeoutsAreRescheduled() {
+		final DocumentTransferProcess process = createProcess("restarted");
+		
+		process.getDocumentPreparationTimeout().start(1000);
+		process.getDocumentPreparationTimeout().start(2000);
+		
+		assertEquals(1, scheduler.size());
+		assertEquals(2100, scheduler.getNextTrigger());
+	}
+	
+	@Test
+	public void testTriggeredTimeoutFiresTransition() throws Exception {
+		final File rootFolder = temporaryFolder.newFolder("triggered");
+		final File eventsFolder = new File(rootFolder, "events");
+		eventsFolder.mkdirs();
+		
+		final File eventFile = new File(eventsFolder, "20150903-153545804-document-parsed");
+		eventFile.createNewFile();
+		
+		final DocumentTransferProcess process = factory.createDocumentTransferProcess("triggered", rootFolder);
+		process.registerEventsFile(eventFile);
+		assertEquals(State.PREPARING, process.getState());
+		assertEquals(1, scheduler.size());
+		
+		scheduler.processTimeouts(scheduler.getNextTrigger());
+		
+		assertEquals(0, scheduler.size());
+		assertEquals(State.FAILED, process.getState());
+		assertEquals(Event.DOCUMENT_PREPARATION_TIMEOUT, transitions.get(transitions.size() - 1).getEvent());
+	}
+	
+	private DocumentTransferProcess createProcess(final String correlationId) {
+		return factory.createDocumentTransferProcess(correlationId, new File("target/in-progress", correlationId));
+	}
+}
@@ -0,0 +1,202 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests for {@link TransitionJournal}
+ */
+public class TransitionJournalTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private String journalFile;
+	private List<TransitionJournal> journals;
+	private List<String> resumed;
+	private DocumentTransferProcess process;
+	private Transition transition;
+	
+	@Before
+	public void setup() throws Exception {
+		journalFile = new File(temporaryFolder.getRoot(), "transitions.journal").getPath();
+		journals = Lists.newArrayList();
+		resumed = Lists.newArrayList();
+		
+		process = new DocumentTransferProcess("process", temporaryFolder.newFolder("process"), new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		});
+		process.restore(State.SUCCEEDED, "completed", null, false, false);
+		transition = new Transition(State.WAITING_BUS_RESPONSE, State.SUCCEEDED, Event.BUS_ACK_RECEIVED, 1000);
+	}
+	
+	@After
+	public void tearDown() {
+		for (final TransitionJournal journal: journals) {
+			journal.close();
+		}
+	}
+	
+	@Test
+	public void testInterruptedActionIsResumedAfterRestart() throws Exception {
+		final TransitionJournal journal = openJournal();
+		journal.wrap("move", new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// simulates a restart while the action is running
+				restart();
+			}
+		}).onTransition(process, transition);
+		
+		assertEquals(Lists.newArrayList("process:SUCCEEDED:completed"), resumed);
+	}
+	
+	@Test
+	public void testIntentIsRecordedBeforeTheIdempotentClaim() throws Exception {
+		final TransitionJournal journal = openJournal();
+		final TransitionListener action = new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		};
+		journal.wrap("move", action, new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// simulates a restart after the claim was taken - before the action is run
+				restart();
+			}
+		}).onTransition(process, transition);
+		
+		assertEquals(Lists.newArrayList("process:SUCCEEDED:completed"), resumed);
+	}
+	
+	@Test
+	public void testInterruptedActionIsResumedOnTheActionLanes() throws Exception {
+		final List<String> threadNames = Collections.synchronizedList(Lists.<String>newArrayList());
+		final AsyncTransitionListener actionLanes = new AsyncTransitionListener(new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		}, 1, 10);
+		
+		final TransitionJournal journal = openJournal();
+		journal.wrap("move", new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// simulates a restart while the action is running
+				try {
+					final TransitionJournal restarted = openJournal();
+					restarted.wrap("move", new TransitionListener() {
+						@Override
+						public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+							threadNames.add(Thread.currentThread().getName());
+						}
+					});
+					restarted.resumeIncompleteActions(actionLanes);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}).onTransition(process, transition);
+		actionLanes.close();
+		
+		assertEquals(Lists.newArrayList("transitionAction-0"), threadNames);
+	}
+	
+	@Test
+	public void testCompletedActionIsNotResumed() throws Exception {
+		final TransitionJournal journal = openJournal();
+		journal.wrap("move", new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// NOOP
+			}
+		}).onTransition(process, transition);
+		journal.close();
+		
+		restart();
+		assertTrue(resumed.isEmpty());
+	}
+	
+	@Test
+	public void testJournalRecoversFromFailedWrite() throws Exception {
+		final AtomicBoolean failWrite = new AtomicBoolean(true);
+		final TransitionJournal journal = new TransitionJournal(journalFile) {
+			@Override
+			void write(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+				if (failWrite.getAndSet(false)) {
+					// leave a torn record behind
+					buffer.limit(buffer.limit() / 2);
+					super.write(channel, buffer);
+					throw new IOException("Simulated write failure");
+				}
+				super.write(channel, buffer);
+			}
+		};
+		journals.add(journal);
+		journal.open();
+		
+		// the action still runs when its intent could not be written
+		final List<String> completed = Lists.newArrayList();
+		journal.wrap("move", new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				completed.add(process.getCorrelationId());
+			}
+		}).onTransition(process, transition);
+		assertEquals(Lists.newArrayList("process"), completed);
+		
+		// the next intent is durable - and readable after the torn record
+		journal.wrap("move", new TransitionListener() {
+			@Override
+			public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+				// simulates a restart while the action is running
+				restart();
+			}
+		}).onTransition(process, transition);
+		
+		assertEquals(Lists.newArrayList("process:SUCCEEDED:completed"), resumed);
+	}
+	
+	private TransitionJournal openJournal() throws Exception {
+		final TransitionJournal journal = new TransitionJournal(journalFile);
+		journals.add(journal);
+		journal.open();
+		return journal;
+	}
+	
+	private void restart() {
+		try {
+			final TransitionJournal journal = openJournal();
+			journal.wrap("move", new TransitionListener() {
+				@Override
+				public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+					resumed.add(process.getCorrelationId() + ":" + process.getState() + ":" + process.getCompletedFolder());
+				}
+			});
+			journal.resumeIncompleteActions();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package uk.nhs.ciao.docs.finalizer.state;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TransitionTable}
+ */
+public class TransitionTableTest {
+	private static final TransitionListener NOOP_LISTENER = new TransitionListener() {
+		@Override
+		public void onTransition(final DocumentTransferProcess process, final Transition transition) {
+			// NOOP
+		}
+	};
+	
+	@Test
+	public void testTableMatchesStateDispatch() {
+		for (final State state: State.values()) {
+			for (final Event event: Event.values()) {
+				for (int flags = 0; flags < 4; flags++) {
+					for (final boolean timeoutsStarted: new boolean[] { false, true }) {
+						final DocumentTransferProcess expected = createProcess(state, flags, timeoutsStarted);
+						final DocumentTransferProcess actual = createProcess(state, flags, timeoutsStarted);
+						final String message = state + " " + event + " flags=" + flags + " started=" + timeoutsStarted;
+						
+						assertEquals(message, event.dispatch(state, expected, 5000),
+								TransitionTable.apply(actual, state, event, 5000));
+						assertEquals(message, describeTimeouts(expected), describeTimeouts(actual));
+					}
+				}
+			}
+		}
+	}
+	
+	private DocumentTransferProcess createProcess(final State state, final int flags, final boolean timeoutsStarted) {
+		final DocumentTransferProcess process = new DocumentTransferProcess("process", new File("process"), NOOP_LISTENER);
+		process.restore(state, null, null, (flags & 2) != 0, (flags & 1) != 0);
+		
+		for (final Timeout timeout: getTimeouts(process)) {
+			timeout.setThreshold(1000);
+			if (timeoutsStarted) {
+				timeout.start(100);
+			}
+		}
+		return process;
+	}
+	
+	private String describeTimeouts(final DocumentTransferProcess process) {
+		final StringBuilder builder = new StringBuilder();
+		for (final Timeout timeout: getTimeouts(process)) {
+			builder.append(timeout.isStarted()).append(':').append(timeout.getStart()).append(' ');
+		}
+		return builder.toString();
+	}
+	
+	private Timeout[] getTimeouts(final DocumentTransferProcess process) {
+		return new Timeout[] {
+			process.getDocumentPreparationTimeout(),
+			process.getDocumentSendTimeout(),
+			process.getInfResponseTimeout(),
+			process.getBusResponseTimeout()
+		};
+	}
+}